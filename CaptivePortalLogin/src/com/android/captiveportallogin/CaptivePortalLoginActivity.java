@@ -29,6 +29,8 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.net.Proxy;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
 import android.net.Uri;
 import android.net.http.SslError;
 import android.net.wifi.WifiInfo;
@@ -36,6 +38,7 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.SupplicantState;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.os.FileUtils;
 import android.util.ArrayMap;
 import android.util.Log;
@@ -47,6 +50,7 @@ import android.webkit.WebChromeClient;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
+import android.webkit.WebResourceRequest;
 import android.webkit.WebResourceResponse;
 import android.webkit.JavascriptInterface;
 
@@ -54,27 +58,30 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.lang.InterruptedException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.jsoup.Jsoup;
 
+import com.android.okhttp.ConnectionPool;
 import com.android.okhttp.OkHttpClient;
 //import com.android.mimecraft
 //import com.squareup.mimecraft.FormEncoding;
@@ -85,14 +92,24 @@ import com.android.okhttp.OkUrlFactory;
 public class CaptivePortalLoginActivity extends Activity {
     private static final String TAG = "CaptivePortalLogin";
     private static final int SOCKET_TIMEOUT_MS = 10000;
+    // Extra set by NetworkMonitor with a probe timeout adapted to the network's round-trip time.
+    private static final String EXTRA_PROBE_TIMEOUT_MS = "extra_probe_timeout_ms";
+    // The checks after each page load reuse one connection to the probe server while it stays
+    // open.
+    private static final int PROBE_MAX_IDLE_CONNECTIONS = 1;
+    private static final long PROBE_KEEP_ALIVE_MS = 5 * 60 * 1000;
     FormEncoding.Builder m = new FormEncoding.Builder();
-    private OkHttpClient client = new OkHttpClient();
 
     private enum Result {DISMISSED, UNWANTED, WANTED_AS_IS}
 
     ;
 
     private URL mURL;
+    private int mProbeTimeoutMs;
+    // Client for testForCaptivePortal(), with a keep-alive pool and persistent TLS sessions.
+    private final OkHttpClient mProbeClient = new OkHttpClient();
+    private final ConnectionPool mProbePool =
+            new ConnectionPool(PROBE_MAX_IDLE_CONNECTIONS, PROBE_KEEP_ALIVE_MS);
     private Network mNetwork;
     private CaptivePortal mCaptivePortal;
     private NetworkCallback mNetworkCallback;
@@ -114,7 +131,18 @@ public class CaptivePortalLoginActivity extends Activity {
             Log.e(TAG, "Invalid captive portal URL, url=" + url);
             done(Result.WANTED_AS_IS);
         }
+        if (mURL != null) {
+            // Every portal answers the connectivity check. Keep its cookies to this network.
+            PortalCookieStore.getInstance(this).ignoreHost(mURL.getHost());
+        }
         mNetwork = getIntent().getParcelableExtra(ConnectivityManager.EXTRA_NETWORK);
+        mProbeTimeoutMs = getIntent().getIntExtra(EXTRA_PROBE_TIMEOUT_MS, SOCKET_TIMEOUT_MS);
+        mProbeClient.setConnectTimeout(mProbeTimeoutMs, TimeUnit.MILLISECONDS);
+        mProbeClient.setReadTimeout(mProbeTimeoutMs, TimeUnit.MILLISECONDS);
+        mProbeClient.setFollowRedirects(false);
+        mProbeClient.setConnectionPool(mProbePool);
+        mProbeClient.setSslSocketFactory(
+                SSLCertificateSocketFactory.getDefault(mProbeTimeoutMs, new SSLSessionCache(this)));
         mCaptivePortal = getIntent().getParcelableExtra(ConnectivityManager.EXTRA_CAPTIVE_PORTAL);
 
         // Also initializes proxy system properties.
@@ -145,6 +173,7 @@ public class CaptivePortalLoginActivity extends Activity {
         mCm.registerNetworkCallback(builder.build(), mNetworkCallback);
 
         final WebView myWebView = (WebView) findViewById(R.id.webview);
+        // Intercepted requests are cached by PortalHttpClient instead.
         myWebView.clearCache(true);
         WebSettings webSettings = myWebView.getSettings();
         webSettings.setJavaScriptEnabled(true);
@@ -232,6 +261,7 @@ public class CaptivePortalLoginActivity extends Activity {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mProbePool.evictAll();
 
         if (mNetworkCallback != null) {
             mCm.unregisterNetworkCallback(mNetworkCallback);
@@ -259,21 +289,29 @@ public class CaptivePortalLoginActivity extends Activity {
                     Thread.sleep(1000);
                 } catch (InterruptedException e) {
                 }
-                HttpURLConnection urlConnection = null;
                 int httpResponseCode = 500;
                 try {
-                    urlConnection = (HttpURLConnection) mURL.openConnection();
-                    urlConnection.setInstanceFollowRedirects(false);
-                    urlConnection.setConnectTimeout(SOCKET_TIMEOUT_MS);
-                    urlConnection.setReadTimeout(SOCKET_TIMEOUT_MS);
+                    final HttpURLConnection urlConnection =
+                            new OkUrlFactory(mProbeClient).open(mURL);
                     urlConnection.setUseCaches(false);
-                    urlConnection.getInputStream();
                     httpResponseCode = urlConnection.getResponseCode();
+                    if (httpResponseCode >= 300 && httpResponseCode < 400) {
+                        mWebViewClient.setRedirect(urlConnection.getHeaderField("Location"));
+                    }
+                    // Read the (empty or tiny) body to the end instead of calling disconnect(),
+                    // which would close the connection instead of returning it to mProbePool.
+                    if (httpResponseCode < 400) {
+                        final InputStream in = urlConnection.getInputStream();
+                        try {
+                            IOUtils.readFully(in);
+                        } finally {
+                            in.close();
+                        }
+                    }
                 } catch (IOException e) {
-                } finally {
-                    if (urlConnection != null) urlConnection.disconnect();
                 }
                 if (httpResponseCode == 204) {
+                    mWebViewClient.saveLoginScript();
                     done(Result.DISMISSED);
                 }
             }
@@ -296,10 +334,8 @@ public class CaptivePortalLoginActivity extends Activity {
         private float mDpPerSp;
         private int mPagesLoaded;
         private Context mContext = null;
-        private OkHttpClient client = new OkHttpClient();
-        private String mUrlHost = "";
-        private boolean mPosted = false;
         private WebView mWebView = null;
+        private final InterceptStats mInterceptStats = new InterceptStats();
 
         // If we haven't finished cleaning up the history, don't allow going back.
         public boolean allowBack() {
@@ -341,6 +377,7 @@ public class CaptivePortalLoginActivity extends Activity {
         @Override
         public void onPageFinished(WebView view, String url) {
             mPagesLoaded++;
+            Log.d(TAG, "Intercepted requests: " + mInterceptStats);
             if (mPagesLoaded == 1) {
                 // Now that WebView has loaded at least one page we know it has read in the proxy
                 // settings.  Now prompt the WebView read the Network-specific proxy settings.
@@ -406,76 +443,130 @@ public class CaptivePortalLoginActivity extends Activity {
                 startActivity(new Intent(Intent.ACTION_DIAL, Uri.parse(url)));
                 return true;
             }
-            mNextFormRequestContents = null;
+            mForms.clear();
             return false;
         }
 
+        @Override
+        public WebResourceResponse shouldInterceptRequest(WebView view,
+                WebResourceRequest request) {
+            final String url = request.getUrl().toString();
+            return intercept(url, ResourceType.forRequest(url,
+                    request.getRequestHeaders().get("Accept"), request.isForMainFrame()),
+                    "GET".equalsIgnoreCase(request.getMethod()));
+        }
+
         @Override
         public WebResourceResponse shouldInterceptRequest(final WebView view, final String url) {
+            // Only called directly by WebViews without the overload above.
+            return intercept(url, ResourceType.forRequest(url, null, false), true);
+        }
+
+        /**
+         * Loads {@code url} for the WebView. Documents get the form submit interceptor spliced
+         * in. Everything else is streamed through as it is.
+         *
+         * @param requested what the request looks like it is for. The response's Content-Type
+         *         has the last word.
+         * @param isGet false if the page sends the request with another method, e.g. an XHR
+         *         POST. Only a form submission caught by the interceptor can be sent again
+         *         here. The WebView sends any other such request itself, with its body.
+         */
+        private WebResourceResponse intercept(final String url, ResourceType requested,
+                boolean isGet) {
+            final long startMs = SystemClock.elapsedRealtime();
+            // Shared by every page and sub-resource, so that they reuse connections.
+            final PortalHttpClient httpClient = PortalHttpClient.getInstance(mContext, mNetwork);
+            // The request's permit is given back by whoever ends up with the connection: the
+            // body once it is handed to the WebView, and the finally block below until then.
+            URL opened = null;
+            InputStream body = null;
+            boolean handedOff = false;
             try {
-                // Our implementation just parses the response and visualizes it. It does not properly handle
-                // redirects or HTTP errors at the moment. It only serves as a demo for intercepting POST requests
-                // as a starting point for supporting multiple types of HTTP requests in a full fletched browser
-
-                // Construct request
-//			Log.d(TAG,"url: " + url);
-                URL currUrl = new URL(url);
-                String currUrlHost = currUrl.getHost();
-                Log.d(TAG, "currUrl is \t"+currUrl.getHost());
-                Log.d(TAG, "mURL is \t"+mURL.getHost());
-                Log.d(TAG, "mUrlHost is \t"+mUrlHost);
-//                if(mURL.getHost().emUrlHost)
-                if (mUrlHost != "" && mPosted == false) {
-                    Log.d(TAG, mUrlHost + " \t" + mPosted);
-                    currUrl = new URL(currUrl.getProtocol(), mUrlHost, currUrl.getPort(), currUrl.getFile());
-                }
-//                Log.d(TAG, currUrl.getHost() + "\t Before new conn");
-                HttpURLConnection conn = new OkUrlFactory(client).open(currUrl);
-                //HttpURLConnection conn = client.open(currUrl);
-//                Log.d(TAG, conn.getURL().getHost());
+                // Everything this request depends on is fixed here. Requests are intercepted on
+                // several threads at once, and the page may submit a form at any time.
+                final URL requestUrl = new URL(url);
+                final InterceptContext request = new InterceptContext(requestUrl,
+                        mHostRewrite.get(), requested, mForms.take(requestUrl, requested),
+                        startMs);
+                if (!isGet && !request.isPost()) return null;
+                final URL currUrl = request.target;
+                HttpURLConnection conn = httpClient.open(currUrl, requested);
+                opened = currUrl;
                 conn.setConnectTimeout(5000);
-                conn.setRequestMethod(isPOST() ? "POST" : "GET");
-                Log.d(TAG, mUrlHost + " \t" + conn.getURL().getHost() + conn.getURL().getFile());
+                conn.setRequestMethod(request.isPost() ? "POST" : "GET");
 
                 // Write body
-                if (isPOST()) {
+                if (request.isPost()) {
                     OutputStream os = conn.getOutputStream();
-                    Log.d(TAG, conn.getURL().getHost() + "\tIn write body");
                     URL connUrl = conn.getURL();
-                    String actionUrl = connUrl.getProtocol() +"://"+ connUrl.getHost() + (connUrl.getPort() == -1?"":":"+connUrl.getPort()) + connUrl.getFile();
+                    String actionUrl = connUrl.getProtocol() + "://" + connUrl.getHost() +
+                            (connUrl.getPort() == -1 ? "" : ":" + connUrl.getPort()) +
+                            connUrl.getFile();
                     Log.d(TAG, "Submit Url: " + actionUrl);
-                    writeForm(os, actionUrl);
+                    writeForm(os, actionUrl, request.form.json);
                     os.close();
-                    mPosted = true;
-                    mUrlHost = "";
+                    // Signed in or on to the next step. Requests go where the page says again.
+                    mHostRewrite.set(null);
                 }
 
                 // Read input
-                String charset = conn.getContentEncoding() != null ? conn.getContentEncoding() : Charset.defaultCharset().displayName();
-                String mime = conn.getContentType();
-                byte[] pageContents = IOUtils.readFully(conn.getInputStream());
-                String newUrlHost = conn.getURL().getHost();
-                if (newUrlHost != currUrlHost) {
-                    mPosted = false;
-                    mUrlHost = newUrlHost;
+                final String mime = conn.getContentType();
+                final String charset = getCharset(mime);
+                final InputStream in = conn.getInputStream();
+                final String newUrlHost = conn.getURL().getHost();
+                if (!newUrlHost.equalsIgnoreCase(requestUrl.getHost())) {
+                    // Redirected to another host. Send later requests for the old one there.
+                    mHostRewrite.set(
+                            new InterceptContext.HostRewrite(requestUrl.getHost(), newUrlHost));
                 }
 
-                // Perform JS injection
-                if (!isPOST() && mime.contains("text/html")) {
-                    Log.d(TAG, "Injecting JS code");
-                    pageContents = PostInterceptJavascriptInterface
-                            .enableIntercept(mContext, pageContents)
-                            .getBytes(charset);
+                final ResourceType type = requested.forResponse(mime);
+                httpClient.revalidateIfStale(conn, currUrl);
+
+                // Record the sign-in, so that NetworkMonitor can replay all of it next time.
+                // Sub-resources only matter for the cookies they set.
+                final List<String> setCookies = conn.getHeaderFields().get("Set-Cookie");
+                if (request.isPost() || type == ResourceType.DOCUMENT) {
+                    if (!request.isPost()) mScriptRecorder.addGet(currUrl);
+                    mScriptRecorder.addCookies(newUrlHost, setCookies);
+                } else {
+                    mScriptRecorder.addCookieSource(conn.getURL(), setCookies);
                 }
 
-                // Convert the contents and return
-                InputStream isContents = new ByteArrayInputStream(pageContents);
-
-                if (mime.contains("text/html")) {
-                    mime = "text/html";
+                final URL permitFor = opened;
+                body = new PassThroughInputStream(in, new PassThroughInputStream.Listener() {
+                    @Override
+                    public void onFinished(long bytesRead) {
+                        httpClient.release(permitFor);
+                        mInterceptStats.record(type, SystemClock.elapsedRealtime() - startMs,
+                                bytesRead);
+                    }
+                });
+
+                // Only HTML is rewritten. Stream everything else to the WebView as it arrives.
+                if (type != ResourceType.DOCUMENT) {
+                    final WebResourceResponse response =
+                            new WebResourceResponse(getMimeType(mime), charset, body);
+                    handedOff = true;
+                    return response;
                 }
-                return new WebResourceResponse(mime, charset,
-                        isContents);
+
+                // Perform JS injection as the page streams to the WebView, which starts
+                // rendering before the whole page has arrived. Pages after a form post get it
+                // too, since sign-ins often take more than one form.
+                final InputStream page = PostInterceptJavascriptInterface.enableIntercept(
+                        mContext, body, new ScriptInjectingInputStream.Listener() {
+                            @Override
+                            public void onFinished(Map<String, String> hiddenFields) {
+                                // For the next form the script records.
+                                mScriptRecorder.setHiddenFields(hiddenFields);
+                            }
+                        });
+                final WebResourceResponse response =
+                        new WebResourceResponse("text/html", charset, page);
+                handedOff = true;
+                return response;
             } catch (FileNotFoundException e) {
                 Log.e(TAG, "Error 404: " + e.getMessage());
                 e.printStackTrace();
@@ -486,22 +577,29 @@ public class CaptivePortalLoginActivity extends Activity {
                 e.printStackTrace();
 
                 return null;        // Let Android try handling things itself
+            } finally {
+                if (!handedOff && body != null) {
+                    // Gives the permit back.
+                    try {
+                        body.close();
+                    } catch (IOException ignored) {
+                    }
+                } else if (!handedOff && opened != null) {
+                    httpClient.release(opened);
+                }
             }
         }
 
-        private boolean isPOST() {
-            return (mNextFormRequestContents != null);
-        }
-
-        protected void writeForm(OutputStream out, String actionUrl) {
+        protected void writeForm(OutputStream out, String actionUrl, String formJson) {
             try {
                 Log.d(TAG, "writing form" + actionUrl);
-                JSONArray jsonPars = new JSONArray(mNextFormRequestContents);
+                JSONArray jsonPars = new JSONArray(formJson);
 
                 // We assume to be dealing with a very simple form here, so no file uploads or anything
                 // are possible for reasons of clarity
                 //String submitUrl = baseUrl;
                 FormEncoding.Builder m = new FormEncoding.Builder();
+                final List<String[]> fields = new ArrayList<>();
                 for (int i = 0; i < jsonPars.length(); i++) {
                     JSONObject jsonPar = jsonPars.getJSONObject(i);
                     if (jsonPar.getString("name").equals("action")) {
@@ -517,67 +615,25 @@ public class CaptivePortalLoginActivity extends Activity {
 //                            submitUrl = action;
 //                        }
                     } else {
-                        Log.d(TAG, jsonPar.getString("name") + ":" + jsonPar.getString("value"));
                         m.add(jsonPar.getString("name"), jsonPar.getString("value"));
+                        fields.add(new String[] {
+                                jsonPar.getString("name"), jsonPar.getString("value") });
                     }
                 }
 
                 //m.build().writeBodyTo(out);
-                Log.d(TAG, "Getting SSID");
-
-                String ssid = "temp";
-                WifiManager wifiManager = (WifiManager) mContext.getSystemService(mContext.WIFI_SERVICE);
-                WifiInfo wifiInfo = wifiManager.getConnectionInfo();
-                if (wifiInfo.getSupplicantState() == SupplicantState.COMPLETED) {
-                    ssid = wifiInfo.getSSID();
-                }
-
-                //Writing externally
-
-                //File rootSD = Environment.getExternalStorageDirectory();
-                File dir=new File("/sdcard/R2D2");
-                dir.mkdir();
-                if(!dir.canWrite()) {
-                    Log.d(TAG, "downloads cant write");
-//                    Toast.makeText(mContext, "cant write", Toast.LENGTH_SHORT).show();
-                }
-                else {
-                    Log.d(TAG, "downloads path:" + dir.getAbsolutePath());
-//                    Toast.makeText(mContext, "write", Toast.LENGTH_SHORT).show();
-                }
-                File ssidFile = new File(dir,ssid);
-
-                if(!ssidFile.exists()) {
-                    Log.d(TAG,"file does not exist, creating one");
-                    ssidFile.createNewFile();
-                    if(!ssidFile.canWrite()) {
-                        Log.d(TAG, "still no write");
-                    }
-                    else {
-                        Log.d(TAG,"writing in "+ssidFile.getAbsolutePath());
-                    }
-                }
-                FileOutputStream externalFileOutputSystem = new FileOutputStream(ssidFile);
-                m.build().writeBodyTo(externalFileOutputSystem);
-                //Log.d(TAG, submitUrl + "\t Submit URL before writing to file");
-                externalFileOutputSystem.write(("\n" + actionUrl).getBytes());
+                final String ssid = getSsid();
+                mScriptRecorder.addPost(new URL(actionUrl), fields);
+
+                final ByteArrayOutputStream params = new ByteArrayOutputStream();
+                m.build().writeBodyTo(params);
+                final String redirectHost = mRedirectHost;
+                ProfileStore.getInstance(mContext).put(new ProfileStore.Profile(ssid,
+                        params.toString("UTF-8"), actionUrl, null, redirectHost, getOui()));
                 m.build().writeBodyTo(out);
-                externalFileOutputSystem.close();
-
-                // Writing internally
-
-                FileOutputStream fileOutputStream = mContext.openFileOutput(ssid, mContext.MODE_PRIVATE);
-                //Log.d(TAG, "Writing to " + fileOutputStream.);
-                m.build().writeBodyTo(fileOutputStream);
-                Log.d(TAG, actionUrl + "\t Submit URL before writing to file");
-                fileOutputStream.write(("\n" + actionUrl).getBytes());
-                m.build().writeBodyTo(out);
-                fileOutputStream.close();
-                File fSsid = new File(mContext.getDataDir(),ssid);
-                Log.d(TAG, "permission changed?: " + fSsid.setReadable(true,false));
-                Runtime.getRuntime().exec("chmod 666 " + fSsid.getAbsolutePath());
-                Log.d(TAG,"change the permissions" + fSsid.getAbsolutePath());
-                mNextFormRequestContents = null;
+                // Tell NetworkMonitor's cache of stored forms to reload this one.
+                mContext.getContentResolver().notifyChange(
+                        MyContentProvider.profileUri(ssid, redirectHost), null);
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
                 Log.e(TAG, "file not found");
@@ -586,11 +642,99 @@ public class CaptivePortalLoginActivity extends Activity {
             }
         }
 
-        private String mNextFormRequestContents = null;
+        private String getSsid() {
+            Log.d(TAG, "Getting SSID");
+            String ssid = "temp";
+            WifiInfo wifiInfo = getWifiInfo();
+            if (wifiInfo.getSupplicantState() == SupplicantState.COMPLETED) {
+                ssid = wifiInfo.getSSID();
+            }
+            return ssid;
+        }
+
+        /** Returns the access point's OUI, the first three octets of its BSSID, or null. */
+        private String getOui() {
+            final WifiInfo wifiInfo = getWifiInfo();
+            final String bssid = wifiInfo.getBSSID();
+            if (wifiInfo.getSupplicantState() != SupplicantState.COMPLETED || bssid == null
+                    || bssid.length() < 8) {
+                return null;
+            }
+            return bssid.substring(0, 8).toLowerCase(Locale.US);
+        }
+
+        private WifiInfo getWifiInfo() {
+            WifiManager wifiManager =
+                    (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+            return wifiManager.getConnectionInfo();
+        }
+
+        /**
+         * Remembers where the portal first redirected the connectivity check, which is what
+         * NetworkMonitor sees too. Called off the main thread.
+         */
+        public void setRedirect(String location) {
+            if (mRedirectHost != null || location == null) return;
+            try {
+                mRedirectHost = new URL(mURL, location).getHost().toLowerCase(Locale.US);
+            } catch (MalformedURLException e) {
+                Log.w(TAG, "Bad redirect: " + location);
+            }
+        }
+
+        /** Returns a Content-Type without its parameters, or null. */
+        private String getMimeType(String contentType) {
+            if (contentType == null) return null;
+            final int semicolon = contentType.indexOf(';');
+            return (semicolon != -1) ? contentType.substring(0, semicolon).trim() : contentType;
+        }
+
+        /** Returns the charset parameter of a Content-Type, or null to let the WebView sniff. */
+        private String getCharset(String contentType) {
+            if (contentType == null) return null;
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    return param.substring(8).trim().replace("\"", "");
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Stores the whole sign-in alongside the last form, once the portal has let us through.
+         * Called off the main thread.
+         */
+        public void saveLoginScript() {
+            if (mScriptSaved || !mScriptRecorder.hasPost()) return;
+            mScriptSaved = true;
+            final String ssid = getSsid();
+            final ProfileStore store = ProfileStore.getInstance(mContext);
+            final ProfileStore.Profile form = store.get(ssid, mRedirectHost);
+            if (form == null) return;
+            try {
+                store.put(new ProfileStore.Profile(ssid, form.params, form.actionUrl,
+                        mScriptRecorder.encode(), form.redirectHost, form.oui));
+            } catch (IOException e) {
+                Log.e(TAG, "Error storing login script", e);
+                return;
+            }
+            mContext.getContentResolver().notifyChange(
+                    MyContentProvider.profileUri(ssid, form.redirectHost), null);
+        }
 
-        public void nextMessageIsFormRequest(String json) {
-            Log.d(TAG, "method invoked: " + json);
-            mNextFormRequestContents = json;
+        private final LoginScriptRecorder mScriptRecorder = new LoginScriptRecorder();
+        private volatile boolean mScriptSaved;
+        private volatile String mRedirectHost;
+        // Forms submitted in the page, until the request that sends them is intercepted.
+        private final FormSubmissions mForms = new FormSubmissions();
+        // Set when the portal redirects to another host. Replaced, never modified.
+        private final AtomicReference<InterceptContext.HostRewrite> mHostRewrite =
+                new AtomicReference<>();
+
+        /** Called from the page's JavaScript when a form is submitted. */
+        public void nextMessageIsFormRequest(String json, String method) {
+            mForms.submit(json, method);
         }
 
 ////////////
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands a form submitted in the page to the one intercepted request that sends it.
+ *
+ * The WebView intercepts requests on several threads at once, so a form must not go to
+ * whichever request happens to come next: a stylesheet or image loading alongside the
+ * submission would take it. A form goes only to a request for its action URL, or, if the page
+ * did not say where it submits, to the next document request. It is taken with a
+ * compare-and-set, so exactly one request sends it.
+ *
+ * Only POST forms are handed off. The WebView sends a GET form's fields in the URL itself, so
+ * its request goes through as it is.
+ */
+public class FormSubmissions {
+    private static final String TAG = "CaptivePortalLogin";
+    // A form not sent by then was never submitted, e.g. because a script cancelled it.
+    static final long MAX_PENDING_MS = 30 * 1000;
+
+    /** A form submitted in the page and not sent yet. */
+    public static final class PendingForm {
+        // The form's fields as JSON, from interceptheader.html.
+        public final String json;
+        // Where the form submits, or null if unknown.
+        public final URL action;
+        // Upper-case, GET if the form did not say.
+        public final String method;
+        final long submittedAtMs = SystemClock.elapsedRealtime();
+
+        PendingForm(String json, URL action, String method) {
+            this.json = json;
+            this.action = action;
+            this.method = method;
+        }
+
+        public boolean isPost() {
+            return "POST".equals(method);
+        }
+
+        /** Whether a request for {@code url} is the one that sends this form. */
+        boolean isSentBy(URL url, ResourceType requested) {
+            if (action == null) return requested == ResourceType.DOCUMENT;
+            return url.getProtocol().equals(action.getProtocol())
+                    && url.getHost().equalsIgnoreCase(action.getHost())
+                    && url.getPort() == action.getPort()
+                    && url.getFile().equals(action.getFile());
+        }
+    }
+
+    private final AtomicReference<PendingForm> mPending = new AtomicReference<>();
+
+    /**
+     * Records a form submitted in the page, replacing any not sent yet.
+     *
+     * @param method the form's method attribute, or null if it has none.
+     */
+    public void submit(String json, String method) {
+        final String upperMethod = (method != null && !method.trim().isEmpty())
+                ? method.trim().toUpperCase(Locale.US) : "GET";
+        final PendingForm form = new PendingForm(json, getAction(json), upperMethod);
+        // A GET form replaces one not sent yet all the same, since the page has moved on.
+        mPending.set(form.isPost() ? form : null);
+    }
+
+    /** Forgets the form not sent yet, if any. */
+    public void clear() {
+        mPending.set(null);
+    }
+
+    /**
+     * Returns the pending form if a request for {@code url} is the one that sends it, and
+     * removes it so that no other request does. Otherwise returns null.
+     */
+    public PendingForm take(URL url, ResourceType requested) {
+        while (true) {
+            final PendingForm form = mPending.get();
+            if (form == null) return null;
+            if (SystemClock.elapsedRealtime() - form.submittedAtMs > MAX_PENDING_MS) {
+                mPending.compareAndSet(form, null);
+                continue;
+            }
+            if (!form.isSentBy(url, requested)) return null;
+            if (mPending.compareAndSet(form, null)) return form;
+        }
+    }
+
+    /** Returns the URL in the form's "action" entry, or null. */
+    private static URL getAction(String json) {
+        try {
+            final JSONArray fields = new JSONArray(json);
+            for (int i = 0; i < fields.length(); i++) {
+                final JSONObject field = fields.getJSONObject(i);
+                if (field.getString("name").equals("action")) {
+                    return new URL(field.getString("value"));
+                }
+            }
+        } catch (JSONException | MalformedURLException e) {
+            Log.w(TAG, "No form action: " + e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks up the hidden inputs of an HTML page from its bytes as they go by, so that the login
+ * script can tell which submitted values the portal handed out.
+ *
+ * This is a tokenizer, not a parser: it only recognizes tags, attributes, comments and the raw
+ * text of script and style elements, and builds no tree. It keeps nothing of the page but the
+ * tag or attribute it is in the middle of, so a tag split across reads is picked up whole.
+ *
+ * Tag and attribute names are ASCII. Values are decoded as UTF-8, which is what portals serve.
+ */
+public class HiddenFieldScanner {
+    // Longest attribute value kept. Longer ones are truncated.
+    private static final int MAX_VALUE_BYTES = 4096;
+    // Longest tag or attribute name told apart. Longer ones cannot be "input", "type"...
+    private static final int MAX_NAME_LENGTH = 16;
+    // Pages with more hidden inputs than this are not forms anyone replays.
+    private static final int MAX_FIELDS = 256;
+
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1;        // After '<'.
+    private static final int BANG = 2;            // After "<!".
+    private static final int BANG_DASH = 3;       // After "<!-".
+    private static final int COMMENT = 4;         // In "<!-- ... -->".
+    private static final int SKIP_TAG = 5;        // In a declaration or end tag, up to '>'.
+    private static final int TAG_NAME = 6;
+    private static final int BEFORE_ATTR = 7;
+    private static final int ATTR_NAME = 8;
+    private static final int AFTER_ATTR_NAME = 9;
+    private static final int BEFORE_VALUE = 10;
+    private static final int QUOTED_VALUE = 11;
+    private static final int UNQUOTED_VALUE = 12;
+    private static final int RAW_TEXT = 13;       // In a script or style element.
+
+    private final Map<String, String> mFields = new HashMap<>();
+    private int mState = TEXT;
+    private final StringBuilder mTagName = new StringBuilder();
+    private final StringBuilder mAttrName = new StringBuilder();
+    private final ByteArrayOutputStream mValue = new ByteArrayOutputStream();
+    private byte mQuote;
+    // Dashes seen in a row in a comment.
+    private int mDashes;
+    // The end tag raw text ends with, e.g. "</script", and how much of it has been seen.
+    private String mRawTextEnd;
+    private int mRawTextMatched;
+    // The type, name and value of the input tag being read.
+    private String mType;
+    private String mName;
+    private String mInputValue;
+
+    /** Scans the next {@code len} bytes of the page. */
+    public void feed(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            feed(b[i]);
+        }
+    }
+
+    /** Returns the names and values of the hidden inputs seen so far. */
+    public Map<String, String> getFields() {
+        return new HashMap<>(mFields);
+    }
+
+    private void feed(byte c) {
+        switch (mState) {
+            case TEXT:
+                if (c == '<') mState = TAG_OPEN;
+                break;
+            case TAG_OPEN:
+                if (c == '!') {
+                    mState = BANG;
+                } else if (c == '/') {
+                    mState = SKIP_TAG;
+                } else if (isLetter(c)) {
+                    mTagName.setLength(0);
+                    appendName(mTagName, c);
+                    mState = TAG_NAME;
+                } else if (c != '<') {
+                    // A '<' in text.
+                    mState = TEXT;
+                }
+                break;
+            case BANG:
+                mState = (c == '-') ? BANG_DASH : SKIP_TAG;
+                if (c == '>') mState = TEXT;
+                break;
+            case BANG_DASH:
+                mState = (c == '-') ? COMMENT : SKIP_TAG;
+                mDashes = 0;
+                if (c == '>') mState = TEXT;
+                break;
+            case COMMENT:
+                if (c == '>' && mDashes >= 2) mState = TEXT;
+                mDashes = (c == '-') ? mDashes + 1 : 0;
+                break;
+            case SKIP_TAG:
+                if (c == '>') mState = TEXT;
+                break;
+            case TAG_NAME:
+                if (isSpace(c) || c == '/') {
+                    startAttributes();
+                } else if (c == '>') {
+                    startAttributes();
+                    endStartTag();
+                } else {
+                    appendName(mTagName, c);
+                }
+                break;
+            case BEFORE_ATTR:
+                if (c == '>') {
+                    endStartTag();
+                } else if (!isSpace(c) && c != '/') {
+                    startAttribute(c);
+                }
+                break;
+            case ATTR_NAME:
+                if (isSpace(c)) {
+                    mState = AFTER_ATTR_NAME;
+                } else if (c == '=') {
+                    mState = BEFORE_VALUE;
+                } else if (c == '>') {
+                    endAttribute();
+                    endStartTag();
+                } else if (c == '/') {
+                    endAttribute();
+                    mState = BEFORE_ATTR;
+                } else {
+                    appendName(mAttrName, c);
+                }
+                break;
+            case AFTER_ATTR_NAME:
+                if (c == '=') {
+                    mState = BEFORE_VALUE;
+                } else if (c == '>') {
+                    endAttribute();
+                    endStartTag();
+                } else if (!isSpace(c)) {
+                    endAttribute();
+                    if (c == '/') {
+                        mState = BEFORE_ATTR;
+                    } else {
+                        startAttribute(c);
+                    }
+                }
+                break;
+            case BEFORE_VALUE:
+                if (c == '"' || c == '\'') {
+                    mQuote = c;
+                    mState = QUOTED_VALUE;
+                } else if (c == '>') {
+                    endAttribute();
+                    endStartTag();
+                } else if (!isSpace(c)) {
+                    appendValue(c);
+                    mState = UNQUOTED_VALUE;
+                }
+                break;
+            case QUOTED_VALUE:
+                if (c == mQuote) {
+                    endAttribute();
+                    mState = BEFORE_ATTR;
+                } else {
+                    appendValue(c);
+                }
+                break;
+            case UNQUOTED_VALUE:
+                if (isSpace(c)) {
+                    endAttribute();
+                    mState = BEFORE_ATTR;
+                } else if (c == '>') {
+                    endAttribute();
+                    endStartTag();
+                } else {
+                    appendValue(c);
+                }
+                break;
+            case RAW_TEXT:
+                // Its text may contain anything that looks like tags.
+                if (Character.toLowerCase((char) c) == mRawTextEnd.charAt(mRawTextMatched)) {
+                    if (++mRawTextMatched == mRawTextEnd.length()) mState = SKIP_TAG;
+                } else {
+                    mRawTextMatched = (c == '<') ? 1 : 0;
+                }
+                break;
+        }
+    }
+
+    private void startAttributes() {
+        mType = null;
+        mName = null;
+        mInputValue = null;
+        mState = BEFORE_ATTR;
+    }
+
+    private void startAttribute(byte first) {
+        mAttrName.setLength(0);
+        mValue.reset();
+        appendName(mAttrName, first);
+        mState = ATTR_NAME;
+    }
+
+    /** Keeps the attribute just read, if it is one of an input's that matter. */
+    private void endAttribute() {
+        if (!isInput()) return;
+        final String attr = mAttrName.toString();
+        // The first of two attributes with the same name wins, as in browsers.
+        if (attr.equals("type") && mType == null) {
+            mType = new String(mValue.toByteArray(), StandardCharsets.US_ASCII);
+        } else if (attr.equals("name") && mName == null) {
+            mName = unescape(new String(mValue.toByteArray(), StandardCharsets.UTF_8));
+        } else if (attr.equals("value") && mInputValue == null) {
+            mInputValue = unescape(new String(mValue.toByteArray(), StandardCharsets.UTF_8));
+        }
+        mValue.reset();
+    }
+
+    private void endStartTag() {
+        final String tag = mTagName.toString();
+        mState = TEXT;
+        if (isInput()) {
+            if (mType != null && mType.trim().equalsIgnoreCase("hidden") && mName != null
+                    && !mName.isEmpty() && mFields.size() < MAX_FIELDS) {
+                mFields.put(mName, (mInputValue != null) ? mInputValue : "");
+            }
+        } else if (tag.equals("script") || tag.equals("style")) {
+            mRawTextEnd = "</" + tag;
+            mRawTextMatched = 0;
+            mState = RAW_TEXT;
+        }
+    }
+
+    private boolean isInput() {
+        return mTagName.length() == 5 && mTagName.toString().equals("input");
+    }
+
+    private void appendValue(byte c) {
+        // Only an input's values are kept.
+        if (isInput() && mValue.size() < MAX_VALUE_BYTES) mValue.write(c);
+    }
+
+    private static void appendName(StringBuilder name, byte c) {
+        if (name.length() <= MAX_NAME_LENGTH) name.append(Character.toLowerCase((char) c));
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isLetter(byte c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /** Decodes the character references that show up in attribute values. */
+    private static String unescape(String s) {
+        if (s.indexOf('&') < 0) return s;
+        final StringBuilder out = new StringBuilder(s.length());
+        int i = 0;
+        while (i < s.length()) {
+            final char c = s.charAt(i);
+            final int semicolon = s.indexOf(';', i);
+            if (c != '&' || semicolon < 0 || semicolon - i > 10) {
+                out.append(c);
+                i++;
+                continue;
+            }
+            final int decoded = decodeEntity(s.substring(i + 1, semicolon));
+            if (decoded < 0) {
+                out.append(c);
+                i++;
+                continue;
+            }
+            out.appendCodePoint(decoded);
+            i = semicolon + 1;
+        }
+        return out.toString();
+    }
+
+    private static int decodeEntity(String entity) {
+        switch (entity) {
+            case "amp": return '&';
+            case "quot": return '"';
+            case "apos": return '\'';
+            case "lt": return '<';
+            case "gt": return '>';
+        }
+        if (entity.length() < 2 || entity.charAt(0) != '#') return -1;
+        try {
+            final int codePoint = (entity.charAt(1) == 'x' || entity.charAt(1) == 'X')
+                    ? Integer.parseInt(entity.substring(2), 16)
+                    : Integer.parseInt(entity.substring(1));
+            return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * What one intercepted request needs to know, fixed when the WebView asks for it. Each request
+ * works from its own context rather than from fields shared with the requests intercepted
+ * alongside it on other threads.
+ */
+public final class InterceptContext {
+    /** Sends requests for one host to another, after the portal redirected there. */
+    public static final class HostRewrite {
+        public final String from;
+        public final String to;
+
+        public HostRewrite(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    // What the WebView asked for.
+    public final URL url;
+    // What is requested, after any host rewrite.
+    public final URL target;
+    public final ResourceType requested;
+    // The POST form this request sends, or null for a GET.
+    public final FormSubmissions.PendingForm form;
+    public final long startMs;
+
+    public InterceptContext(URL url, HostRewrite rewrite, ResourceType requested,
+            FormSubmissions.PendingForm form, long startMs) throws MalformedURLException {
+        this.url = url;
+        this.target = (rewrite != null && rewrite.from.equalsIgnoreCase(url.getHost()))
+                ? new URL(url.getProtocol(), rewrite.to, url.getPort(), url.getFile()) : url;
+        this.requested = requested;
+        this.form = form;
+        this.startMs = startMs;
+    }
+
+    public boolean isPost() {
+        return form != null && form.isPost();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import java.util.Locale;
+
+/**
+ * How long the requests the portal's pages make take, by {@link ResourceType}, from when the
+ * WebView asks for them until their body has been read.
+ */
+public class InterceptStats {
+    private final int[] mCounts = new int[ResourceType.values().length];
+    private final long[] mTotalMs = new long[ResourceType.values().length];
+    private final long[] mMaxMs = new long[ResourceType.values().length];
+    private final long[] mBytes = new long[ResourceType.values().length];
+
+    public synchronized void record(ResourceType type, long latencyMs, long bytes) {
+        final int i = type.ordinal();
+        mCounts[i]++;
+        mTotalMs[i] += latencyMs;
+        mMaxMs[i] = Math.max(mMaxMs[i], latencyMs);
+        mBytes[i] += bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder s = new StringBuilder();
+        for (ResourceType type : ResourceType.values()) {
+            final int i = type.ordinal();
+            if (mCounts[i] == 0) continue;
+            if (s.length() > 0) s.append(", ");
+            s.append(type.name().toLowerCase(Locale.US)).append(" n=").append(mCounts[i])
+                    .append(" avg=").append(mTotalMs[i] / mCounts[i]).append("ms max=")
+                    .append(mMaxMs[i]).append("ms ").append(mBytes[i] / 1024).append("KB");
+        }
+        return s.toString();
+    }
+}
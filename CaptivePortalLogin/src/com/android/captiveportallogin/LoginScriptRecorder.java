@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records the pages and forms of a sign-in as a login script that NetworkMonitor can replay the
+ * next time the device joins the network.
+ *
+ * The script is text: a "loginscript 1" line, then one line per request with these tab-separated
+ * fields, which must match NetworkMonitor's LoginScript:
+ *
+ *   method, URL, comma-separated names of the cookies the request needs, form body template
+ *
+ * Form values that came from a hidden input on the page before are recorded as {{name}}, so that
+ * the replay uses the value the portal hands out that time instead of this session's.
+ *
+ * Sub-resources are not steps of their own. They are only remembered as the source of the
+ * cookies they set, and fetched by the script just before the first step that needs one of
+ * those cookies.
+ */
+public class LoginScriptRecorder {
+    private static final String HEADER = "loginscript 1";
+    // Sign-ins are a handful of pages. Past this, older pages are dropped to make room, but
+    // forms never are.
+    private static final int MAX_STEPS = 16;
+
+    /** A cookie the portal set, and where it will be sent. */
+    private static final class CookieScope {
+        final String name;
+        final String domain;
+        final boolean includeSubdomains;
+        // The sub-resource that set the cookie, until a step has fetched it. Null if a step set
+        // the cookie.
+        URL source;
+
+        CookieScope(String name, String domain, boolean includeSubdomains, URL source) {
+            this.name = name;
+            this.domain = domain;
+            this.includeSubdomains = includeSubdomains;
+            this.source = source;
+        }
+
+        boolean matches(String host) {
+            return host.equals(domain) || (includeSubdomains && host.endsWith("." + domain));
+        }
+    }
+
+    private final List<String> mSteps = new ArrayList<>();
+    private final List<CookieScope> mCookies = new ArrayList<>();
+    private Map<String, String> mHiddenFields = new HashMap<>();
+    private boolean mHasPost;
+    // Set when a form could not be recorded, after which the script would not sign in.
+    private boolean mIncomplete;
+
+    /** Records a page fetched with GET. */
+    public synchronized void addGet(URL url) {
+        addStep("GET", url, "");
+    }
+
+    /**
+     * Records a form submitted with POST.
+     *
+     * @param fields the submitted names and values, in order.
+     */
+    public synchronized void addPost(URL url, List<String[]> fields) {
+        final StringBuilder template = new StringBuilder();
+        for (String[] field : fields) {
+            if (template.length() > 0) template.append('&');
+            template.append(encode(field[0])).append('=');
+            if (field[1].equals(mHiddenFields.get(field[0]))) {
+                template.append("{{").append(encode(field[0])).append("}}");
+            } else {
+                template.append(encode(field[1]));
+            }
+        }
+        if (addStep("POST", url, template.toString())) {
+            mHasPost = true;
+        } else {
+            mIncomplete = true;
+        }
+    }
+
+    /** Records the hidden inputs of the last HTML page fetched, for the next form. */
+    public synchronized void setHiddenFields(Map<String, String> hiddenFields) {
+        mHiddenFields = hiddenFields;
+    }
+
+    /** Records the cookies set by a response from {@code host} to a page or form. */
+    public synchronized void addCookies(String host, List<String> setCookies) {
+        addCookies(host, setCookies, null);
+    }
+
+    /**
+     * Records the cookies set by a sub-resource fetched from {@code url}. The sub-resource is
+     * only fetched when replaying if a later step needs one of them.
+     */
+    public synchronized void addCookieSource(URL url, List<String> setCookies) {
+        addCookies(url.getHost(), setCookies, url);
+    }
+
+    /** Whether a form was submitted. Until then there is nothing worth replaying. */
+    public synchronized boolean hasPost() {
+        return mHasPost && !mIncomplete;
+    }
+
+    /** Returns the script recorded so far. */
+    public synchronized String encode() {
+        final StringBuilder script = new StringBuilder(HEADER).append('\n');
+        for (String step : mSteps) script.append(step).append('\n');
+        return script.toString();
+    }
+
+    private void addCookies(String host, List<String> setCookies, URL source) {
+        if (setCookies == null) return;
+        host = host.toLowerCase(Locale.US);
+        for (String setCookie : setCookies) {
+            final String[] parts = setCookie.split(";");
+            final int eq = parts[0].indexOf('=');
+            if (eq <= 0) continue;
+            final String name = parts[0].substring(0, eq).trim();
+            String domain = host;
+            boolean includeSubdomains = false;
+            for (int i = 1; i < parts.length; i++) {
+                final String attr = parts[i].trim();
+                if (attr.regionMatches(true, 0, "domain=", 0, 7)) {
+                    domain = attr.substring(7).trim().toLowerCase(Locale.US);
+                    if (domain.startsWith(".")) domain = domain.substring(1);
+                    includeSubdomains = true;
+                }
+            }
+            mCookies.add(new CookieScope(name, domain, includeSubdomains, source));
+        }
+    }
+
+    /**
+     * Adds a step, preceded by fetches of the sub-resources that set cookies it needs. Returns
+     * false if there was no room for it.
+     */
+    private boolean addStep(String method, URL url, String bodyTemplate) {
+        final String host = url.getHost().toLowerCase(Locale.US);
+        final LinkedHashSet<String> cookies = new LinkedHashSet<>();
+        final LinkedHashSet<URL> sources = new LinkedHashSet<>();
+        for (CookieScope cookie : mCookies) {
+            if (!cookie.matches(host)) continue;
+            cookies.add(cookie.name);
+            if (cookie.source != null) sources.add(cookie.source);
+        }
+        for (URL source : sources) {
+            if (!makeRoom()) break;
+            mSteps.add(encodeStep("GET", source, "", ""));
+            for (CookieScope cookie : mCookies) {
+                if (source.equals(cookie.source)) cookie.source = null;
+            }
+        }
+        if (!makeRoom()) return false;
+        final StringBuilder names = new StringBuilder();
+        for (String name : cookies) {
+            if (names.length() > 0) names.append(',');
+            names.append(name);
+        }
+        mSteps.add(encodeStep(method, url, names.toString(), bodyTemplate));
+        return true;
+    }
+
+    /**
+     * Makes room for one more step if the script is full, by dropping the oldest GET that the
+     * step after it does not take hidden fields from. Returns false if there is none.
+     */
+    private boolean makeRoom() {
+        if (mSteps.size() < MAX_STEPS) return true;
+        // The last step may be the page the next form comes from.
+        for (int i = 0; i < mSteps.size() - 1; i++) {
+            if (mSteps.get(i).startsWith("GET\t") && !mSteps.get(i + 1).contains("{{")) {
+                mSteps.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String encodeStep(String method, URL url, String cookies,
+            String bodyTemplate) {
+        // URLs and form-encoded bodies never contain tabs or newlines.
+        return method + '\t' + url + '\t' + cookies + '\t' + bodyTemplate;
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -3,17 +3,64 @@ package com.android.captiveportallogin;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
-import android.os.ParcelFileDescriptor;
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Created by elroy on 12/7/16.
  */
 
 public class MyContentProvider extends ContentProvider {
+    // Stored login forms are at content://AUTHORITY/<SSID>/<redirect host>, or at
+    // content://AUTHORITY/<SSID> if the portal's redirect host is not known. A query for
+    // content://AUTHORITY/<SSID> returns every form stored for the SSID. NetworkMonitor caches
+    // them and relies on a change notification for a form's URI whenever one is stored.
+    public static final String AUTHORITY = "com.android.captiveportallogin";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+
+    // Columns returned by query(). Must match NetworkMonitor's LoginProfileCache.
+    public static final String COLUMN_SSID = "ssid";
+    public static final String COLUMN_PARAMS = "params";
+    public static final String COLUMN_ACTION_URL = "action_url";
+    // Null unless the whole sign-in was recorded. See LoginScriptRecorder.
+    public static final String COLUMN_SCRIPT = "script";
+    // Together with the action URL's host, these fingerprint the portal, so that NetworkMonitor
+    // can match a login to networks with other SSIDs behind the same portal. Null if unknown.
+    public static final String COLUMN_REDIRECT_HOST = "redirect_host";
+    public static final String COLUMN_OUI = "oui";
+
+    // The cookies portals have set are at content://AUTHORITY/cookies, which NetworkMonitor reads
+    // before replaying a login and adds to afterwards. SSIDs from WifiInfo are quoted or hex, so
+    // this cannot clash with one. Columns must match NetworkMonitor's StoredPortalCookies.
+    public static final String COOKIES_PATH = "cookies";
+    public static final Uri COOKIES_URI = Uri.withAppendedPath(CONTENT_URI, COOKIES_PATH);
+    public static final String COLUMN_DOMAIN = "domain";
+    public static final String COLUMN_NAME = "name";
+    public static final String COLUMN_VALUE = "value";
+    public static final String COLUMN_INCLUDE_SUBDOMAINS = "include_subdomains";
+    // 1 if the cookie is only sent over HTTPS. Optional when inserting, 0 if absent.
+    public static final String COLUMN_SECURE = "secure";
+    // Wall clock time in milliseconds.
+    public static final String COLUMN_EXPIRES = "expires";
+
+    /**
+     * Returns the URI of the form stored for {@code ssid} behind the portal at
+     * {@code redirectHost}, which may be null, and which is also notified on changes.
+     */
+    public static Uri profileUri(String ssid, String redirectHost) {
+        final Uri uri = Uri.withAppendedPath(CONTENT_URI, Uri.encode(ssid));
+        return (redirectHost != null) ? Uri.withAppendedPath(uri, Uri.encode(redirectHost)) : uri;
+    }
+
+    private static boolean isCookiesUri(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        return segments.size() == 1 && COOKIES_PATH.equals(segments.get(0));
+    }
 
     @Override
     public boolean onCreate() {
@@ -25,34 +72,88 @@ public class MyContentProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * Returns the stored form for the SSID and redirect host in {@code uri}, every form stored
+     * for the SSID if there is no redirect host, or every stored form if there is no SSID either,
+     * as rows of COLUMN_SSID, COLUMN_PARAMS, COLUMN_ACTION_URL, COLUMN_SCRIPT,
+     * COLUMN_REDIRECT_HOST and COLUMN_OUI.
+     */
     @Override
     public Cursor query(Uri uri, String[] strings, String s, String[] strings2, String s2) {
-        throw new UnsupportedOperationException("Not Supported by this provider");
+        if (isCookiesUri(uri)) return queryCookies();
+        final String[] columns = { COLUMN_SSID, COLUMN_PARAMS, COLUMN_ACTION_URL, COLUMN_SCRIPT,
+                COLUMN_REDIRECT_HOST, COLUMN_OUI };
+        final MatrixCursor cursor = new MatrixCursor(columns);
+        final ProfileStore store = ProfileStore.getInstance(getContext());
+        final List<String> segments = uri.getPathSegments();
+        final List<ProfileStore.Profile> profiles;
+        if (segments.size() >= 2) {
+            final ProfileStore.Profile profile = store.get(segments.get(0), segments.get(1));
+            // Not the SSID's fallback form, which has a URI of its own.
+            profiles = (profile != null && segments.get(1).equals(profile.redirectHost))
+                    ? Collections.singletonList(profile)
+                    : Collections.<ProfileStore.Profile>emptyList();
+        } else if (segments.size() == 1) {
+            profiles = store.getAll(segments.get(0));
+        } else {
+            profiles = store.getAll();
+        }
+        for (ProfileStore.Profile profile : profiles) {
+            cursor.addRow(new Object[] { profile.ssid, profile.params, profile.actionUrl,
+                    profile.script, profile.redirectHost, profile.oui });
+        }
+        return cursor;
+    }
+
+    /** Returns the cookies that have not expired. */
+    private Cursor queryCookies() {
+        final MatrixCursor cursor = new MatrixCursor(new String[] { COLUMN_DOMAIN, COLUMN_NAME,
+                COLUMN_VALUE, COLUMN_INCLUDE_SUBDOMAINS, COLUMN_SECURE, COLUMN_EXPIRES });
+        for (PortalCookieStore.Cookie cookie
+                : PortalCookieStore.getInstance(getContext()).getAll()) {
+            cursor.addRow(new Object[] { cookie.domain, cookie.name, cookie.value,
+                    cookie.includeSubdomains ? 1 : 0, cookie.secure ? 1 : 0,
+                    cookie.expiresAtMs });
+        }
+        return cursor;
     }
 
+    /** Stores cookies, each row replacing any cookie with the same domain and name. */
     @Override
-    public int update(Uri uri, ContentValues contentValues, String s , String[] strings){
-        throw new UnsupportedOperationException("Not Supported by this provider");
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (!isCookiesUri(uri)) {
+            throw new UnsupportedOperationException("Not Supported by this provider");
+        }
+        final List<PortalCookieStore.Cookie> cookies = new ArrayList<>();
+        for (ContentValues row : values) {
+            final String domain = row.getAsString(COLUMN_DOMAIN);
+            final String name = row.getAsString(COLUMN_NAME);
+            final String value = row.getAsString(COLUMN_VALUE);
+            final Integer includeSubdomains = row.getAsInteger(COLUMN_INCLUDE_SUBDOMAINS);
+            final Integer secure = row.getAsInteger(COLUMN_SECURE);
+            final Long expires = row.getAsLong(COLUMN_EXPIRES);
+            if (domain == null || name == null || value == null || expires == null) continue;
+            cookies.add(new PortalCookieStore.Cookie(domain.toLowerCase(Locale.US), name, value,
+                    includeSubdomains != null && includeSubdomains != 0,
+                    secure != null && secure != 0, expires));
+        }
+        PortalCookieStore.getInstance(getContext()).putAll(cookies);
+        return cookies.size();
     }
 
     @Override
-    public int delete(Uri uri, String s, String[] strings){
+    public int update(Uri uri, ContentValues contentValues, String s , String[] strings){
         throw new UnsupportedOperationException("Not Supported by this provider");
     }
 
     @Override
-    public Uri insert(Uri uri, ContentValues contentValues){
+    public int delete(Uri uri, String s, String[] strings){
         throw new UnsupportedOperationException("Not Supported by this provider");
     }
 
     @Override
-    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException{
-        String fileName =uri.getLastPathSegment();
-        if(fileName == null) {
-            throw new FileNotFoundException();
-        }
-        File privateFile = new File(getContext().getFilesDir(), fileName);
-
-        return ParcelFileDescriptor.open(privateFile,ParcelFileDescriptor.MODE_READ_ONLY);
+    public Uri insert(Uri uri, ContentValues contentValues){
+        bulkInsert(uri, new ContentValues[] { contentValues });
+        return uri;
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A response body handed to the WebView as it is, which reports how much was read once the
+ * WebView has read it to the end or closed it.
+ */
+public class PassThroughInputStream extends FilterInputStream {
+    /** Told once, when the body has been read to the end or closed. */
+    public interface Listener {
+        void onFinished(long bytesRead);
+    }
+
+    private final Listener mListener;
+    private long mBytesRead;
+    private boolean mFinished;
+
+    public PassThroughInputStream(InputStream in, Listener listener) {
+        super(in);
+        mListener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b == -1) {
+            finish();
+        } else {
+            mBytesRead++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int n = super.read(b, off, len);
+        if (n == -1) {
+            finish();
+        } else {
+            mBytesRead += n;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (mFinished) return;
+        mFinished = true;
+        mListener.onFinished(mBytesRead);
+    }
+}
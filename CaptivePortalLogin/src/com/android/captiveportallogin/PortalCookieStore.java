@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.CookieHandler;
+import java.net.URI;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The cookies captive portals have set, kept across sign-ins in a file private to this app.
+ *
+ * Portals often hand out long-lived session cookies, and a device that still has one is let
+ * through without signing in again. The pages loaded here and NetworkMonitor's login replay, by
+ * way of {@link MyContentProvider}, share this store.
+ *
+ * Cookies are matched to hosts by their Domain attribute, or by the exact host that set them. A
+ * Secure cookie is only sent over HTTPS, and only accepted from a response that came over HTTPS.
+ * Path is ignored. Cookies without an expiry are kept for
+ * {@link #SESSION_COOKIE_LIFETIME_MS}. The store holds at most {@link #MAX_COOKIES} cookies, and
+ * {@link #MAX_COOKIES_PER_DOMAIN} per domain, dropping the ones least recently set first.
+ * Changes take effect at once, and are written to the file in the background.
+ *
+ * Cookies are never stored for or sent to the connectivity check host. Every portal answers
+ * requests for it, so a cookie one portal set there would be sent to the next network's.
+ */
+public class PortalCookieStore {
+    private static final String TAG = "PortalCookieStore";
+
+    private static final String FILE_NAME = "portal_cookies.db";
+    private static final int MAGIC = 0x50434b53; // "PCKS"
+    private static final int VERSION = 2;
+    // Without Secure.
+    private static final int VERSION_NO_SECURE = 1;
+    static final int MAX_COOKIES = 256;
+    static final int MAX_COOKIES_PER_DOMAIN = 32;
+    static final long SESSION_COOKIE_LIFETIME_MS = 24 * 60 * 60 * 1000L;
+    private static final String[] EXPIRES_FORMATS = {
+            "EEE, dd MMM yyyy HH:mm:ss zzz", "EEE, dd-MMM-yyyy HH:mm:ss zzz",
+            "EEE, dd-MMM-yy HH:mm:ss zzz" };
+    // First labels that, under a country code, are registries rather than sites, e.g. co.uk.
+    private static final Set<String> COUNTRY_SECOND_LEVEL_DOMAINS = new HashSet<>(Arrays.asList(
+            "ac", "co", "com", "edu", "gov", "go", "mil", "ne", "net", "or", "org"));
+
+    /** One cookie. */
+    public static final class Cookie {
+        // Lower-case host or domain the cookie is sent to.
+        public final String domain;
+        public final String name;
+        public final String value;
+        // Whether the cookie is also sent to subdomains of domain.
+        public final boolean includeSubdomains;
+        // Whether the cookie is only sent over HTTPS.
+        public final boolean secure;
+        // Wall clock time after which the cookie is no longer sent.
+        public final long expiresAtMs;
+
+        public Cookie(String domain, String name, String value, boolean includeSubdomains,
+                boolean secure, long expiresAtMs) {
+            this.domain = domain;
+            this.name = name;
+            this.value = value;
+            this.includeSubdomains = includeSubdomains;
+            this.secure = secure;
+            this.expiresAtMs = expiresAtMs;
+        }
+
+        boolean matches(String host, boolean https) {
+            return (!secure || https)
+                    && (host.equals(domain) || (includeSubdomains && host.endsWith("." + domain)));
+        }
+
+        boolean isExpired(long nowMs) {
+            return expiresAtMs <= nowMs;
+        }
+    }
+
+    private static PortalCookieStore sInstance;
+    // Writes the file off the threads that set cookies, which include the WebView's.
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+
+    private final AtomicFile mFile;
+    // Keyed by domain and name, least recently set first.
+    private final LinkedHashMap<String, Cookie> mCookies = new LinkedHashMap<>();
+    // Lower-case connectivity check hosts.
+    private final Set<String> mIgnoredHosts = new HashSet<>();
+    private boolean mLoaded;
+    // Set while a write is queued on sWriter. Changes made until it runs go in the same write.
+    private boolean mWriteScheduled;
+
+    public static synchronized PortalCookieStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PortalCookieStore(
+                    new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    PortalCookieStore(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Stops storing cookies set by {@code host}, or sending any to it, and drops those it has
+     * already set. For the connectivity check host, whose answers come from whichever portal
+     * the device is behind.
+     */
+    public synchronized void ignoreHost(String host) {
+        host = host.toLowerCase(Locale.US);
+        if (!mIgnoredHosts.add(host)) return;
+        loadIfNeeded();
+        boolean removed = false;
+        for (Iterator<Cookie> it = mCookies.values().iterator(); it.hasNext(); ) {
+            if (it.next().domain.equals(host)) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed) scheduleWrite();
+    }
+
+    /** Returns every cookie that has not expired. */
+    public synchronized List<Cookie> getAll() {
+        loadIfNeeded();
+        final long now = System.currentTimeMillis();
+        final List<Cookie> cookies = new ArrayList<>();
+        for (Cookie cookie : mCookies.values()) {
+            if (!cookie.isExpired(now)) cookies.add(cookie);
+        }
+        return cookies;
+    }
+
+    /**
+     * Returns the Cookie header value for a request to {@code host}, or null if none.
+     *
+     * @param https whether the request goes over HTTPS.
+     */
+    public synchronized String getHeader(String host, boolean https) {
+        loadIfNeeded();
+        host = host.toLowerCase(Locale.US);
+        if (mIgnoredHosts.contains(host)) return null;
+        final long now = System.currentTimeMillis();
+        StringBuilder header = null;
+        for (Cookie cookie : mCookies.values()) {
+            if (cookie.isExpired(now) || !cookie.matches(host, https)) continue;
+            if (header == null) {
+                header = new StringBuilder();
+            } else {
+                header.append("; ");
+            }
+            header.append(cookie.name).append('=').append(cookie.value);
+        }
+        return (header != null) ? header.toString() : null;
+    }
+
+    /**
+     * Stores the cookies in the Set-Cookie values of a response from {@code host}.
+     *
+     * @param https whether the response came over HTTPS.
+     */
+    public synchronized void addAll(String host, boolean https, List<String> setCookies) {
+        if (setCookies == null || setCookies.isEmpty()) return;
+        host = host.toLowerCase(Locale.US);
+        if (mIgnoredHosts.contains(host)) return;
+        final List<Cookie> cookies = new ArrayList<>();
+        for (String setCookie : setCookies) {
+            final Cookie cookie = parse(host, https, setCookie);
+            if (cookie != null) cookies.add(cookie);
+        }
+        putAll(cookies);
+    }
+
+    /**
+     * Stores {@code cookies}, replacing any with the same domain and name. An expired cookie
+     * removes the one it replaces.
+     */
+    public synchronized void putAll(List<Cookie> cookies) {
+        if (cookies.isEmpty()) return;
+        loadIfNeeded();
+        for (Cookie cookie : cookies) {
+            final String key = cookie.domain + "\0" + cookie.name;
+            mCookies.remove(key);
+            mCookies.put(key, cookie);
+        }
+        trim();
+        scheduleWrite();
+    }
+
+    /**
+     * Returns a CookieHandler over this store, for the HTTP client that loads the portal's
+     * pages. It sees every response, including redirects followed by the client.
+     */
+    public CookieHandler asCookieHandler() {
+        return new CookieHandler() {
+            @Override
+            public Map<String, List<String>> get(URI uri, Map<String, List<String>> headers) {
+                final String cookies = (uri.getHost() != null)
+                        ? getHeader(uri.getHost(), isHttps(uri)) : null;
+                if (cookies == null) return Collections.emptyMap();
+                return Collections.singletonMap("Cookie", Collections.singletonList(cookies));
+            }
+
+            @Override
+            public void put(URI uri, Map<String, List<String>> headers) {
+                if (uri.getHost() == null) return;
+                for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                    if ("Set-Cookie".equalsIgnoreCase(header.getKey())) {
+                        addAll(uri.getHost(), isHttps(uri), header.getValue());
+                    }
+                }
+            }
+        };
+    }
+
+    private static boolean isHttps(URI uri) {
+        return "https".equalsIgnoreCase(uri.getScheme());
+    }
+
+    /** Drops expired cookies, then the least recently set ones until within the limits. */
+    private void trim() {
+        final long now = System.currentTimeMillis();
+        final Map<String, Integer> perDomain = new LinkedHashMap<>();
+        // Newest first, so that the oldest ones over a domain's limit are dropped.
+        final List<String> keys = new ArrayList<>(mCookies.keySet());
+        Collections.reverse(keys);
+        int kept = 0;
+        for (String key : keys) {
+            final Cookie cookie = mCookies.get(key);
+            final Integer count = perDomain.get(cookie.domain);
+            final int domainCount = (count != null) ? count : 0;
+            if (cookie.isExpired(now) || domainCount >= MAX_COOKIES_PER_DOMAIN
+                    || kept >= MAX_COOKIES) {
+                mCookies.remove(key);
+                continue;
+            }
+            perDomain.put(cookie.domain, domainCount + 1);
+            kept++;
+        }
+    }
+
+    private void loadIfNeeded() {
+        if (mLoaded) return;
+        mLoaded = true;
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(mFile.openRead()))) {
+            final int version = (in.readInt() == MAGIC) ? in.readInt() : -1;
+            if (version != VERSION && version != VERSION_NO_SECURE) {
+                Log.e(TAG, "Unknown cookie store format, ignoring it");
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final Cookie cookie = new Cookie(in.readUTF(), in.readUTF(), in.readUTF(),
+                        in.readBoolean(), (version != VERSION_NO_SECURE) && in.readBoolean(),
+                        in.readLong());
+                // Stored before suffix-wide cookies were refused.
+                if (cookie.includeSubdomains && isPublicSuffix(cookie.domain)) continue;
+                mCookies.put(cookie.domain + "\0" + cookie.name, cookie);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing stored yet.
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading cookie store, discarding it", e);
+            mCookies.clear();
+        }
+        trim();
+    }
+
+    /**
+     * Writes the cookies out soon, on sWriter, so that a page whose every asset sets a cookie
+     * does not wait on the disk, nor hold up the requests that read cookies meanwhile.
+     */
+    private void scheduleWrite() {
+        if (mWriteScheduled) return;
+        mWriteScheduled = true;
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /** Writes the cookies as they are now, if they changed since the last write. */
+    void flush() {
+        final List<Cookie> cookies;
+        synchronized (this) {
+            if (!mWriteScheduled) return;
+            mWriteScheduled = false;
+            cookies = new ArrayList<>(mCookies.values());
+        }
+        // Writes of earlier copies finish first, so the file ends up with the newest.
+        synchronized (mFile) {
+            try {
+                write(cookies);
+            } catch (IOException e) {
+                Log.e(TAG, "Error storing cookies", e);
+            }
+        }
+    }
+
+    private void write(List<Cookie> cookies) throws IOException {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(cookies.size());
+            for (Cookie cookie : cookies) {
+                out.writeUTF(cookie.domain);
+                out.writeUTF(cookie.name);
+                out.writeUTF(cookie.value);
+                out.writeBoolean(cookie.includeSubdomains);
+                out.writeBoolean(cookie.secure);
+                out.writeLong(cookie.expiresAtMs);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            if (fos != null) mFile.failWrite(fos);
+            throw e;
+        }
+    }
+
+    /**
+     * Parses a Set-Cookie value, or returns null if it is malformed, for another domain, or
+     * Secure but set over plain HTTP.
+     *
+     * @param https whether the response came over HTTPS.
+     */
+    static Cookie parse(String host, boolean https, String setCookie) {
+        final String[] parts = setCookie.split(";");
+        final int eq = parts[0].indexOf('=');
+        if (eq <= 0) return null;
+        final String name = parts[0].substring(0, eq).trim();
+        final String value = parts[0].substring(eq + 1).trim();
+        if (name.isEmpty()) return null;
+        final long now = System.currentTimeMillis();
+        String domain = host;
+        boolean includeSubdomains = false;
+        boolean secure = false;
+        long expiresAtMs = now + SESSION_COOKIE_LIFETIME_MS;
+        boolean hasMaxAge = false;
+        for (int i = 1; i < parts.length; i++) {
+            final String attr = parts[i].trim();
+            if (attr.regionMatches(true, 0, "domain=", 0, 7)) {
+                String d = attr.substring(7).trim().toLowerCase(Locale.US);
+                if (d.startsWith(".")) d = d.substring(1);
+                // A portal may only set cookies for itself or a domain it belongs to.
+                if (d.isEmpty() || !(host.equals(d) || host.endsWith("." + d))) return null;
+                // Cookies are kept across networks. One for a whole public suffix would be sent
+                // to every portal under it, so like browsers keep it for this host only.
+                if (isPublicSuffix(d)) continue;
+                domain = d;
+                includeSubdomains = true;
+            } else if (attr.regionMatches(true, 0, "max-age=", 0, 8)) {
+                // Max-Age takes precedence over Expires.
+                try {
+                    expiresAtMs = now + Long.parseLong(attr.substring(8).trim()) * 1000;
+                    hasMaxAge = true;
+                } catch (NumberFormatException e) {
+                }
+            } else if (attr.regionMatches(true, 0, "expires=", 0, 8) && !hasMaxAge) {
+                final long expires = parseExpires(attr.substring(8).trim());
+                if (expires != -1) expiresAtMs = expires;
+            } else if (attr.equalsIgnoreCase("secure")) {
+                // Only a response the network cannot have tampered with may set one.
+                if (!https) return null;
+                secure = true;
+            }
+        }
+        return new Cookie(domain, name, value, includeSubdomains, secure, expiresAtMs);
+    }
+
+    /**
+     * Whether cookies must not be set for all of {@code domain}: a top-level domain, or a
+     * country's second-level domain such as co.uk. This errs on the side of host-only cookies
+     * rather than carrying the full public suffix list.
+     */
+    static boolean isPublicSuffix(String domain) {
+        final int dot = domain.indexOf('.');
+        if (dot == -1) return true;
+        if (domain.indexOf('.', dot + 1) != -1) return false;
+        // Two labels. Under a country code, a generic first label is a registry's.
+        return domain.length() - dot - 1 == 2
+                && COUNTRY_SECOND_LEVEL_DOMAINS.contains(domain.substring(0, dot));
+    }
+
+    private static long parseExpires(String date) {
+        for (String format : EXPIRES_FORMATS) {
+            final SimpleDateFormat parser = new SimpleDateFormat(format, Locale.US);
+            parser.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return parser.parse(date).getTime();
+            } catch (ParseException e) {
+            }
+        }
+        return -1;
+    }
+}
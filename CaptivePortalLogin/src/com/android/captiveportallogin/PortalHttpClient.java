@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.content.Context;
+import android.net.Network;
+import android.util.Log;
+
+import com.android.okhttp.Cache;
+import com.android.okhttp.ConnectionPool;
+import com.android.okhttp.Dns;
+import com.android.okhttp.OkHttpClient;
+import com.android.okhttp.OkUrlFactory;
+import com.android.okhttp.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP client that loads the portal's pages and their sub-resources in place of the WebView,
+ * one per process and bound to the portal's network.
+ *
+ * A portal page pulls in dozens of scripts, stylesheets and images, mostly from one or two hosts.
+ * They all go through one connection pool, so they reuse a handful of kept-alive connections,
+ * multiplexed over HTTP/2 where the portal offers it, instead of each paying for a TCP and TLS
+ * handshake. At most {@link #MAX_REQUESTS_PER_HOST} requests go to one host at a time, as in a
+ * browser, so that a page does not open more connections than the pool will keep.
+ *
+ * Scripts, stylesheets, images and fonts fetched over HTTPS are kept in an on-disk cache across
+ * sign-ins, since portals serve the same ones every time, often over a throttled link. The cache
+ * holds at most {@link #CACHE_BYTES}, evicting the least recently used entries first, and
+ * revalidates with the entries' ETag or Last-Modified. A static asset that has gone stale is
+ * still served from the cache for up to {@link #STALE_WHILE_REVALIDATE_SECONDS}, and revalidated
+ * in the background for next time. Everything else, documents included, is fetched live and
+ * never stored.
+ *
+ * The cache is shared by every network, and keyed by URL. A plain HTTP response can come from
+ * whoever runs the network it was fetched on, so caching one would let any open network plant a
+ * script that later runs on another portal's pages. Only responses that came over TLS are cached,
+ * and a cached request is not let follow a redirect to plain HTTP.
+ */
+public class PortalHttpClient {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 10000;
+    // Enough for the page host, an asset host or two, and the portal's login host.
+    private static final int MAX_IDLE_CONNECTIONS = 6;
+    private static final long KEEP_ALIVE_MS = 2 * 60 * 1000;
+    static final int MAX_REQUESTS_PER_HOST = 6;
+    // How long a request waits for one of those to finish before giving up.
+    private static final long PERMIT_TIMEOUT_MS = READ_TIMEOUT_MS;
+    private static final String CACHE_DIR = "portal_assets";
+    static final long CACHE_BYTES = 16 * 1024 * 1024;
+    static final int STALE_WHILE_REVALIDATE_SECONDS = 7 * 24 * 60 * 60;
+    private static final String TAG = "PortalHttpClient";
+
+    private static PortalHttpClient sInstance;
+    // Shared by every client, since only one may use the directory at a time.
+    private static Cache sCache;
+    // Revalidates stale assets, one at a time, off the WebView's threads.
+    private static final ExecutorService sRevalidator = Executors.newSingleThreadExecutor();
+
+    private final Network mNetwork;
+    private final OkHttpClient mClient;
+    private final OkUrlFactory mUrlFactory;
+    // For static assets over HTTPS. Shares mClient's connections.
+    private final OkUrlFactory mCachingUrlFactory;
+    // Guarded by itself.
+    private final Map<String, Semaphore> mHostPermits = new HashMap<>();
+    // URLs being revalidated. Guarded by itself.
+    private final Set<String> mRevalidating = new HashSet<>();
+
+    /**
+     * Returns the client for {@code network}. A client made for another network is replaced, and
+     * its idle connections closed.
+     */
+    public static synchronized PortalHttpClient getInstance(Context context, Network network) {
+        if (sInstance == null || !sInstance.mNetwork.equals(network)) {
+            if (sInstance != null) sInstance.close();
+            if (sCache == null) {
+                sCache = new Cache(new File(context.getCacheDir(), CACHE_DIR), CACHE_BYTES);
+            }
+            sInstance = new PortalHttpClient(context.getApplicationContext(), network);
+        }
+        return sInstance;
+    }
+
+    private PortalHttpClient(Context context, final Network network) {
+        mNetwork = network;
+        mClient = new OkHttpClient();
+        mClient.setConnectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mClient.setReadTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mClient.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MS));
+        // Negotiated with ALPN, so plain HTTP and servers without HTTP/2 get HTTP/1.1.
+        mClient.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        // Bound to the portal's network even if the process binding changes.
+        mClient.setSocketFactory(network.getSocketFactory());
+        mClient.setDns(new Dns() {
+            @Override
+            public List<InetAddress> lookup(String host) throws UnknownHostException {
+                return Arrays.asList(network.getAllByName(host));
+            }
+        });
+        // Send the portal the cookies it set on earlier visits, which may let us through without
+        // signing in, and keep the ones it sets now.
+        mClient.setCookieHandler(PortalCookieStore.getInstance(context).asCookieHandler());
+        mUrlFactory = new OkUrlFactory(mClient);
+        final OkHttpClient cachingClient = mClient.clone();
+        cachingClient.setCache(sCache);
+        // Keeps plain HTTP responses out of the cache.
+        cachingClient.setFollowSslRedirects(false);
+        mCachingUrlFactory = new OkUrlFactory(cachingClient);
+    }
+
+    /**
+     * Opens a connection to {@code url}, waiting while {@link #MAX_REQUESTS_PER_HOST} requests
+     * to its host are already in flight. The caller must call {@link #release} once it is done
+     * with the connection.
+     *
+     * @throws IOException if no request to the host finished within {@link #PERMIT_TIMEOUT_MS},
+     *         e.g. because the WebView left bodies unread. No permit is held then.
+     *
+     * @param requested what the request looks like it is for, which decides how it is cached.
+     */
+    public HttpURLConnection open(URL url, ResourceType requested) throws IOException {
+        // Portal pages, and anything that might be one, carry per-session state and must be
+        // fetched live. So must anything the network could have tampered with.
+        if (!requested.isStatic() || !"https".equals(url.getProtocol())) {
+            return open(url, mUrlFactory);
+        }
+        final HttpURLConnection conn = open(url, mCachingUrlFactory);
+        conn.addRequestProperty("Cache-Control", "max-stale=" + STALE_WHILE_REVALIDATE_SECONDS);
+        return conn;
+    }
+
+    /**
+     * Revalidates {@code url} in the background if {@code conn} was answered from the cache with
+     * a stale entry, so that the next sign-in gets a fresh one.
+     */
+    public void revalidateIfStale(HttpURLConnection conn, final URL url) {
+        // The cache marks the stale responses it serves with a 110 warning.
+        final String warning = conn.getHeaderField("Warning");
+        if (warning == null || !warning.startsWith("110")) return;
+        synchronized (mRevalidating) {
+            if (!mRevalidating.add(url.toString())) return;
+        }
+        sRevalidator.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // A conditional request where the entry has a validator.
+                    final HttpURLConnection revalidation = open(url, mCachingUrlFactory);
+                    try (InputStream in = revalidation.getInputStream()) {
+                        // The cache stores the new body as it is read.
+                        IOUtils.readFully(in);
+                    } finally {
+                        release(url);
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not revalidate " + url + ": " + e);
+                } finally {
+                    synchronized (mRevalidating) {
+                        mRevalidating.remove(url.toString());
+                    }
+                }
+            }
+        });
+    }
+
+    private HttpURLConnection open(URL url, OkUrlFactory factory) throws IOException {
+        final Semaphore permits = permitsFor(url.getHost());
+        try {
+            if (!permits.tryAcquire(PERMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a request to " + url.getHost());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + url.getHost());
+        }
+        try {
+            return factory.open(url);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /** Lets another request go to the host of {@code url}. */
+    public void release(URL url) {
+        permitsFor(url.getHost()).release();
+    }
+
+    private Semaphore permitsFor(String host) {
+        host = host.toLowerCase(Locale.US);
+        synchronized (mHostPermits) {
+            Semaphore permits = mHostPermits.get(host);
+            if (permits == null) {
+                permits = new Semaphore(MAX_REQUESTS_PER_HOST, true /* fair */);
+                mHostPermits.put(host, permits);
+            }
+            return permits;
+        }
+    }
+
+    private void close() {
+        mClient.getConnectionPool().evictAll();
+    }
+}
@@ -4,42 +4,32 @@ import android.content.Context;
 import android.util.Log;
 import android.webkit.JavascriptInterface;
 
-import org.jsoup.Jsoup;
-
 import java.io.IOException;
+import java.io.InputStream;
 
 
 public class PostInterceptJavascriptInterface {
 
 	    private static final String TAG = "CaptivePortalLogin";
-	    private static String mInterceptHeader = null;
+	    private static byte[] mInterceptHeader = null;
             private CaptivePortalLoginActivity.MyWebViewClient myWebViewClient = null;
 
             public PostInterceptJavascriptInterface(CaptivePortalLoginActivity.MyWebViewClient webViewClient) {
                 myWebViewClient = webViewClient;
             }
 
-            public static String enableIntercept(Context context, byte[] data) throws IOException {
+            /**
+             * Returns the HTML page read from {@code page} with the form submit interceptor
+             * spliced in, as it is read. See {@link ScriptInjectingInputStream}.
+             */
+            public static InputStream enableIntercept(Context context, InputStream page,
+                    ScriptInjectingInputStream.Listener listener)
+                    throws IOException {
                 if (mInterceptHeader == null) {
-                    mInterceptHeader = new String(IOUtils.readFully(context.getAssets().open(
-                            "www/interceptheader.html")));
+                    mInterceptHeader = IOUtils.readFully(context.getAssets().open(
+                            "www/interceptheader.html"));
                 }
-
-                Log.d(TAG, "got the JS code in var");
-                org.jsoup.nodes.Document doc = Jsoup.parse(new String(data));
-                doc.outputSettings().prettyPrint(true);
-
-                // Prefix every script to capture submits
-                // Make sure our interception is the first element in the
-                // header
-                org.jsoup.select.Elements el = doc.getElementsByTag("head");
-                if (el.size() > 0) {
-                    el.get(0).prepend(mInterceptHeader);
-                }
-
-                Log.d(TAG, "JS code added");
-                String pageContents = doc.toString();
-                return pageContents;
+                return new ScriptInjectingInputStream(page, mInterceptHeader, listener);
             }
 /*
             public class FormRequestContents {
@@ -56,10 +46,11 @@ public class PostInterceptJavascriptInterface {
 */
 	    @JavascriptInterface
 	    public void customSubmit(String json, String method, String enctype) {
-		Log.d(TAG, "Submit data: " + json + "\t" + method + "\t" + enctype);
+		// The form's fields include whatever was typed in, passwords too. Never log them.
+		Log.d(TAG, "Form submitted: " + method + "\t" + enctype);
 		if(myWebViewClient == null) {
 			Log.d(TAG,"myWebViewClient is null");
 		}
-		myWebViewClient.nextMessageIsFormRequest(json);
+		myWebViewClient.nextMessageIsFormRequest(json, method);
 	    }
 }
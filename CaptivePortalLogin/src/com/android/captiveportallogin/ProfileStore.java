@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The login forms captured for each network, in a single file private to this app.
+ *
+ * A form is stored for an SSID and the host its portal redirected the connectivity check to, so
+ * that two unrelated venues that both call their network e.g. "Guest" each keep their own. A form
+ * captured without knowing the redirect host is stored for the SSID alone, and serves as the
+ * fallback for that SSID.
+ *
+ * The file starts with a header and an index from key to the offset and length of that key's
+ * record, followed by the length-prefixed records themselves:
+ *
+ *   int magic, int version, int count, int index length
+ *   count x { UTF key, int offset, int length }
+ *   records: { int length, params bytes, int length, action URL bytes,
+ *              then optionally, in order, the login script, redirect host and BSSID OUI, each
+ *              an int length and bytes, or a length of -1 for none }
+ *
+ * The key is the SSID, followed by a NUL and the redirect host if there is one. Version 1 files
+ * are keyed by SSID alone, and are re-keyed when first read.
+ *
+ * The index is kept in memory, so a lookup is a map hit and one positioned read. Every update
+ * rewrites the file through an {@link AtomicFile}, which costs one fsync and leaves either the
+ * old or the new file behind if the process dies part way.
+ */
+public class ProfileStore {
+    private static final String TAG = "ProfileStore";
+
+    private static final String FILE_NAME = "portal_profiles.db";
+    private static final String EXTERNAL_LEGACY_DIR = "R2D2";
+    private static final int MAGIC = 0x50505242; // "PPRB"
+    private static final int VERSION = 2;
+    // Keyed by SSID only.
+    private static final int VERSION_SSID_KEYS = 1;
+    // Magic, version, count and index length.
+    private static final int HEADER_BYTES = 16;
+
+    /** A captured login form. */
+    public static final class Profile {
+        public final String ssid;
+        // The form-encoded parameters.
+        public final String params;
+        public final String actionUrl;
+        // The whole sign-in as recorded by LoginScriptRecorder, or null.
+        public final String script;
+        // Where the portal redirected the connectivity check, or null if unknown.
+        public final String redirectHost;
+        // First three octets of the access point's BSSID, e.g. "00:11:22", or null.
+        public final String oui;
+
+        public Profile(String ssid, String params, String actionUrl, String script,
+                String redirectHost, String oui) {
+            this.ssid = ssid;
+            this.params = params;
+            this.actionUrl = actionUrl;
+            this.script = script;
+            this.redirectHost = redirectHost;
+            this.oui = oui;
+        }
+    }
+
+    /** Where a record is in the file, relative to the end of the index. */
+    private static final class IndexEntry {
+        final int offset;
+        final int length;
+
+        IndexEntry(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static ProfileStore sInstance;
+
+    private final AtomicFile mFile;
+    // Holds the per-SSID text files of earlier versions, which are imported once.
+    private final File mLegacyDir;
+    // Where earlier versions also left a world-readable copy of each form, deleted on import.
+    private final File mExternalLegacyDir;
+    private final LinkedHashMap<String, IndexEntry> mIndex = new LinkedHashMap<>();
+    // The keys in mIndex, by SSID, so that a lookup for one SSID does not scan them all.
+    private final HashMap<String, List<String>> mKeysBySsid = new HashMap<>();
+    private long mDataStart;
+    private boolean mLoaded;
+
+    public static synchronized ProfileStore getInstance(Context context) {
+        if (sInstance == null) {
+            final File dir = context.getApplicationContext().getFilesDir();
+            sInstance = new ProfileStore(new File(dir, FILE_NAME), dir,
+                    new File(Environment.getExternalStorageDirectory(), EXTERNAL_LEGACY_DIR));
+        }
+        return sInstance;
+    }
+
+    ProfileStore(File file, File legacyDir, File externalLegacyDir) {
+        mFile = new AtomicFile(file);
+        mLegacyDir = legacyDir;
+        mExternalLegacyDir = externalLegacyDir;
+    }
+
+    /**
+     * Returns the form captured for {@code ssid} behind the portal at {@code redirectHost}, or
+     * failing that the one captured for {@code ssid} without a known portal. Null if there is
+     * neither.
+     *
+     * @param redirectHost lower case, or null if not known.
+     */
+    public synchronized Profile get(String ssid, String redirectHost) {
+        loadIfNeeded();
+        IndexEntry entry = (redirectHost != null) ? mIndex.get(keyOf(ssid, redirectHost)) : null;
+        if (entry == null) entry = mIndex.get(keyOf(ssid, null));
+        if (entry == null) return null;
+        try (RandomAccessFile file = new RandomAccessFile(mFile.getBaseFile(), "r")) {
+            final byte[] record = new byte[entry.length];
+            file.seek(mDataStart + entry.offset);
+            file.readFully(record);
+            return decodeRecord(ssid, record);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading profile for " + ssid, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns every form captured for {@code ssid}, whatever the portal. Only the records for
+     * {@code ssid} are read.
+     */
+    public synchronized List<Profile> getAll(String ssid) {
+        loadIfNeeded();
+        final List<Profile> profiles = new ArrayList<>();
+        final List<String> keys = mKeysBySsid.get(ssid);
+        if (keys == null) return profiles;
+        try (RandomAccessFile file = new RandomAccessFile(mFile.getBaseFile(), "r")) {
+            for (String key : keys) {
+                final IndexEntry entry = mIndex.get(key);
+                final byte[] record = new byte[entry.length];
+                file.seek(mDataStart + entry.offset);
+                file.readFully(record);
+                final Profile profile = decodeRecord(ssid, record);
+                if (profile != null) profiles.add(profile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading profiles for " + ssid, e);
+        }
+        return profiles;
+    }
+
+    /** Returns every captured form. */
+    public synchronized List<Profile> getAll() {
+        loadIfNeeded();
+        return new ArrayList<>(readAll().values());
+    }
+
+    /** Stores {@code profile}, replacing any form captured for the same SSID and portal. */
+    public synchronized void put(Profile profile) throws IOException {
+        loadIfNeeded();
+        final Map<String, Profile> profiles = readAll();
+        profiles.put(keyOf(profile), profile);
+        write(profiles);
+    }
+
+    // SSIDs may contain any character but NUL.
+    private static String keyOf(String ssid, String redirectHost) {
+        return (redirectHost != null) ? ssid + "\0" + redirectHost : ssid;
+    }
+
+    private static String keyOf(Profile profile) {
+        return keyOf(profile.ssid, profile.redirectHost);
+    }
+
+    private static String ssidOf(String key) {
+        final int nul = key.indexOf('\0');
+        return (nul != -1) ? key.substring(0, nul) : key;
+    }
+
+    private void loadIfNeeded() {
+        if (mLoaded) return;
+        mLoaded = true;
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(mFile.openRead()))) {
+            final int version = (in.readInt() == MAGIC) ? in.readInt() : -1;
+            if (version != VERSION && version != VERSION_SSID_KEYS) {
+                Log.e(TAG, "Unknown profile store format, ignoring it");
+                return;
+            }
+            final int count = in.readInt();
+            final int indexLength = in.readInt();
+            for (int i = 0; i < count; i++) {
+                mIndex.put(in.readUTF(), new IndexEntry(in.readInt(), in.readInt()));
+            }
+            mDataStart = HEADER_BYTES + indexLength;
+            indexBySsid();
+            if (version == VERSION_SSID_KEYS) rekey();
+        } catch (FileNotFoundException e) {
+            importLegacyProfiles();
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading profile store, discarding it", e);
+            mIndex.clear();
+            mKeysBySsid.clear();
+        }
+    }
+
+    /** Rewrites a version 1 file, whose records are keyed by SSID alone. */
+    private void rekey() {
+        try {
+            write(readAll());
+        } catch (IOException e) {
+            // Still readable as it is. Lookups by SSID alone find its records.
+            Log.e(TAG, "Error re-keying profile store", e);
+        }
+    }
+
+    /** Reads every record listed in the index, by key. Skips unreadable ones. */
+    private LinkedHashMap<String, Profile> readAll() {
+        final LinkedHashMap<String, Profile> profiles = new LinkedHashMap<>();
+        if (mIndex.isEmpty()) return profiles;
+        try (RandomAccessFile file = new RandomAccessFile(mFile.getBaseFile(), "r")) {
+            for (Map.Entry<String, IndexEntry> e : mIndex.entrySet()) {
+                final byte[] record = new byte[e.getValue().length];
+                file.seek(mDataStart + e.getValue().offset);
+                file.readFully(record);
+                final Profile profile = decodeRecord(ssidOf(e.getKey()), record);
+                if (profile != null) profiles.put(keyOf(profile), profile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading profiles", e);
+        }
+        return profiles;
+    }
+
+    private void write(Map<String, Profile> profiles) throws IOException {
+        final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final DataOutputStream indexOut = new DataOutputStream(index);
+        final LinkedHashMap<String, IndexEntry> newIndex = new LinkedHashMap<>();
+        for (Profile profile : profiles.values()) {
+            final byte[] record = encodeRecord(profile);
+            final IndexEntry entry = new IndexEntry(records.size(), record.length);
+            records.write(record);
+            indexOut.writeUTF(keyOf(profile));
+            indexOut.writeInt(entry.offset);
+            indexOut.writeInt(entry.length);
+            newIndex.put(keyOf(profile), entry);
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(newIndex.size());
+            out.writeInt(index.size());
+            index.writeTo(out);
+            records.writeTo(out);
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            if (fos != null) mFile.failWrite(fos);
+            throw e;
+        }
+        mIndex.clear();
+        mIndex.putAll(newIndex);
+        mDataStart = HEADER_BYTES + index.size();
+        indexBySsid();
+    }
+
+    private void indexBySsid() {
+        mKeysBySsid.clear();
+        for (String key : mIndex.keySet()) {
+            final String ssid = ssidOf(key);
+            List<String> keys = mKeysBySsid.get(ssid);
+            if (keys == null) {
+                keys = new ArrayList<>(1);
+                mKeysBySsid.put(ssid, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    private static byte[] encodeRecord(Profile profile) throws IOException {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(record);
+        final byte[] params = profile.params.getBytes(StandardCharsets.UTF_8);
+        final byte[] actionUrl = profile.actionUrl.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(params.length);
+        out.write(params);
+        out.writeInt(actionUrl.length);
+        out.write(actionUrl);
+        final String[] optional = { profile.script, profile.redirectHost, profile.oui };
+        int count = optional.length;
+        while (count > 0 && optional[count - 1] == null) count--;
+        for (int i = 0; i < count; i++) {
+            if (optional[i] == null) {
+                out.writeInt(-1);
+                continue;
+            }
+            final byte[] field = optional[i].getBytes(StandardCharsets.UTF_8);
+            out.writeInt(field.length);
+            out.write(field);
+        }
+        return record.toByteArray();
+    }
+
+    private static Profile decodeRecord(String ssid, byte[] record) {
+        int pos = 0;
+        final String[] fields = new String[5];
+        for (int i = 0; i < fields.length; i++) {
+            // All but params and action URL are optional, and older records end early.
+            if (i >= 2 && pos == record.length) break;
+            if (pos + 4 > record.length) return null;
+            final int length = ((record[pos] & 0xff) << 24) | ((record[pos + 1] & 0xff) << 16)
+                    | ((record[pos + 2] & 0xff) << 8) | (record[pos + 3] & 0xff);
+            pos += 4;
+            if (length == -1 && i >= 2) continue;
+            if (length < 0 || pos + length > record.length) return null;
+            fields[i] = new String(record, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+        }
+        return new Profile(ssid, fields[0], fields[1], fields[2], fields[3], fields[4]);
+    }
+
+    /**
+     * Moves forms that earlier versions stored as a two-line text file per SSID into the store,
+     * then deletes those files, and the plaintext copies they left on external storage.
+     */
+    private void importLegacyProfiles() {
+        deleteExternalCopies();
+        final File[] files = mLegacyDir.listFiles();
+        if (files == null) return;
+        final LinkedHashMap<String, Profile> profiles = new LinkedHashMap<>();
+        final List<File> imported = new ArrayList<>();
+        for (File file : files) {
+            if (!file.isFile() || file.getName().startsWith(FILE_NAME)) continue;
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), StandardCharsets.UTF_8))) {
+                final String params = in.readLine();
+                final String actionUrl = in.readLine();
+                if (params == null || actionUrl == null || !actionUrl.startsWith("http")) {
+                    continue;
+                }
+                profiles.put(file.getName(),
+                        new Profile(file.getName(), params, actionUrl, null, null, null));
+                imported.add(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not import " + file.getName() + ": " + e);
+            }
+        }
+        if (profiles.isEmpty()) return;
+        try {
+            write(profiles);
+        } catch (IOException e) {
+            Log.e(TAG, "Error importing profiles", e);
+            return;
+        }
+        for (File file : imported) file.delete();
+        Log.d(TAG, "Imported " + imported.size() + " profiles");
+    }
+
+    /**
+     * Deletes the copy of every form that earlier versions wrote to external storage, where any
+     * app could read the credentials in it. They hold nothing the private files do not.
+     */
+    private void deleteExternalCopies() {
+        final File[] files = mExternalLegacyDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isFile() && !file.delete()) {
+                Log.w(TAG, "Could not delete " + file.getName() + " from external storage");
+            }
+        }
+        mExternalLegacyDir.delete();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import java.util.Locale;
+
+/**
+ * What a request the portal's pages make is for. Only documents are rewritten, so everything
+ * else is streamed to the WebView as it arrives.
+ *
+ * A request is first classified by what the WebView asks for, from its URL's extension and
+ * Accept header, then by the Content-Type of the response, which has the last word.
+ */
+public enum ResourceType {
+    DOCUMENT, SCRIPT, STYLESHEET, IMAGE, FONT, OTHER;
+
+    /**
+     * Classifies a request before it is sent.
+     *
+     * @param accept the request's Accept header, or null if unknown.
+     * @param mainFrame whether the request loads the top-level page.
+     */
+    public static ResourceType forRequest(String url, String accept, boolean mainFrame) {
+        if (mainFrame) return DOCUMENT;
+        final ResourceType byExtension = forExtension(url);
+        if (byExtension != null) return byExtension;
+        if (accept != null) {
+            accept = accept.toLowerCase(Locale.US);
+            if (accept.startsWith("text/html") || accept.startsWith("application/xhtml")) {
+                return DOCUMENT;
+            }
+            if (accept.startsWith("text/css")) return STYLESHEET;
+            if (accept.startsWith("image/")) return IMAGE;
+        }
+        return OTHER;
+    }
+
+    /** Whether this is a script, stylesheet, image or font, which portals rarely change. */
+    public boolean isStatic() {
+        return this == SCRIPT || this == STYLESHEET || this == IMAGE || this == FONT;
+    }
+
+    /** Returns what the response with {@code contentType} turned out to be. */
+    public ResourceType forResponse(String contentType) {
+        if (contentType == null) return (this == DOCUMENT) ? OTHER : this;
+        final String type = contentType.toLowerCase(Locale.US);
+        if (type.contains("text/html") || type.contains("application/xhtml+xml")) return DOCUMENT;
+        if (type.contains("text/css")) return STYLESHEET;
+        if (type.contains("javascript") || type.contains("ecmascript")) return SCRIPT;
+        if (type.startsWith("image/")) return IMAGE;
+        if (type.startsWith("font/") || type.contains("font-")) return FONT;
+        // Never rewrite what is not HTML, whatever the request looked like.
+        return (this == DOCUMENT) ? OTHER : this;
+    }
+
+    private static ResourceType forExtension(String url) {
+        int end = url.length();
+        final int query = url.indexOf('?');
+        if (query != -1) end = query;
+        final int fragment = url.indexOf('#');
+        if (fragment != -1 && fragment < end) end = fragment;
+        final int dot = url.lastIndexOf('.', end);
+        if (dot == -1 || url.indexOf('/', dot) != -1) return null;
+        switch (url.substring(dot + 1, end).toLowerCase(Locale.US)) {
+            case "html": case "htm": case "xhtml":
+                return DOCUMENT;
+            case "js": case "mjs":
+                return SCRIPT;
+            case "css":
+                return STYLESHEET;
+            case "png": case "jpg": case "jpeg": case "gif": case "webp": case "svg": case "ico":
+            case "bmp":
+                return IMAGE;
+            case "woff": case "woff2": case "ttf": case "otf": case "eot":
+                return FONT;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * An HTML page with a script spliced in, read as the page arrives.
+ *
+ * The script goes right after the first {@code <head>} tag, so that it runs before any of the
+ * page's own scripts. A page without one gets it after {@code <html>}, or before {@code <body>},
+ * or at the very start. Only the first {@link #MAX_SCAN_BYTES} of the page are held back while
+ * looking for those tags. Everything after is passed through as it is read, so the WebView
+ * starts rendering about as soon as it would without the script.
+ *
+ * The page's bytes are not decoded. Tag names are ASCII, which every charset a portal is
+ * likely to use encodes as ASCII.
+ *
+ * The page's hidden inputs are picked up by a {@link HiddenFieldScanner} as the bytes go by, so
+ * nothing of the page is kept once it has been passed on.
+ */
+public class ScriptInjectingInputStream extends InputStream {
+    // How much of the page is searched for where to put the script.
+    static final int MAX_SCAN_BYTES = 16 * 1024;
+
+    /** Told once, when the page has been read to the end or closed. */
+    public interface Listener {
+        /**
+         * @param hiddenFields the names and values of the hidden inputs in what was read of the
+         *         page.
+         */
+        void onFinished(Map<String, String> hiddenFields);
+    }
+
+    private final InputStream mIn;
+    private final byte[] mScript;
+    private final Listener mListener;
+    private final HiddenFieldScanner mScanner = new HiddenFieldScanner();
+    // The start of the page with the script spliced in, delivered before reading on.
+    private byte[] mPending;
+    private int mPendingPos;
+    private boolean mScanned;
+    private boolean mFinished;
+
+    public ScriptInjectingInputStream(InputStream in, byte[] script, Listener listener) {
+        mIn = in;
+        mScript = script;
+        mListener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!mScanned) scan();
+        if (mPending != null) {
+            final int n = Math.min(len, mPending.length - mPendingPos);
+            System.arraycopy(mPending, mPendingPos, b, off, n);
+            mPendingPos += n;
+            if (mPendingPos == mPending.length) mPending = null;
+            return n;
+        }
+        final int n = mIn.read(b, off, len);
+        if (n == -1) {
+            finish();
+            return -1;
+        }
+        mScanner.feed(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (mPending != null) return mPending.length - mPendingPos;
+        return mScanned ? mIn.available() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mIn.close();
+        } finally {
+            finish();
+        }
+    }
+
+    /** Reads the start of the page and splices the script in. */
+    private void scan() throws IOException {
+        mScanned = true;
+        final byte[] head = new byte[MAX_SCAN_BYTES];
+        int length = 0;
+        int at = -1;
+        boolean complete = false;
+        while (at == -1) {
+            final int n = mIn.read(head, length, head.length - length);
+            if (n == -1) {
+                complete = true;
+            } else {
+                length += n;
+                complete = (length == head.length);
+            }
+            at = findInsertionPoint(head, length, complete);
+            if (complete) break;
+        }
+        mScanner.feed(head, 0, length);
+        mPending = new byte[length + mScript.length];
+        System.arraycopy(head, 0, mPending, 0, at);
+        System.arraycopy(mScript, 0, mPending, at, mScript.length);
+        System.arraycopy(head, at, mPending, at + mScript.length, length - at);
+        mPendingPos = 0;
+    }
+
+    /**
+     * Returns where in {@code b} the script goes, or -1 if more of the page is needed to tell.
+     *
+     * @param complete whether {@code b} is all there will be to go on.
+     */
+    static int findInsertionPoint(byte[] b, int length, boolean complete) {
+        int afterHtml = -1;
+        for (int i = 0; i < length; i++) {
+            if (b[i] != '<') continue;
+            if (startsWith(b, length, i, "<!--")) {
+                // Tags in comments do not count.
+                final int end = indexOf(b, length, i + 4, "-->");
+                if (end == -1) return complete ? fallback(afterHtml) : -1;
+                i = end + 2;
+                continue;
+            }
+            // Enough to see the tag name and the character after it.
+            if (i + 6 > length && !complete) return -1;
+            if (isTag(b, length, i, "head")) {
+                final int end = indexOf(b, length, i, ">");
+                if (end == -1) return complete ? length : -1;
+                return end + 1;
+            }
+            if (isTag(b, length, i, "body")) {
+                return (afterHtml != -1) ? afterHtml : i;
+            }
+            if (afterHtml == -1 && isTag(b, length, i, "html")) {
+                final int end = indexOf(b, length, i, ">");
+                if (end == -1) return complete ? length : -1;
+                afterHtml = end + 1;
+            }
+        }
+        return complete ? fallback(afterHtml) : -1;
+    }
+
+    private static int fallback(int afterHtml) {
+        return (afterHtml != -1) ? afterHtml : 0;
+    }
+
+    /** Whether a start tag named {@code name}, in any case, begins at {@code i}. */
+    private static boolean isTag(byte[] b, int length, int i, String name) {
+        final int end = i + 1 + name.length();
+        if (end > length) return false;
+        for (int j = 0; j < name.length(); j++) {
+            if (Character.toLowerCase((char) b[i + 1 + j]) != name.charAt(j)) return false;
+        }
+        if (end == length) return true;
+        final byte c = b[end];
+        return c == '>' || c == '/' || c == ' ' || c == '\t' || c == '\n' || c == '\r'
+                || c == '\f';
+    }
+
+    private static boolean startsWith(byte[] b, int length, int i, String s) {
+        if (i + s.length() > length) return false;
+        for (int j = 0; j < s.length(); j++) {
+            if (b[i + j] != s.charAt(j)) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] b, int length, int from, String s) {
+        for (int i = from; i + s.length() <= length; i++) {
+            if (startsWith(b, length, i, s)) return i;
+        }
+        return -1;
+    }
+
+    private void finish() {
+        if (mFinished) return;
+        mFinished = true;
+        mListener.onFinished(mScanner.getFields());
+    }
+}
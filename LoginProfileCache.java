@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * In-memory copy of the login forms stored by the captive portal app.
+ *
+ * A login is found by SSID, or by a fingerprint of the portal: the host the portal redirects the
+ * probe to and the OUI of the access point's BSSID. The app stores a login per SSID and redirect
+ * host, so unrelated venues that share a generic SSID like "Guest" each have their own, and a
+ * query for one never gets the login of another's portal. The fingerprint lets one recording
+ * serve a chain whose venues use different SSIDs. Every lookup is a few hash map hits and a scan
+ * of the logins stored for one SSID, however many logins are stored.
+ *
+ * All forms are loaded from the app's provider in the background when the cache is created. The
+ * app notifies content://AUTHORITY/<SSID>[/<redirect host>] whenever it stores a form, and the
+ * cache reloads just that SSID's forms, so a lookup is normally a map hit. Until a load has
+ * completed, or while a changed SSID is being reloaded, {@link #lookup} queries the provider
+ * itself.
+ *
+ * {@hide}
+ */
+public class LoginProfileCache {
+    private static final String TAG = LoginProfileCache.class.getSimpleName();
+
+    // Must match the captive portal app's provider.
+    private static final String PROFILE_AUTHORITY = "com.android.captiveportallogin";
+    private static final Uri PROFILES_URI = Uri.parse("content://" + PROFILE_AUTHORITY);
+    private static final String COLUMN_SSID = "ssid";
+    private static final String COLUMN_PARAMS = "params";
+    private static final String COLUMN_ACTION_URL = "action_url";
+    private static final String COLUMN_SCRIPT = "script";
+    private static final String COLUMN_REDIRECT_HOST = "redirect_host";
+    private static final String COLUMN_OUI = "oui";
+    private static final String[] PROJECTION = { COLUMN_SSID, COLUMN_PARAMS, COLUMN_ACTION_URL,
+            COLUMN_SCRIPT, COLUMN_REDIRECT_HOST, COLUMN_OUI };
+
+    /** A stored login form. */
+    public static final class Profile {
+        public final String ssid;
+        // Identifies the login in logs and ReplayStats: the SSID, and the portal if known.
+        public final String name;
+        // The form-encoded parameters.
+        public final String params;
+        public final String actionUrl;
+        // The whole recorded sign-in, or null if only the last form was recorded.
+        public final LoginScript script;
+        // The portal's fingerprint as recorded with the login. Lower case, null if unknown.
+        public final String redirectHost;
+        public final String oui;
+        public final String actionHost;
+
+        public Profile(String ssid, String params, String actionUrl, LoginScript script,
+                String redirectHost, String oui) {
+            this.ssid = ssid;
+            this.params = params;
+            this.actionUrl = actionUrl;
+            this.script = script;
+            this.redirectHost = lowerCase(redirectHost);
+            this.oui = lowerCase(oui);
+            this.actionHost = hostOf(actionUrl);
+            this.name = (this.redirectHost != null) ? ssid + " via " + this.redirectHost : ssid;
+        }
+    }
+
+    /** The network and portal a login is wanted for. */
+    public static final class Query {
+        public final String ssid;
+        // Lower case, or null if not known.
+        public final String redirectHost;
+        public final String oui;
+
+        /**
+         * @param bssid the access point's BSSID, or null.
+         * @param redirectUrl where the portal redirected the probe, or null if not known yet.
+         */
+        public Query(String ssid, String bssid, String redirectUrl) {
+            this.ssid = ssid;
+            this.redirectHost = hostOf(redirectUrl);
+            this.oui = (bssid != null && bssid.length() >= 8)
+                    ? bssid.substring(0, 8).toLowerCase(Locale.US) : null;
+        }
+
+        @Override
+        public String toString() {
+            return ssid + (redirectHost != null ? " via " + redirectHost : "") +
+                    (oui != null ? " " + oui : "");
+        }
+    }
+
+    private static LoginProfileCache sInstance;
+
+    private final ContentResolver mResolver;
+    // Reloads profiles after change notifications.
+    private final ExecutorService mLoader;
+
+    // Everything below is guarded by this.
+    // By SSID. A few per SSID at most, one per redirect host.
+    private final HashMap<String, List<Profile>> mProfiles = new HashMap<>();
+    // Every profile with a fingerprint, by fingerprint.
+    private final HashMap<String, List<Profile>> mPortals = new HashMap<>();
+    // The preferred profile for each fingerprint in mPortals. See updateIndex().
+    private final HashMap<String, Profile> mIndex = new HashMap<>();
+    // SSIDs changed since they were last loaded.
+    private final HashSet<String> mStale = new HashSet<>();
+    private boolean mLoaded;
+    // Whether loadAll() is queued or running.
+    private boolean mLoadPending;
+    // Incremented on every change notification, so that a load that raced one is not kept.
+    private int mGeneration;
+    private int mHits;
+    private int mMisses;
+    // Lookups answered with the login of another SSID behind the same portal.
+    private int mFingerprintMatches;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            // content://AUTHORITY/<SSID>[/<redirect host>]. Every form of the SSID is reloaded.
+            final List<String> segments = (uri != null) ? uri.getPathSegments() : null;
+            onProfileChanged((segments != null && !segments.isEmpty()) ? segments.get(0) : null);
+        }
+    };
+
+    public static synchronized LoginProfileCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LoginProfileCache(context.getContentResolver());
+            sInstance.start();
+        }
+        return sInstance;
+    }
+
+    private LoginProfileCache(ContentResolver resolver) {
+        mResolver = resolver;
+        mLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, TAG);
+            }
+        });
+    }
+
+    private void start() {
+        mResolver.registerContentObserver(PROFILES_URI, true /* notifyForDescendants */,
+                mObserver);
+        scheduleLoadAll();
+    }
+
+    private synchronized void scheduleLoadAll() {
+        if (mLoadPending) return;
+        mLoadPending = true;
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadAll();
+            }
+        });
+    }
+
+    /**
+     * Returns the login that best matches {@code query}, or null if there is none. In order of
+     * preference: one recorded on this SSID behind the same portal, one recorded on another SSID
+     * behind the same portal and an access point of the same vendor, and one recorded on this
+     * SSID that is not known to be for another portal. Queries the provider, by SSID only, if
+     * the cached copy is missing or out of date.
+     */
+    public Profile lookup(Query query) {
+        synchronized (this) {
+            if (mLoaded && !mStale.contains(query.ssid)) {
+                mHits++;
+                return find(query);
+            }
+            mMisses++;
+        }
+        // The provider may not have been available when the cache was created.
+        if (!isLoaded()) scheduleLoadAll();
+        final List<Profile> profiles = loadOne(query.ssid);
+        final Profile profile = forPortal(profiles, query);
+        return (profile != null) ? profile : anyCompatible(profiles, query);
+    }
+
+    private Profile find(Query query) {
+        final List<Profile> profiles = mProfiles.get(query.ssid);
+        Profile profile = forPortal(profiles, query);
+        if (profile != null) return profile;
+        if (query.redirectHost != null && query.oui != null) {
+            profile = mIndex.get(portalKey(query.redirectHost, query.oui));
+            if (profile != null) {
+                mFingerprintMatches++;
+                return profile;
+            }
+        }
+        return anyCompatible(profiles, query);
+    }
+
+    /** Returns the login among {@code profiles} recorded behind the query's portal, or null. */
+    private static Profile forPortal(List<Profile> profiles, Query query) {
+        if (profiles == null || query.redirectHost == null) return null;
+        for (Profile profile : profiles) {
+            if (query.redirectHost.equals(profile.redirectHost)) return profile;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a login among {@code profiles} that may be for the query's portal, preferring one
+     * recorded without a known portal, or null.
+     */
+    private static Profile anyCompatible(List<Profile> profiles, Query query) {
+        if (profiles == null) return null;
+        Profile compatible = null;
+        for (Profile profile : profiles) {
+            if (profile.redirectHost == null) return profile;
+            if (compatible == null && isCompatible(profile, query)) compatible = profile;
+        }
+        return compatible;
+    }
+
+    /** Whether a login found by SSID alone may be for the portal of {@code query}. */
+    private static boolean isCompatible(Profile profile, Query query) {
+        return profile.redirectHost == null || query.redirectHost == null
+                || profile.redirectHost.equals(query.redirectHost);
+    }
+
+    /** Rebuilds mPortals and mIndex from mProfiles. */
+    private void rebuildIndex() {
+        mPortals.clear();
+        mIndex.clear();
+        for (List<Profile> profiles : mProfiles.values()) updateIndex(null, profiles);
+    }
+
+    /**
+     * Updates mPortals and mIndex for an SSID whose profiles changed from {@code removed} to
+     * {@code added}, either of which may be null. Only the fingerprints of those profiles are
+     * looked at again, so that storing one login does not re-index every other.
+     *
+     * A profile is indexed by redirect host and OUI. When profiles of several SSIDs share a
+     * redirect host and OUI, the one whose form posts back to the redirect host is preferred,
+     * since that is most likely the portal's own login rather than one of a venue that sends its
+     * portal elsewhere.
+     */
+    private void updateIndex(List<Profile> removed, List<Profile> added) {
+        final HashSet<String> changed = new HashSet<>();
+        if (removed != null) {
+            for (Profile profile : removed) {
+                final String key = portalKeyOf(profile);
+                if (key == null) continue;
+                final List<Profile> candidates = mPortals.get(key);
+                if (candidates != null) candidates.remove(profile);
+                changed.add(key);
+            }
+        }
+        if (added != null) {
+            for (Profile profile : added) {
+                final String key = portalKeyOf(profile);
+                if (key == null) continue;
+                List<Profile> candidates = mPortals.get(key);
+                if (candidates == null) {
+                    candidates = new ArrayList<>();
+                    mPortals.put(key, candidates);
+                }
+                candidates.add(profile);
+                changed.add(key);
+            }
+        }
+        for (String key : changed) {
+            final List<Profile> candidates = mPortals.get(key);
+            if (candidates == null || candidates.isEmpty()) {
+                mPortals.remove(key);
+                mIndex.remove(key);
+                continue;
+            }
+            Profile preferred = candidates.get(0);
+            for (Profile profile : candidates) {
+                if (profile.redirectHost.equals(profile.actionHost)) {
+                    preferred = profile;
+                    break;
+                }
+            }
+            mIndex.put(key, preferred);
+        }
+    }
+
+    /** Returns the fingerprint of {@code profile}, or null if it has none. */
+    private static String portalKeyOf(Profile profile) {
+        if (profile.redirectHost == null || profile.oui == null) return null;
+        return portalKey(profile.redirectHost, profile.oui);
+    }
+
+    // Redirect hosts cannot contain NUL.
+    private static String portalKey(String redirectHost, String oui) {
+        return "p\0" + redirectHost + "\0" + oui;
+    }
+
+    private static String lowerCase(String s) {
+        return (s != null) ? s.toLowerCase(Locale.US) : null;
+    }
+
+    /** Returns the lower-case host of {@code url}, or null if it is null or malformed. */
+    private static String hostOf(String url) {
+        if (url == null) return null;
+        try {
+            final String host = new URL(url).getHost();
+            return host.isEmpty() ? null : host.toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    private synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    private void onProfileChanged(final String ssid) {
+        synchronized (this) {
+            mGeneration++;
+            if (ssid == null) {
+                mLoaded = false;
+            } else {
+                mStale.add(ssid);
+            }
+        }
+        if (ssid == null) {
+            scheduleLoadAll();
+            return;
+        }
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadOne(ssid);
+            }
+        });
+    }
+
+    private void loadAll() {
+        final int generation;
+        synchronized (this) {
+            mLoadPending = false;
+            generation = mGeneration;
+        }
+        final HashMap<String, List<Profile>> profiles = query(PROFILES_URI);
+        if (profiles == null) return;
+        synchronized (this) {
+            // A change raced the load. Lookups query the provider until the next load.
+            if (generation != mGeneration) return;
+            mProfiles.clear();
+            mProfiles.putAll(profiles);
+            rebuildIndex();
+            mStale.clear();
+            mLoaded = true;
+        }
+    }
+
+    /** Loads every login stored for {@code ssid}. Returns null if there is none. */
+    private List<Profile> loadOne(String ssid) {
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        final HashMap<String, List<Profile>> profiles =
+                query(Uri.withAppendedPath(PROFILES_URI, Uri.encode(ssid)));
+        if (profiles == null) return null;
+        final List<Profile> forSsid = profiles.get(ssid);
+        synchronized (this) {
+            if (generation == mGeneration && mLoaded) {
+                final List<Profile> old = (forSsid != null)
+                        ? mProfiles.put(ssid, forSsid) : mProfiles.remove(ssid);
+                updateIndex(old, forSsid);
+                mStale.remove(ssid);
+            }
+        }
+        return forSsid;
+    }
+
+    /** Returns the profiles under {@code uri} by SSID, or null if the provider is unavailable. */
+    private HashMap<String, List<Profile>> query(Uri uri) {
+        final Cursor cursor;
+        try {
+            cursor = mResolver.query(uri, PROJECTION, null, null, null);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not query stored logins: " + e);
+            return null;
+        }
+        if (cursor == null) return null;
+        final HashMap<String, List<Profile>> profiles = new HashMap<>();
+        try {
+            final int ssidColumn = cursor.getColumnIndexOrThrow(COLUMN_SSID);
+            final int paramsColumn = cursor.getColumnIndexOrThrow(COLUMN_PARAMS);
+            final int actionUrlColumn = cursor.getColumnIndexOrThrow(COLUMN_ACTION_URL);
+            // Older versions of the app do not record scripts or fingerprints.
+            final int scriptColumn = cursor.getColumnIndex(COLUMN_SCRIPT);
+            final int redirectHostColumn = cursor.getColumnIndex(COLUMN_REDIRECT_HOST);
+            final int ouiColumn = cursor.getColumnIndex(COLUMN_OUI);
+            while (cursor.moveToNext()) {
+                final LoginScript script = (scriptColumn >= 0)
+                        ? LoginScript.parse(cursor.getString(scriptColumn)) : null;
+                final Profile profile = new Profile(cursor.getString(ssidColumn),
+                        cursor.getString(paramsColumn), cursor.getString(actionUrlColumn),
+                        script,
+                        (redirectHostColumn >= 0) ? cursor.getString(redirectHostColumn) : null,
+                        (ouiColumn >= 0) ? cursor.getString(ouiColumn) : null);
+                if (profile.ssid == null || profile.params == null || profile.actionUrl == null) {
+                    continue;
+                }
+                List<Profile> forSsid = profiles.get(profile.ssid);
+                if (forSsid == null) {
+                    forSsid = new ArrayList<>();
+                    profiles.put(profile.ssid, forSsid);
+                }
+                forSsid.add(profile);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unexpected stored login columns: " + e);
+            return null;
+        } finally {
+            cursor.close();
+        }
+        return profiles;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int count = 0;
+        for (List<Profile> profiles : mProfiles.values()) count += profiles.size();
+        return "profiles=" + count + (mLoaded ? "" : " (not loaded)") + " hits=" +
+                mHits + " misses=" + mMisses + " fingerprint=" + mFingerprintMatches;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The sequence of requests that signed in to a captive portal, as recorded by the captive portal
+ * app, e.g. fetching the landing page, accepting the terms, then submitting a second form.
+ *
+ * The recorded form is text: a "loginscript 1" line, then one line per request with these
+ * tab-separated fields:
+ *
+ *   method, URL, comma-separated names of the cookies the request needs, form body template
+ *
+ * The template is form-encoded. A value written as {{name}} is filled in when replaying from the
+ * hidden input called name on the HTML page fetched by the previous step, as found by
+ * {@link PortalFormScanner}, so that per-session tokens are not replayed stale.
+ *
+ * {@hide}
+ */
+public class LoginScript {
+    private static final String TAG = LoginScript.class.getSimpleName();
+
+    private static final String HEADER = "loginscript 1";
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{([^}]*)\\}\\}");
+
+    /** One request. */
+    public static final class Step {
+        public final String method;
+        public final URL url;
+        // Names of cookies set by earlier steps that this request sends.
+        public final List<String> cookies;
+        // Form-encoded body, possibly with placeholders, or null for no body.
+        public final String bodyTemplate;
+
+        public Step(String method, URL url, List<String> cookies, String bodyTemplate) {
+            this.method = method;
+            this.url = url;
+            this.cookies = cookies;
+            this.bodyTemplate = bodyTemplate;
+        }
+
+        public boolean isGet() {
+            return "GET".equals(method);
+        }
+
+        /** Whether the body needs hidden fields from the page fetched by the previous step. */
+        public boolean needsHiddenFields() {
+            return bodyTemplate != null && PLACEHOLDER.matcher(bodyTemplate).find();
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + url.getHost();
+        }
+    }
+
+    public final List<Step> steps;
+
+    public LoginScript(List<Step> steps) {
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    /** Parses a recorded script, or returns null if it is not one this version understands. */
+    public static LoginScript parse(String text) {
+        if (text == null) return null;
+        final String[] lines = text.split("\n");
+        if (!HEADER.equals(lines[0].trim())) return null;
+        final List<Step> steps = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].isEmpty()) continue;
+            final String[] fields = lines[i].split("\t", -1);
+            if (fields.length != 4) {
+                Log.w(TAG, "Malformed login script step " + i);
+                return null;
+            }
+            final String method = fields[0].toUpperCase(Locale.US);
+            if (!"GET".equals(method) && !"POST".equals(method)) return null;
+            final URL url;
+            try {
+                url = new URL(fields[1]);
+            } catch (MalformedURLException e) {
+                Log.w(TAG, "Malformed URL in login script step " + i);
+                return null;
+            }
+            final List<String> cookies = new ArrayList<>();
+            for (String name : fields[2].split(",")) {
+                if (!name.isEmpty()) cookies.add(name);
+            }
+            steps.add(new Step(method, url, cookies, fields[3].isEmpty() ? null : fields[3]));
+        }
+        return steps.isEmpty() ? null : new LoginScript(steps);
+    }
+
+    /**
+     * Whether step {@code index} still has to be sent. POSTs always are. A GET only matters for
+     * what it sets up for later steps: the hidden fields that the next step's body needs, or
+     * cookies that later steps need and that have not been set in this replay. Cookies stored
+     * from earlier visits do not count, since they may have gone stale.
+     */
+    public boolean isNeeded(int index, PortalCookieJar jar) {
+        final Step step = steps.get(index);
+        if (!step.isGet()) return true;
+        if (index + 1 < steps.size() && steps.get(index + 1).needsHiddenFields()) return true;
+        for (int i = index + 1; i < steps.size(); i++) {
+            final Step later = steps.get(i);
+            for (String cookie : later.cookies) {
+                if (!jar.hasNew(later.url, cookie)) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the step a replay starts with, before any cookies have been set. */
+    public Step getFirstStepToSend() {
+        final PortalCookieJar jar = new PortalCookieJar();
+        for (int i = 0; i < steps.size(); i++) {
+            if (isNeeded(i, jar)) return steps.get(i);
+        }
+        return steps.get(0);
+    }
+
+    /**
+     * Fills the placeholders in {@code template} from {@code fields}. Placeholders with no field
+     * are left empty.
+     */
+    public static String fillTemplate(String template, Map<String, String> fields) {
+        final Matcher m = PLACEHOLDER.matcher(template);
+        final StringBuffer body = new StringBuffer();
+        while (m.find()) {
+            final String value = fields.get(urlDecode(m.group(1)));
+            m.appendReplacement(body, Matcher.quoteReplacement(
+                    (value != null) ? urlEncode(value) : ""));
+        }
+        m.appendTail(body);
+        return body.toString();
+    }
+
+    private static String urlEncode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String urlDecode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return s;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return steps.toString();
+    }
+}
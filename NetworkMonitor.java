@@ -80,23 +80,28 @@ import com.android.server.connectivity.NetworkAgentInfo;
 //import java.io.DataOutputStream;
 //import org.apache.http.util.EncodingUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
@@ -108,6 +113,20 @@ public class NetworkMonitor extends StateMachine {
     private static final String TAG = NetworkMonitor.class.getSimpleName();
     private static final String DEFAULT_SERVER = "connectivitycheck.gstatic.com";
     private static final int SOCKET_TIMEOUT_MS = 10000;
+    // Bounds on the adaptive probe timeout. See ProbeTimeoutEstimator.
+    private static final String PROBE_TIMEOUT_FLOOR_SETTING = "captive_portal_probe_timeout_min_ms";
+    private static final String PROBE_TIMEOUT_CEILING_SETTING =
+            "captive_portal_probe_timeout_max_ms";
+    private static final int DEFAULT_PROBE_TIMEOUT_FLOOR_MS = 2000;
+    private static final int DEFAULT_PROBE_TIMEOUT_CEILING_MS = 30000;
+    // Ordered list of probe endpoints, in the format described in ProbeEndpoint. If unset, the
+    // probes go to Settings.Global.CAPTIVE_PORTAL_SERVER, or to DEFAULT_SERVER.
+    private static final String PROBE_ENDPOINTS_SETTING = "captive_portal_probe_endpoints";
+    // At most this many endpoints are probed at once. The others are tried, best ranked first,
+    // as earlier ones fail.
+    private static final int MAX_CONCURRENT_ENDPOINT_PROBES = 3;
+    // Longest body read from an endpoint that is expected to serve a known body.
+    private static final int MAX_ENDPOINT_BODY_BYTES = 16 * 1024;
     public static final String ACTION_NETWORK_CONDITIONS_MEASURED =
             "android.net.conn.NETWORK_CONDITIONS_MEASURED";
     public static final String EXTRA_CONNECTIVITY_TYPE = "extra_connectivity_type";
@@ -122,6 +141,10 @@ public class NetworkMonitor extends StateMachine {
      */
     public static final String EXTRA_REQUEST_TIMESTAMP_MS = "extra_request_timestamp_ms";
     public static final String EXTRA_RESPONSE_TIMESTAMP_MS = "extra_response_timestamp_ms";
+    /**
+     * Probe timeout suited to this network, passed to the captive portal sign-in app.
+     */
+    public static final String EXTRA_PROBE_TIMEOUT_MS = "extra_probe_timeout_ms";
 
     private static final String PERMISSION_ACCESS_NETWORK_CONDITIONS =
             "android.permission.ACCESS_NETWORK_CONDITIONS";
@@ -227,15 +250,40 @@ public class NetworkMonitor extends StateMachine {
      */
     private static final int CMD_CAPTIVE_PORTAL_RECHECK = BASE + 12;
 
+    /**
+     * Message to self indicating that an asynchronous evaluation has finished.
+     * arg1 = Token to ignore old messages.
+     * arg2 = 1 if the stored portal login was replayed before probing, 0 otherwise.
+     * obj  = CaptivePortalProbeResult.
+     */
+    private static final int CMD_PROBE_COMPLETE = BASE + 13;
+
+    /**
+     * Message to self indicating that a replay of the stored portal login has finished.
+     * arg1 = Token to ignore old messages.
+     * obj  = PortalLoginReplayer.Result.
+     */
+    private static final int CMD_REPLAY_COMPLETE = BASE + 14;
+
+    /**
+     * Message to self carrying the verdict stored for this network, looked up off this thread.
+     * obj  = PortalVerdictCache.Verdict.
+     */
+    private static final int CMD_VERDICT_LOOKED_UP = BASE + 15;
+
     private static final String LINGER_DELAY_PROPERTY = "persist.netmon.linger";
     // Default to 30s linger time-out.  Modifyable only for testing.
     private static int DEFAULT_LINGER_DELAY_MS = 30000;
     private final int mLingerDelayMs;
     private int mLingerToken = 0;
 
-    // Start mReevaluateDelayMs at this value and double.
+    // Reevaluation delays grow from this value up to MAX_REEVALUATE_DELAY_MS, as chosen by
+    // mReevaluateBackoff.
     private static final int INITIAL_REEVALUATE_DELAY_MS = 1000;
     private static final int MAX_REEVALUATE_DELAY_MS = 10 * 60 * 1000;
+    // Backoff strategy for reevaluations and portal rechecks, one of the
+    // ReevaluationBackoff.STRATEGY_* names.
+    private static final String REEVALUATE_BACKOFF_SETTING = "captive_portal_reevaluate_backoff";
     // Before network has been evaluated this many times, ignore repeated reevaluate requests.
     private static final int IGNORE_REEVALUATE_ATTEMPTS = 5;
     private int mReevaluateToken = 0;
@@ -243,8 +291,15 @@ public class NetworkMonitor extends StateMachine {
     private int mUidResponsibleForReeval = INVALID_UID;
     // Stop blaming UID that requested re-evaluation after this many attempts.
     private static final int BLAME_FOR_EVALUATION_ATTEMPTS = 5;
-    // Delay between reevaluations once a captive portal has been found.
+    // Delay between reevaluations once a captive portal has been found. The first recheck waits
+    // this long on average, jittered either side by mRecheckBackoff, and later ones are spread
+    // out up to MAX_CAPTIVE_PORTAL_REEVALUATE_DELAY_MS.
     private static final int CAPTIVE_PORTAL_REEVALUATE_DELAY_MS = 10 * 60 * 1000;
+    private static final int MAX_CAPTIVE_PORTAL_REEVALUATE_DELAY_MS = 30 * 60 * 1000;
+    // Once a replayed login has been accepted, the portal may take a moment to let traffic
+    // through. Verify with this many HTTP probes, this far apart, before a full evaluation.
+    private static final int POST_REPLAY_VERIFY_ATTEMPTS = 3;
+    private static final int POST_REPLAY_VERIFY_SPACING_MS = 500;
 
     private final Context mContext;
     private final Handler mConnectivityServiceHandler;
@@ -256,7 +311,8 @@ public class NetworkMonitor extends StateMachine {
     private final NetworkRequest mDefaultRequest;
 
     private boolean mIsCaptivePortalCheckEnabled;
-    private boolean mUseHttps;
+    // Written on the StateMachine thread, read by isCaptivePortal() on the evaluation thread.
+    private volatile boolean mUseHttps;
 
     // Set if the user explicitly selected "Do not use this network" in captive portal sign-in app.
     private boolean mUserDoesNotWant = false;
@@ -278,6 +334,39 @@ public class NetworkMonitor extends StateMachine {
 
     private final Stopwatch mEvaluationTimer = new Stopwatch();
 
+    // Runs isCaptivePortal() off the StateMachine thread. Results come back as
+    // CMD_PROBE_COMPLETE. Single-threaded, so at most one evaluation is in flight.
+    private final ExecutorService mEvaluationExecutor;
+
+    // Races probe connections across the probe server's addresses on this network.
+    private final ProbeConnector mProbeConnector;
+
+    // DNS results on this network, shared by probes, rechecks and the stored login replay.
+    private final ProbeDnsCache mDnsCache;
+
+    // Replays the stored portal login on threads of its own. Results come back as
+    // CMD_REPLAY_COMPLETE.
+    private final PortalLoginReplayer mReplayer;
+
+    // How replaying each stored login has gone. Shared by all networks.
+    private final ReplayStats mReplayStats;
+
+    private final PortalVerdictCache mVerdictCache;
+
+    // Probe timeout for this network, adapted to how long its probes take.
+    private final ProbeTimeoutEstimator mTimeoutEstimator;
+    // Configured probe endpoints, with their latency stats on this network. Empty if none are
+    // configured.
+    private final List<ProbeEndpoint> mProbeEndpoints;
+    // Delays before reevaluating after a failed evaluation, and before rechecking a portal.
+    private final ReevaluationBackoff mReevaluateBackoff;
+    private final ReevaluationBackoff mRecheckBackoff;
+    // Retry-After sent with the probe response that found the portal, for the next recheck.
+    private String mPortalRetryAfter;
+    // Verdict looked up after CMD_NETWORK_CONNECTED, if it arrived before the first evaluation
+    // started. Consumed by it.
+    private PortalVerdictCache.Verdict mCachedVerdict;
+
     public NetworkMonitor(Context context, Handler handler, NetworkAgentInfo networkAgentInfo,
                           NetworkRequest defaultRequest) {
         // Add suffix indicating which NetworkMonitor we're talking about.
@@ -291,6 +380,35 @@ public class NetworkMonitor extends StateMachine {
         mWifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
         mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         mDefaultRequest = defaultRequest;
+        final String threadName = TAG + networkAgentInfo.name() + "/eval";
+        mEvaluationExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, threadName);
+            }
+        });
+
+        mProbeConnector = new ProbeConnector(mNetworkAgentInfo.network);
+        mDnsCache = new ProbeDnsCache(mNetworkAgentInfo.network);
+        mReplayStats = ReplayStats.getInstance();
+        mReplayer = new PortalLoginReplayer(LoginProfileCache.getInstance(context),
+                new StoredPortalCookies(context.getContentResolver()), mReplayStats,
+                mProbeConnector, mDnsCache, TAG + networkAgentInfo.name() + "/replay");
+        mVerdictCache = PortalVerdictCache.getInstance();
+        final int timeoutFloorMs = Settings.Global.getInt(context.getContentResolver(),
+                PROBE_TIMEOUT_FLOOR_SETTING, DEFAULT_PROBE_TIMEOUT_FLOOR_MS);
+        final int timeoutCeilingMs = Settings.Global.getInt(context.getContentResolver(),
+                PROBE_TIMEOUT_CEILING_SETTING, DEFAULT_PROBE_TIMEOUT_CEILING_MS);
+        mTimeoutEstimator = new ProbeTimeoutEstimator(SOCKET_TIMEOUT_MS,
+                Math.max(1, timeoutFloorMs), Math.max(timeoutFloorMs, timeoutCeilingMs));
+        mProbeEndpoints = ProbeEndpoint.parseList(Settings.Global.getString(
+                context.getContentResolver(), PROBE_ENDPOINTS_SETTING));
+        final String backoffStrategy = Settings.Global.getString(context.getContentResolver(),
+                REEVALUATE_BACKOFF_SETTING);
+        mReevaluateBackoff = ReevaluationBackoff.create(backoffStrategy,
+                INITIAL_REEVALUATE_DELAY_MS, MAX_REEVALUATE_DELAY_MS);
+        mRecheckBackoff = ReevaluationBackoff.create(backoffStrategy,
+                CAPTIVE_PORTAL_REEVALUATE_DELAY_MS, MAX_CAPTIVE_PORTAL_REEVALUATE_DELAY_MS);
 
         addState(mDefaultState);
         addState(mValidatedState, mDefaultState);
@@ -336,6 +454,10 @@ public class NetworkMonitor extends StateMachine {
                     return HANDLED;
                 case CMD_NETWORK_CONNECTED:
                     NetworkEvent.logEvent(mNetId, NetworkEvent.NETWORK_CONNECTED);
+                    final WifiInfo wifiInfo = getConnectedWifiInfo();
+                    if (wifiInfo != null) {
+                        lookUpVerdictAsync(wifiInfo.getSSID(), bssidOf(wifiInfo));
+                    }
                     transitionTo(mEvaluatingState);
                     return HANDLED;
                 case CMD_NETWORK_DISCONNECTED:
@@ -344,16 +466,23 @@ public class NetworkMonitor extends StateMachine {
                         mContext.unregisterReceiver(mLaunchCaptivePortalAppBroadcastReceiver);
                         mLaunchCaptivePortalAppBroadcastReceiver = null;
                     }
+                    mEvaluationExecutor.shutdownNow();
+                    mReplayer.shutdown();
+                    mDnsCache.clear();
+                    mProbeConnector.close();
                     quit();
                     return HANDLED;
                 case CMD_FORCE_REEVALUATION:
                 case CMD_CAPTIVE_PORTAL_RECHECK:
                     log("Forcing reevaluation for UID " + message.arg1);
+                    forgetProbeRoutes();
                     mUidResponsibleForReeval = message.arg1;
                     transitionTo(mEvaluatingState);
                     return HANDLED;
                 case CMD_CAPTIVE_PORTAL_APP_FINISHED:
                     log("CaptivePortal App responded with " + message.arg1);
+                    // The user may have signed in, which changes where traffic goes.
+                    forgetProbeRoutes();
 
                     // If the user has seen and acted on a captive portal notification, and the
                     // captive portal app is now closed, disable HTTPS probes. This avoids the
@@ -408,6 +537,7 @@ public class NetworkMonitor extends StateMachine {
                 NetworkEvent.logValidated(mNetId, mEvaluationTimer.stop());
                 mEvaluationTimer.reset();
             }
+            mRecheckBackoff.reset();
             mConnectivityServiceHandler.sendMessage(obtainMessage(EVENT_NETWORK_TESTED,
                     NETWORK_TEST_RESULT_VALID, mNetworkAgentInfo.network.netId, null));
         }
@@ -434,6 +564,7 @@ public class NetworkMonitor extends StateMachine {
                     final Intent intent = new Intent(
                             ConnectivityManager.ACTION_CAPTIVE_PORTAL_SIGN_IN);
                     intent.putExtra(ConnectivityManager.EXTRA_NETWORK, mNetworkAgentInfo.network);
+                    intent.putExtra(EXTRA_PROBE_TIMEOUT_MS, mTimeoutEstimator.getTimeoutMs());
                     intent.putExtra(ConnectivityManager.EXTRA_CAPTIVE_PORTAL,
                             new CaptivePortal(new ICaptivePortal.Stub() {
                                 @Override
@@ -474,10 +605,17 @@ public class NetworkMonitor extends StateMachine {
 
         final int mHttpResponseCode; // HTTP response code returned from Internet probe.
         final String mRedirectUrl;   // Redirect destination returned from Internet probe.
+        final String mRetryAfter;    // Retry-After header returned from Internet probe.
 
         public CaptivePortalProbeResult(int httpResponseCode, String redirectUrl) {
+            this(httpResponseCode, redirectUrl, null);
+        }
+
+        public CaptivePortalProbeResult(int httpResponseCode, String redirectUrl,
+                String retryAfter) {
             mHttpResponseCode = httpResponseCode;
             mRedirectUrl = redirectUrl;
+            mRetryAfter = retryAfter;
         }
 
         boolean isSuccessful() {
@@ -492,8 +630,14 @@ public class NetworkMonitor extends StateMachine {
     // Being in the EvaluatingState State indicates the Network is being evaluated for internet
     // connectivity, or that the user has indicated that this network is unwanted.
     private class EvaluatingState extends State {
-        private int mReevaluateDelayMs;
         private int mAttempts;
+        // UID billed for probe traffic. Applied on the evaluation thread, not on this one.
+        private int mUidToBlame;
+        // Whether the stored login has been replayed in this evaluation, and how that went.
+        private boolean mReplayStarted;
+        private PortalLoginReplayer.Result mReplayResult;
+        // The probe result that found a portal in this evaluation, if any.
+        private CaptivePortalProbeResult mPortalResult;
 
         @Override
         public void enter() {
@@ -504,12 +648,52 @@ public class NetworkMonitor extends StateMachine {
                 mEvaluationTimer.start();
             }
             sendMessage(CMD_REEVALUATE, ++mReevaluateToken, 0);
-            if (mUidResponsibleForReeval != INVALID_UID) {
-                TrafficStats.setThreadStatsUid(mUidResponsibleForReeval);
-                mUidResponsibleForReeval = INVALID_UID;
-            }
-            mReevaluateDelayMs = INITIAL_REEVALUATE_DELAY_MS;
+            mUidToBlame = mUidResponsibleForReeval;
+            mUidResponsibleForReeval = INVALID_UID;
+            mReevaluateBackoff.reset();
             mAttempts = 0;
+            resetReplay();
+        }
+
+        private void resetReplay() {
+            mReplayer.cancel();
+            mReplayStarted = false;
+            mReplayResult = null;
+            mPortalResult = null;
+        }
+
+        /**
+         * Starts replaying the stored login. The result comes back as CMD_REPLAY_COMPLETE.
+         *
+         * @param redirectUrl where the portal redirects the probe, if known, which helps find
+         *         the right login.
+         */
+        private void startReplay(String redirectUrl) {
+            mReplayStarted = true;
+            // Signing in changes where probe traffic goes.
+            mProbeConnector.evictAll();
+            final int token = mReevaluateToken;
+            final PortalLoginReplayer.Callback callback = new PortalLoginReplayer.Callback() {
+                @Override
+                public void onReplayComplete(PortalLoginReplayer.Result result) {
+                    sendMessage(obtainMessage(CMD_REPLAY_COMPLETE, token, 0, result));
+                }
+            };
+            final WifiInfo wifiInfo = getConnectedWifiInfo();
+            if (wifiInfo == null) {
+                // Logins are stored per SSID, so there is nothing to replay.
+                callback.onReplayComplete(new PortalLoginReplayer.Result(
+                        PortalLoginReplayer.Result.STATUS_NO_PROFILE, -1, 0, null));
+                return;
+            }
+            URL portalUrl = null;
+            try {
+                portalUrl = new URL(getCaptivePortalServerUrl(mContext, false));
+            } catch (MalformedURLException e) {
+                // Replay the stored form as it is.
+            }
+            mReplayer.replay(new LoginProfileCache.Query(wifiInfo.getSSID(), wifiInfo.getBSSID(),
+                    redirectUrl), portalUrl, callback);
         }
 
         @Override
@@ -542,135 +726,124 @@ public class NetworkMonitor extends StateMachine {
                         return HANDLED;
                     }
                     mAttempts++;
-                    // Note: This call to isCaptivePortal() could take up to a minute. Resolving the
-                    // server's IP addresses could hit the DNS timeout, and attempting connections
-                    // to each of the server's several IP addresses (currently one IPv4 and one
-                    // IPv6) could each take SOCKET_TIMEOUT_MS.  During this time this StateMachine
-                    // will be unresponsive. isCaptivePortal() could be executed on another Thread
-                    // if this is found to cause problems.
-                    CaptivePortalProbeResult probeResult = isCaptivePortal();
+                    resetReplay();
+                    // isCaptivePortal() could take up to a minute: resolving the server's IP
+                    // addresses could hit the DNS timeout, and attempting connections to each of
+                    // the server's addresses could each take the probe timeout. Run it on the
+                    // evaluation thread and pick up the result in CMD_PROBE_COMPLETE so that this
+                    // StateMachine stays responsive to disconnects, lingering and forced
+                    // reevaluations in the meantime.
+                    final PortalVerdictCache.Verdict verdict = mCachedVerdict;
+                    mCachedVerdict = null;
+                    if (isReplayable(verdict)) {
+                        // Replay the login while a probe confirms the portal is still there.
+                        validationLog("Known portal " + verdict + ", replaying stored login");
+                        startReplay(verdict.redirectUrl);
+                    } else {
+                        // Should the probe find a portal, have the stored login ready to send.
+                        final WifiInfo wifiInfo = getConnectedWifiInfo();
+                        if (wifiInfo != null) {
+                            mReplayer.prewarm(new LoginProfileCache.Query(wifiInfo.getSSID(),
+                                    wifiInfo.getBSSID(), null));
+                        }
+                    }
+                    evaluateAsync(mReevaluateToken, mUidToBlame, null, null);
+                    return HANDLED;
+                case CMD_PROBE_COMPLETE:
+                    // Results from an evaluation started before the latest CMD_REEVALUATE, or
+                    // before this state was last entered, are stale.
+                    if (message.arg1 != mReevaluateToken || mUserDoesNotWant)
+                        return HANDLED;
+                    final CaptivePortalProbeResult probeResult =
+                            (CaptivePortalProbeResult) message.obj;
+                    final boolean replayed = message.arg2 != 0;
                     if (probeResult.isSuccessful()) {
+                        if (replayed) {
+                            Log.d("ELROY:", "Portal validated and notification not thrown");
+                            validationLog("Validated " + (SystemClock.elapsedRealtime() -
+                                    mReplayResult.completedAtMs) + "ms after the login replay");
+                        } else if (mReplayStarted && mReplayResult == null) {
+                            // Open before the replay could have signed in, so this is no longer
+                            // the portal that was remembered. Once the replay has sent the login,
+                            // the replay may be what let the device through.
+                            if (!mReplayer.cancel()) {
+                                mEvaluationExecutor.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        invalidateVerdict();
+                                    }
+                                });
+                            }
+                        }
                         transitionTo(mValidatedState);
+                    } else if (replayed) {
+                        Log.d("ELROY:", "Portal validation failed and notification thrown");
+                        Log.d("ELROY:", "Resuming regular transition to CaptivePortalState");
+                        mConnectivityServiceHandler.sendMessage(obtainMessage(EVENT_NETWORK_TESTED,
+                                NETWORK_TEST_RESULT_INVALID, mNetId, probeResult.mRedirectUrl));
+                        mPortalRetryAfter = probeResult.mRetryAfter;
+                        transitionTo(mCaptivePortalState);
                     } else if (probeResult.isPortal()) {
-                        // Add HTTP POST request here
                         Log.d("ELROY:", "Portal detected");
-                        try {
-
-                            // Get current SSID
-                            // Check if file with SSID exists
-                            // Fetch params and URL
-                            // Try replay
-
-                            String ssid= "temp";
-                            WifiManager wifiManager = (WifiManager) mContext.getSystemService(mContext.WIFI_SERVICE);
-                            WifiInfo wifiInfo = wifiManager.getConnectionInfo();
-                            if (wifiInfo.getSupplicantState() == SupplicantState.COMPLETED) {
-                                ssid = wifiInfo.getSSID();
-                            }
-                            Log.d("ELROY", ssid+" is the current SSID");
-
-                            Uri uri = Uri.parse("content://com.android.captiveportallogin/" + ssid);
-                            Log.d("ELROY","uri:" + uri.getPath());
-                            InputStream is = mContext.getApplicationContext().getContentResolver().openInputStream(uri);
-                            Log.d("ELROY","found inputstream:");
-//                            File file=new Environment().getExternalStorageDirectory();
-//                            String path="/data/user/0/com.android.captiveportallogin/files/\"UB_Guest\"";
-                            String Url="",params="";
-//                            File ssidFile=new File(path+ssid);
-//                            Log.d("ELROY","creating file");
-                            //File ssidFile = new File(path);
-//                            FileInputStream tempFile = mContext.createPackageContext("com.android.captiveportallogin",mContext.CONTEXT_IGNORE_SECURITY).openFileInput(ssid);
-//                            ssidFile.createNewFile();
-               //             Log.d("ELROY","file exists" + ssidFile.getAbsolutePath() + " " + ssidFile.exists());
-                            if(true) {
-
-                                //Log.d("ELROY", "can read the file?:" + ssidFile.canRead()+" ");
-                                try {
-                              //      BufferedReader in = new BufferedReader(new FileReader(new File(path + ssid)));
-                                    BufferedReader rd = new BufferedReader(new InputStreamReader(is));
-                                    params = rd.readLine();
-                                    Url = rd.readLine();
-                                    Log.d("ELROY", "reading from file " + params + " " + Url);
-//                                    String line;
-                              //      params=in.readLine();
-//                                    Log.d("ELROY", params);
-                              //      Url=in.readLine();
-                                }catch (IOException e) {
-                                    Log.d("ELROY exp","exception",e);
-                                    Log.d("ELROY", "File Empty");
-                                }
-                            }
-//                            BufferedReader br = new BufferedReader(new FileReader("/data/user/0/com.android.captiveportallogin/files/\"UB_Guest\""));
-//                            String params = br.readLine();
-//                            Log.d("ELROY-NM", "parameters getting passed: " + params);
-//                            URL url = new URL(br.readLine());
-//                            Log.d("ELROY-NM", "url created: " + url.toString());
-//                            String params = "buttonClicked=4&redirect_url=connectivitycheck.gstatic.com%2Fgenerate_204&err_flag=0&info_flag=0&info_msg=0&email=elroy_2008%40hotmail.com";
-//                            String params = "apname=24%3Ade%3Ac6%3Ace%3A44%3Ade&clmac=e4%3A90%3A7e%3Af0%3A0b%3Ab5";
-//                            URL url = new URL("https://ubwireless.cit.buffalo.edu/login.html");
-//                            URL url = new URL("http://sbux-portal.appspot.com/submit");
-                            URL url=new URL(Url);
-
-                            Log.d("ELROY", params);
-                            Log.d("ELROY", url.getHost());
-                            HttpURLConnection client = (HttpURLConnection) url.openConnection();
-                            byte[] postData = params.getBytes(StandardCharsets.UTF_8);
-                            int postDataLength = postData.length;
-//                            client.setDoOutput(true);
-                            client.setRequestMethod("POST");
-                            client.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                            client.setRequestProperty("charset", "utf-8");
-                            client.setRequestProperty("Content-Length", Integer.toString(postDataLength));
-//                            client.setUseCaches(false);
-                            client.connect();
-                            DataOutputStream wr = new DataOutputStream(client.getOutputStream());
-                            wr.write(postData);
-                            wr.flush();
-                            wr.close();
-                            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
-                            Log.d("ELROY", in.readLine());
-                            in.close();
-                            client.disconnect();
-                            Log.d("ELROY:", "Successful");
-
-                        } catch (MalformedURLException error) {
-                            Log.d("ELROY-NM", "Malformed URL:" + error.getMessage());
-                        } catch (IOException error) {
-                            Log.d("ELROY-NM", "IO Error:" + error.getMessage());
-                        } catch (Exception error){
-                            Log.d("ELROY-NM", error.getMessage());
-
-                        }
-
-                        //Now recheck if it is portal
-                        probeResult = isCaptivePortal();
-                        if (probeResult.isSuccessful()) {
-                            Log.d("ELROY:", "Portal validated and notification not thrown");
-                            transitionTo(mValidatedState);
-                        } else {
-                            Log.d("ELROY:", "Portal validation failed and notification thrown");
-                            Log.d("ELROY:", "Resuming regular transition to CaptivePortalState");
-                            mConnectivityServiceHandler.sendMessage(obtainMessage(EVENT_NETWORK_TESTED,
-                                    NETWORK_TEST_RESULT_INVALID, mNetId, probeResult.mRedirectUrl));
-                            transitionTo(mCaptivePortalState);
+                        forgetProbeRoutes();
+                        // Replay the stored login, if not already under way, and recheck once it
+                        // is done, all off this thread.
+                        mPortalResult = probeResult;
+                        if (!mReplayStarted) {
+                            startReplay(probeResult.mRedirectUrl);
+                        } else if (mReplayResult != null) {
+                            evaluateAsync(mReevaluateToken, mUidToBlame, mPortalResult,
+                                    mReplayResult);
                         }
                     } else {
+                        // Also drops the pre-warmed login connection, which has no use now.
+                        mReplayer.cancel();
                         final Message msg = obtainMessage(CMD_REEVALUATE, ++mReevaluateToken, 0);
-                        sendMessageDelayed(msg, mReevaluateDelayMs);
+                        final int delayMs = mReevaluateBackoff.nextDelayMs(probeResult.mRetryAfter);
+                        validationLog("Reevaluating in " + delayMs + "ms (" + mReevaluateBackoff +
+                                (probeResult.mRetryAfter != null
+                                        ? ", Retry-After: " + probeResult.mRetryAfter : "") + ")");
+                        sendMessageDelayed(msg, delayMs);
                         NetworkEvent.logEvent(mNetId, NetworkEvent.NETWORK_VALIDATION_FAILED);
                         mConnectivityServiceHandler.sendMessage(obtainMessage(
                                 EVENT_NETWORK_TESTED, NETWORK_TEST_RESULT_INVALID, mNetId,
                                 probeResult.mRedirectUrl));
                         if (mAttempts >= BLAME_FOR_EVALUATION_ATTEMPTS) {
                             // Don't continue to blame UID forever.
-                            TrafficStats.clearThreadStatsUid();
-                        }
-                        mReevaluateDelayMs *= 2;
-                        if (mReevaluateDelayMs > MAX_REEVALUATE_DELAY_MS) {
-                            mReevaluateDelayMs = MAX_REEVALUATE_DELAY_MS;
+                            mUidToBlame = INVALID_UID;
                         }
                     }
                     return HANDLED;
+                case CMD_VERDICT_LOOKED_UP:
+                    if (mUserDoesNotWant) return HANDLED;
+                    final PortalVerdictCache.Verdict lookedUp =
+                            (PortalVerdictCache.Verdict) message.obj;
+                    if (mAttempts == 0) {
+                        // The first evaluation has not started yet. It picks the verdict up.
+                        mCachedVerdict = lookedUp;
+                    } else if (isReplayable(lookedUp) && !mReplayStarted
+                            && mPortalResult == null) {
+                        // The probe is still running. Replay alongside it.
+                        validationLog("Known portal " + lookedUp + ", replaying stored login");
+                        startReplay(lookedUp.redirectUrl);
+                    }
+                    return HANDLED;
+                case CMD_REPLAY_COMPLETE:
+                    if (message.arg1 != mReevaluateToken || mUserDoesNotWant)
+                        return HANDLED;
+                    mReplayResult = (PortalLoginReplayer.Result) message.obj;
+                    // Nothing kept from before the login went in says anything about now.
+                    mProbeConnector.evictAll();
+                    validationLog("Stored login replay: " + mReplayResult + ", " + mReplayer);
+                    if (mReplayResult.status == PortalLoginReplayer.Result.STATUS_SKIPPED) {
+                        validationLog("Not replaying " + mReplayStats.describe(
+                                mReplayResult.login));
+                    }
+                    if (mPortalResult != null) {
+                        evaluateAsync(mReevaluateToken, mUidToBlame, mPortalResult,
+                                mReplayResult);
+                    }
+                    return HANDLED;
                 case CMD_FORCE_REEVALUATION:
                     // Before IGNORE_REEVALUATE_ATTEMPTS attempts are made,
                     // ignore any re-evaluation requests. After, restart the
@@ -683,8 +856,192 @@ public class NetworkMonitor extends StateMachine {
 
         @Override
         public void exit() {
-            TrafficStats.clearThreadStatsUid();
+            mUidToBlame = INVALID_UID;
+            resetReplay();
+        }
+    }
+
+    /**
+     * Runs an evaluation on mEvaluationExecutor and reports the result to the StateMachine as
+     * CMD_PROBE_COMPLETE carrying {@code token}.
+     *
+     * @param portalResult the probe result that found a portal, if the stored login has been
+     *         replayed since. Recorded in mVerdictCache along with whether the replay worked.
+     * @param replayResult the outcome of that replay, or null if there was none. If nothing was
+     *         sent to the portal, nothing can have changed, so the portal result is reported again
+     *         without probing. If the portal accepted the login, it is verified with
+     *         verifyAfterReplay() rather than a full isCaptivePortal().
+     */
+    private void evaluateAsync(final int token, final int uid,
+            final CaptivePortalProbeResult portalResult,
+            final PortalLoginReplayer.Result replayResult) {
+        mEvaluationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (uid != INVALID_UID) {
+                    TrafficStats.setThreadStatsUid(uid);
+                }
+                try {
+                    final CaptivePortalProbeResult result;
+                    if (replayResult == null) {
+                        result = isCaptivePortal();
+                    } else {
+                        if (!replayResult.wasAttempted()) {
+                            result = portalResult;
+                        } else if (replayResult.isSuccessful()) {
+                            result = verifyAfterReplay();
+                        } else {
+                            // Portals often answer DNS differently once signed in, and the
+                            // login may have got through in part.
+                            forgetProbeRoutes();
+                            result = isCaptivePortal();
+                        }
+                        recordVerdict(portalResult, result.isSuccessful());
+                        if (replayResult.wasAttempted() && replayResult.login != null) {
+                            mReplayStats.record(replayResult.login, replayResult,
+                                    result.isSuccessful());
+                            validationLog("Replay stats for " +
+                                    mReplayStats.describe(replayResult.login));
+                        }
+                    }
+                    sendMessage(obtainMessage(CMD_PROBE_COMPLETE, token,
+                            (replayResult != null) ? 1 : 0, result));
+                } finally {
+                    TrafficStats.clearThreadStatsUid();
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks whether a portal that accepted a replayed login now lets traffic through, cheaper
+     * than isCaptivePortal(): a single HTTP probe to the probe server, repeated a few times a
+     * short while apart. Falls back to a full isCaptivePortal() if that does not validate the
+     * network, or if the quick check does not apply to this network. Runs on the evaluation
+     * thread.
+     *
+     * Nothing learned while the portal held the device back is trusted: the probe server is
+     * resolved again, since the portal may have answered DNS with its own address, and every
+     * probe goes out on a new connection rather than one that may lead to the portal.
+     */
+    private CaptivePortalProbeResult verifyAfterReplay() {
+        final long startTime = SystemClock.elapsedRealtime();
+        URL httpUrl = null;
+        try {
+            httpUrl = new URL(getCaptivePortalServerUrl(mContext, false));
+        } catch (MalformedURLException e) {
+            // isCaptivePortal() logs it.
         }
+        // A PAC, a proxy or configured endpoints each change what is probed. Leave those to
+        // isCaptivePortal().
+        final boolean quickCheckApplies = mIsCaptivePortalCheckEnabled && httpUrl != null
+                && mNetworkAgentInfo.linkProperties.getHttpProxy() == null
+                && mProbeEndpoints.isEmpty();
+        // Portals often answer DNS differently once signed in.
+        forgetProbeRoutes();
+        InetAddress[] addresses = null;
+        if (quickCheckApplies) {
+            try {
+                addresses = mDnsCache.resolve(httpUrl.getHost());
+            } catch (UnknownHostException e) {
+                validationLog("Replay not verified: " + e + ", running full evaluation");
+            }
+        }
+        if (addresses != null) {
+            CaptivePortalProbeResult result = null;
+            for (int attempt = 1; attempt <= POST_REPLAY_VERIFY_ATTEMPTS; attempt++) {
+                result = sendHttpProbe(httpUrl, ValidationProbeEvent.PROBE_HTTP, addresses, null,
+                        true /* newConnection */);
+                if (result.isSuccessful()) {
+                    validationLog("Replay verified in " + (SystemClock.elapsedRealtime() -
+                            startTime) + "ms, attempt " + attempt);
+                    return result;
+                }
+                if (attempt == POST_REPLAY_VERIFY_ATTEMPTS) break;
+                try {
+                    Thread.sleep(POST_REPLAY_VERIFY_SPACING_MS);
+                } catch (InterruptedException e) {
+                    // Disconnected. Nobody is listening any more.
+                    Thread.currentThread().interrupt();
+                    return CaptivePortalProbeResult.FAILED;
+                }
+            }
+            validationLog("Replay not verified (ret=" + result.mHttpResponseCode +
+                    "), running full evaluation");
+            // Start the full evaluation afresh too.
+            forgetProbeRoutes();
+        }
+        return isCaptivePortal();
+    }
+
+    /**
+     * Drops the probe server's cached addresses and the kept-alive probe connections. A portal
+     * may answer DNS with its own address and intercept connections, and stop doing either once
+     * it lets the device through, so neither is trusted across a change in what the network
+     * does with probes.
+     */
+    private void forgetProbeRoutes() {
+        mDnsCache.clear();
+        mProbeConnector.evictAll();
+    }
+
+    /**
+     * Returns the WifiInfo of this network if it is a connected Wi-Fi network, otherwise null.
+     */
+    private WifiInfo getConnectedWifiInfo() {
+        if (mNetworkAgentInfo.networkInfo.getType() != ConnectivityManager.TYPE_WIFI) return null;
+        final WifiInfo wifiInfo = mWifiManager.getConnectionInfo();
+        if (wifiInfo == null || wifiInfo.getSupplicantState() != SupplicantState.COMPLETED) {
+            return null;
+        }
+        return wifiInfo;
+    }
+
+    private static String bssidOf(WifiInfo wifiInfo) {
+        return (wifiInfo.getBSSID() != null) ? wifiInfo.getBSSID() : "";
+    }
+
+    /** Remembers that this network is a portal and whether replaying the login worked. */
+    private void recordVerdict(CaptivePortalProbeResult portalResult, boolean replaySucceeded) {
+        final WifiInfo wifiInfo = getConnectedWifiInfo();
+        if (wifiInfo == null) return;
+        mVerdictCache.record(new PortalVerdictCache.Verdict(wifiInfo.getSSID(),
+                bssidOf(wifiInfo), true /* isPortal */,
+                (portalResult != null) ? portalResult.mRedirectUrl : null, replaySucceeded,
+                System.currentTimeMillis()));
+    }
+
+    /**
+     * Looks up the verdict stored for this network on the evaluation thread, since the cache may
+     * have to be read from disk first, and sends it back as CMD_VERDICT_LOOKED_UP. Queued ahead
+     * of the first evaluation, so it is done before the first probe goes out.
+     */
+    private void lookUpVerdictAsync(final String ssid, final String bssid) {
+        mEvaluationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendMessage(CMD_VERDICT_LOOKED_UP, mVerdictCache.lookup(ssid, bssid));
+            }
+        });
+    }
+
+    /**
+     * Whether {@code verdict} warrants replaying the stored login before any probe has found a
+     * portal. Only a verdict recorded on this very access point does: another one with the same
+     * SSID may be a different venue, which must not be sent this one's login unasked.
+     */
+    private boolean isReplayable(PortalVerdictCache.Verdict verdict) {
+        if (verdict == null || !verdict.isPortal || !verdict.replaySucceeded) return false;
+        final WifiInfo wifiInfo = getConnectedWifiInfo();
+        return wifiInfo != null && verdict.ssid.equals(wifiInfo.getSSID())
+                && verdict.bssid.equals(bssidOf(wifiInfo));
+    }
+
+    private void invalidateVerdict() {
+        final WifiInfo wifiInfo = getConnectedWifiInfo();
+        if (wifiInfo == null) return;
+        validationLog("Portal verdict for " + wifiInfo.getSSID() + " no longer holds");
+        mVerdictCache.invalidate(wifiInfo.getSSID());
     }
 
     // BroadcastReceiver that waits for a particular Intent and then posts a message.
@@ -724,6 +1081,7 @@ public class NetworkMonitor extends StateMachine {
                 NetworkEvent.logCaptivePortalFound(mNetId, mEvaluationTimer.stop());
                 mEvaluationTimer.reset();
             }
+            forgetProbeRoutes();
             // Don't annoy user with sign-in notifications.
             if (mDontDisplaySigninNotification) return;
             // Create a CustomIntentReceiver that sends us a
@@ -744,9 +1102,11 @@ public class NetworkMonitor extends StateMachine {
             mConnectivityServiceHandler.sendMessage(message);
             //            Log.d("B4 notification Elroy", getCurrentMessage().toString());
 
-            // Retest for captive portal occasionally.
+            // Retest for captive portal occasionally. Spread the rechecks so that every device
+            // stuck behind the same portal doesn't retest it at the same time.
             sendMessageDelayed(CMD_CAPTIVE_PORTAL_RECHECK, 0 /* no UID */,
-                    CAPTIVE_PORTAL_REEVALUATE_DELAY_MS);
+                    mRecheckBackoff.nextDelayMs(mPortalRetryAfter));
+            mPortalRetryAfter = null;
         }
 
         @Override
@@ -865,6 +1225,15 @@ public class NetworkMonitor extends StateMachine {
             }
         }
 
+        if (pacUrl == null && !mProbeEndpoints.isEmpty()) {
+            final long startTime = SystemClock.elapsedRealtime();
+            final CaptivePortalProbeResult result = sendEndpointProbes(proxyInfo != null);
+            sendNetworkConditionsBroadcast(true /* response received */,
+                    result.isPortal() /* isCaptivePortal */,
+                    startTime, SystemClock.elapsedRealtime());
+            return result;
+        }
+
         if (pacUrl == null) {
             try {
                 httpUrl = new URL(getCaptivePortalServerUrl(mContext, false));
@@ -877,10 +1246,11 @@ public class NetworkMonitor extends StateMachine {
 
         long startTime = SystemClock.elapsedRealtime();
 
-        // Pre-resolve the captive portal server host so we can log it.
-        // Only do this if HttpURLConnection is about to, to avoid any potentially
-        // unnecessary resolution.
+        // Pre-resolve the captive portal server host so we can log it, and so that the probes
+        // can race connections to its addresses instead of resolving it again.
+        // Only do this if a probe is about to, to avoid any potentially unnecessary resolution.
         String hostToResolve = null;
+        InetAddress[] addresses = null;
         if (pacUrl != null) {
             hostToResolve = pacUrl.getHost();
         } else if (proxyInfo != null) {
@@ -889,39 +1259,58 @@ public class NetworkMonitor extends StateMachine {
             hostToResolve = httpUrl.getHost();
         }
 
+        boolean addressesCached = false;
         if (!TextUtils.isEmpty(hostToResolve)) {
             String probeName = ValidationProbeEvent.getProbeName(ValidationProbeEvent.PROBE_DNS);
+            addresses = mDnsCache.getCached(hostToResolve);
+            addressesCached = (addresses != null);
             final Stopwatch dnsTimer = new Stopwatch().start();
             try {
-                InetAddress[] addresses = mNetworkAgentInfo.network.getAllByName(hostToResolve);
+                if (!addressesCached) {
+                    addresses = mDnsCache.resolve(hostToResolve);
+                }
                 long dnsLatency = dnsTimer.stop();
-                ValidationProbeEvent.logEvent(mNetId, dnsLatency,
-                        ValidationProbeEvent.PROBE_DNS, ValidationProbeEvent.DNS_SUCCESS);
+                if (!addressesCached) {
+                    ValidationProbeEvent.logEvent(mNetId, dnsLatency,
+                            ValidationProbeEvent.PROBE_DNS, ValidationProbeEvent.DNS_SUCCESS);
+                }
                 final StringBuffer connectInfo = new StringBuffer(", " + hostToResolve + "=");
                 for (InetAddress address : addresses) {
                     connectInfo.append(address.getHostAddress());
                     if (address != addresses[addresses.length - 1]) connectInfo.append(",");
                 }
-                validationLog(probeName + " OK " + dnsLatency + "ms" + connectInfo);
+                validationLog(probeName + (addressesCached ? " CACHED " : " OK ") + dnsLatency +
+                        "ms" + connectInfo + dnsCacheStats());
             } catch (UnknownHostException e) {
                 long dnsLatency = dnsTimer.stop();
                 ValidationProbeEvent.logEvent(mNetId, dnsLatency,
                         ValidationProbeEvent.PROBE_DNS, ValidationProbeEvent.DNS_FAILURE);
-                validationLog(probeName + " FAIL " + dnsLatency + "ms, " + hostToResolve);
+                validationLog(probeName + " FAIL " + dnsLatency + "ms, " + hostToResolve +
+                        dnsCacheStats());
             }
         }
 
+        // Without a proxy the probes connect straight to the addresses resolved above. Through a
+        // proxy, leave it to HttpURLConnection.
+        final InetAddress[] probeAddresses = (proxyInfo == null) ? addresses : null;
+
         CaptivePortalProbeResult result;
         if (pacUrl != null) {
             result = sendHttpProbe(pacUrl, ValidationProbeEvent.PROBE_PAC);
         } else if (mUseHttps) {
-            result = sendParallelHttpProbes(httpsUrl, httpUrl);
+            result = sendParallelHttpProbes(httpsUrl, httpUrl, probeAddresses);
         } else {
-            result = sendHttpProbe(httpUrl, ValidationProbeEvent.PROBE_HTTP);
+            result = sendHttpProbe(httpUrl, ValidationProbeEvent.PROBE_HTTP, probeAddresses,
+                    null);
         }
 
         long endTime = SystemClock.elapsedRealtime();
 
+        if (addressesCached && result.mHttpResponseCode == 599) {
+            // The cached addresses may be stale. Resolve again next time.
+            mDnsCache.invalidate(hostToResolve);
+        }
+
         sendNetworkConditionsBroadcast(true /* response received */,
                 result.isPortal() /* isCaptivePortal */,
                 startTime, endTime);
@@ -929,36 +1318,130 @@ public class NetworkMonitor extends StateMachine {
         return result;
     }
 
+    /**
+     * Sends a GET for {@code url} on a connection from mProbeConnector, which may be one left
+     * open by an earlier probe. If the server closed an idle connection just as it was reused,
+     * retries once on a new connection.
+     *
+     * @param newConnection whether to skip the pool and always connect anew.
+     * @return the connection, with the response available from getResponse().
+     */
+    private ProbeConnection sendProbeRequest(URL url, InetAddress[] addresses, int timeoutMs,
+            ProbeExecutor.Probe<?> probe, boolean newConnection) throws IOException {
+        ProbeConnection connection = null;
+        if (!newConnection) {
+            connection = mProbeConnector.open(url, addresses, timeoutMs);
+            if (probe != null) probe.attach(connection);
+            try {
+                connection.get();
+                return connection;
+            } catch (IOException e) {
+                closeQuietly(connection);
+                if (!connection.isReused() || (probe != null && probe.isCancelled())) throw e;
+            }
+        }
+        connection = mProbeConnector.openNew(url, addresses, timeoutMs);
+        if (probe != null) probe.attach(connection);
+        try {
+            connection.get();
+        } catch (IOException e) {
+            closeQuietly(connection);
+            throw e;
+        }
+        return connection;
+    }
+
+    private static void closeQuietly(ProbeConnection connection) {
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private String dnsCacheStats() {
+        return " (cache hits=" + mDnsCache.getHitCount() +
+                " misses=" + mDnsCache.getMissCount() + ")";
+    }
+
     /**
      * Do a URL fetch on a known server to see if we get the data we expect.
      * Returns HTTP response code.
      */
     @VisibleForTesting
     protected CaptivePortalProbeResult sendHttpProbe(URL url, int probeType) {
+        return sendHttpProbe(url, probeType, null, null);
+    }
+
+    /**
+     * As {@link #sendHttpProbe(URL, int)}. If {@code addresses} is non-null, races connections
+     * to them with mProbeConnector instead of letting HttpURLConnection resolve and try them one
+     * at a time. If {@code probe} is non-null, registers the connection with it so that the
+     * probe can be cancelled while it is waiting on the network.
+     */
+    private CaptivePortalProbeResult sendHttpProbe(URL url, int probeType,
+            InetAddress[] addresses, ProbeExecutor.Probe<?> probe) {
+        return sendHttpProbe(url, probeType, addresses, probe, false /* newConnection */);
+    }
+
+    /**
+     * As {@link #sendHttpProbe(URL, int, InetAddress[], ProbeExecutor.Probe)}, on a new
+     * connection rather than a kept-alive one if {@code newConnection} is set.
+     */
+    private CaptivePortalProbeResult sendHttpProbe(URL url, int probeType,
+            InetAddress[] addresses, ProbeExecutor.Probe<?> probe, boolean newConnection) {
         HttpURLConnection urlConnection = null;
+        ProbeConnection probeConnection = null;
         int httpResponseCode = 599;
+        // Whether the probe got the answer of a network with working Internet access.
+        boolean validated = false;
         String redirectUrl = null;
+        String retryAfter = null;
         final Stopwatch probeTimer = new Stopwatch().start();
+        final int timeoutMs = mTimeoutEstimator.getTimeoutMs();
         try {
-            urlConnection = (HttpURLConnection) mNetworkAgentInfo.network.openConnection(url);
-            urlConnection.setInstanceFollowRedirects(probeType == ValidationProbeEvent.PROBE_PAC);
-            urlConnection.setConnectTimeout(SOCKET_TIMEOUT_MS);
-            urlConnection.setReadTimeout(SOCKET_TIMEOUT_MS);
-            urlConnection.setUseCaches(false);
-
             // Time how long it takes to get a response to our request
             long requestTimestamp = SystemClock.elapsedRealtime();
 
-            httpResponseCode = urlConnection.getResponseCode();
-            redirectUrl = urlConnection.getHeaderField("location");
+            final long contentLength;
+            if (addresses != null && addresses.length > 0) {
+                probeConnection = sendProbeRequest(url, addresses, timeoutMs, probe,
+                        newConnection);
+                final ProbeConnection.Response response = probeConnection.getResponse();
+                httpResponseCode = response.code;
+                redirectUrl = response.location;
+                retryAfter = response.retryAfter;
+                contentLength = response.contentLength;
+                validated = (httpResponseCode == 204);
+            } else {
+                urlConnection = (HttpURLConnection) mNetworkAgentInfo.network.openConnection(url);
+                if (probe != null) probe.attach(urlConnection);
+                urlConnection.setInstanceFollowRedirects(
+                        probeType == ValidationProbeEvent.PROBE_PAC);
+                urlConnection.setConnectTimeout(timeoutMs);
+                urlConnection.setReadTimeout(timeoutMs);
+                urlConnection.setUseCaches(false);
+
+                requestTimestamp = SystemClock.elapsedRealtime();
+                httpResponseCode = urlConnection.getResponseCode();
+                redirectUrl = urlConnection.getHeaderField("location");
+                retryAfter = urlConnection.getHeaderField("Retry-After");
+                contentLength = urlConnection.getContentLength();
+            }
 
             // Time how long it takes to get a response to our request
             long responseTimestamp = SystemClock.elapsedRealtime();
 
+            final String connectedTo = (probeConnection != null)
+                    ? " via " + probeConnection.getSocket().getInetAddress().getHostAddress() +
+                            (probeConnection.isReused() ? " (reused)" : "")
+                    : "";
             validationLog(ValidationProbeEvent.getProbeName(probeType) + " " + url +
+                    connectedTo +
                     " time=" + (responseTimestamp - requestTimestamp) + "ms" +
                     " ret=" + httpResponseCode +
-                    " headers=" + urlConnection.getHeaderFields());
+                    " timeout=" + timeoutMs + "ms" +
+                    ((redirectUrl != null) ? " location=" + redirectUrl : ""));
             // NOTE: We may want to consider an "HTTP/1.0 204" response to be a captive
             // portal.  The only example of this seen so far was a captive portal.  For
             // the time being go with prior behavior of assuming it's not a captive
@@ -970,7 +1453,7 @@ public class NetworkMonitor extends StateMachine {
             // There's no point in considering this a captive portal as the user cannot
             // sign-in to an empty page.  Probably the result of a broken transparent proxy.
             // See http://b/9972012.
-            if (httpResponseCode == 200 && urlConnection.getContentLength() == 0) {
+            if (ProbeConnection.isEmptyOk(httpResponseCode, contentLength)) {
                 validationLog("Empty 200 response interpreted as 204 response.");
                 httpResponseCode = 204;
             }
@@ -980,7 +1463,15 @@ public class NetworkMonitor extends StateMachine {
                 httpResponseCode = 204;
             }
         } catch (IOException e) {
-            validationLog("Probably not a portal: exception " + e);
+            closeQuietly(probeConnection);
+            if (probe != null && probe.isCancelled()) {
+                // Another probe already decided the outcome. Don't log a failure for this one.
+                return CaptivePortalProbeResult.FAILED;
+            }
+            if (e instanceof SocketTimeoutException) {
+                mTimeoutEstimator.onTimeout();
+            }
+            validationLog("Probably not a portal: exception " + e + ", " + mTimeoutEstimator);
             if (httpResponseCode == 599) {
                 // TODO: Ping gateway and DNS server and log results.
             }
@@ -988,26 +1479,36 @@ public class NetworkMonitor extends StateMachine {
             if (urlConnection != null) {
                 urlConnection.disconnect();
             }
+            if (probeConnection != null) {
+                // Keep the connection for the next probe if it reached the probe server, and the
+                // exchange completed.
+                mProbeConnector.recycle(probeConnection, validated);
+            }
+        }
+        final long probeDurationMs = probeTimer.stop();
+        if (httpResponseCode != 599) {
+            mTimeoutEstimator.addSample(probeDurationMs);
         }
-        ValidationProbeEvent.logEvent(mNetId, probeTimer.stop(), probeType, httpResponseCode);
-        return new CaptivePortalProbeResult(httpResponseCode, redirectUrl);
+        ValidationProbeEvent.logEvent(mNetId, probeDurationMs, probeType, httpResponseCode);
+        return new CaptivePortalProbeResult(httpResponseCode, redirectUrl, retryAfter);
     }
 
-    private CaptivePortalProbeResult sendParallelHttpProbes(URL httpsUrl, URL httpUrl) {
+    private CaptivePortalProbeResult sendParallelHttpProbes(URL httpsUrl, URL httpUrl,
+            InetAddress[] addresses) {
         // Number of probes to wait for. We might wait for all of them, but we might also return if
         // only one of them has replied. For example, we immediately return if the HTTP probe finds
         // a captive portal, even if the HTTPS probe is timing out.
         final CountDownLatch latch = new CountDownLatch(2);
 
         // Which probe result we're going to use. This doesn't need to be atomic, but it does need
-        // to be final because otherwise we can't set it from the ProbeThreads.
+        // to be final because otherwise we can't set it from the probes.
         final AtomicReference<CaptivePortalProbeResult> finalResult = new AtomicReference<>();
 
-        final class ProbeThread extends Thread {
+        final class ParallelProbe extends ProbeExecutor.Probe<CaptivePortalProbeResult> {
             private final boolean mIsHttps;
             private volatile CaptivePortalProbeResult mResult;
 
-            public ProbeThread(boolean isHttps) {
+            public ParallelProbe(boolean isHttps) {
                 mIsHttps = isHttps;
             }
 
@@ -1016,11 +1517,13 @@ public class NetworkMonitor extends StateMachine {
             }
 
             @Override
-            public void run() {
+            protected CaptivePortalProbeResult runProbe() {
                 if (mIsHttps) {
-                    mResult = sendHttpProbe(httpsUrl, ValidationProbeEvent.PROBE_HTTPS);
+                    mResult = sendHttpProbe(httpsUrl, ValidationProbeEvent.PROBE_HTTPS, addresses,
+                            this);
                 } else {
-                    mResult = sendHttpProbe(httpUrl, ValidationProbeEvent.PROBE_HTTP);
+                    mResult = sendHttpProbe(httpUrl, ValidationProbeEvent.PROBE_HTTP, addresses,
+                            this);
                 }
                 if ((mIsHttps && mResult.isSuccessful()) || (!mIsHttps && mResult.isPortal())) {
                     // HTTPS succeeded, or HTTP found a portal. Don't wait for the other probe.
@@ -1030,17 +1533,21 @@ public class NetworkMonitor extends StateMachine {
                 // Signal that one probe has completed. If we've already made a decision, or if this
                 // is the second probe, the latch will be at zero and we'll return a result.
                 latch.countDown();
+                return mResult;
             }
         }
 
-        ProbeThread httpsProbe = new ProbeThread(true);
-        ProbeThread httpProbe = new ProbeThread(false);
-        httpsProbe.start();
-        httpProbe.start();
+        final ProbeExecutor executor = ProbeExecutor.getInstance();
+        final ParallelProbe httpsProbe = new ParallelProbe(true);
+        final ParallelProbe httpProbe = new ParallelProbe(false);
+        executor.submit(httpsProbe);
+        executor.submit(httpProbe);
 
         try {
             latch.await();
         } catch (InterruptedException e) {
+            httpsProbe.cancel();
+            httpProbe.cancel();
             validationLog("Error: probe wait interrupted!");
             return CaptivePortalProbeResult.FAILED;
         }
@@ -1048,9 +1555,227 @@ public class NetworkMonitor extends StateMachine {
         // If there was no deciding probe, that means that both probes completed. Return HTTPS.
         finalResult.compareAndSet(null, httpsProbe.getResult());
 
+        // The losing probe may still be holding a socket until it times out. Tear it down.
+        boolean cancelled = httpsProbe.cancel();
+        cancelled |= httpProbe.cancel();
+        if (cancelled) {
+            validationLog("Cancelled losing probe, " + executor.getInFlightCount() +
+                    " probes in flight, " + executor.getQueuedCount() + " queued");
+        }
+
         return finalResult.get();
     }
 
+    /** A probe of one configured endpoint, which reports its completion to a queue. */
+    private class EndpointProbe extends ProbeExecutor.Probe<CaptivePortalProbeResult> {
+        private final ProbeEndpoint mEndpoint;
+        private final boolean mUseProxy;
+        private final BlockingQueue<EndpointProbe> mCompleted;
+        private final long mStartMs = SystemClock.elapsedRealtime();
+        private volatile CaptivePortalProbeResult mResult = CaptivePortalProbeResult.FAILED;
+
+        EndpointProbe(ProbeEndpoint endpoint, boolean useProxy,
+                BlockingQueue<EndpointProbe> completed) {
+            mEndpoint = endpoint;
+            mUseProxy = useProxy;
+            mCompleted = completed;
+        }
+
+        CaptivePortalProbeResult getResult() {
+            return mResult;
+        }
+
+        long getElapsedMs() {
+            return SystemClock.elapsedRealtime() - mStartMs;
+        }
+
+        @Override
+        protected CaptivePortalProbeResult runProbe() {
+            try {
+                mResult = sendEndpointProbe(mEndpoint, mUseProxy, this);
+            } finally {
+                mCompleted.add(this);
+            }
+            return mResult;
+        }
+    }
+
+    /**
+     * Probes the configured endpoints, best ranked first, at most MAX_CONCURRENT_ENDPOINT_PROBES
+     * at a time. The first endpoint to give its expected response decides that the network is
+     * validated, and the first HTTP endpoint answered by anything else decides that there is a
+     * portal. Probes still running then are cancelled and count as losses for their endpoints.
+     * HTTPS endpoints never decide that there is a portal, as in sendParallelHttpProbes().
+     *
+     * @param useProxy whether to connect through the network's HTTP proxy.
+     */
+    private CaptivePortalProbeResult sendEndpointProbes(boolean useProxy) {
+        final List<ProbeEndpoint> endpoints = ProbeEndpoint.rank(mProbeEndpoints);
+        final BlockingQueue<EndpointProbe> completed = new LinkedBlockingQueue<>();
+        final List<EndpointProbe> started = new ArrayList<>();
+        final ProbeExecutor executor = ProbeExecutor.getInstance();
+
+        EndpointProbe decidingProbe = null;
+        // Returned if no probe decides: a portal seen by an HTTPS endpoint, or a failure.
+        CaptivePortalProbeResult fallback = CaptivePortalProbeResult.FAILED;
+        int running = 0;
+        try {
+            while (decidingProbe == null && (started.size() < endpoints.size() || running > 0)) {
+                while (running < MAX_CONCURRENT_ENDPOINT_PROBES &&
+                        started.size() < endpoints.size()) {
+                    final EndpointProbe probe = new EndpointProbe(
+                            endpoints.get(started.size()), useProxy, completed);
+                    executor.submit(probe);
+                    started.add(probe);
+                    running++;
+                }
+                final EndpointProbe probe = completed.take();
+                running--;
+                final CaptivePortalProbeResult result = probe.getResult();
+                if (result.isSuccessful() || (result.isPortal() && !probe.mEndpoint.isHttps())) {
+                    decidingProbe = probe;
+                    probe.mEndpoint.onWin(probe.getElapsedMs());
+                } else {
+                    probe.mEndpoint.onLoss(probe.getElapsedMs());
+                    if (!fallback.isPortal()) fallback = result;
+                }
+            }
+        } catch (InterruptedException e) {
+            for (EndpointProbe probe : started) probe.cancel();
+            validationLog("Error: probe wait interrupted!");
+            return CaptivePortalProbeResult.FAILED;
+        }
+
+        int cancelled = 0;
+        for (EndpointProbe probe : started) {
+            if (probe != decidingProbe && probe.cancel()) {
+                probe.mEndpoint.onLoss(probe.getElapsedMs());
+                cancelled++;
+            }
+        }
+        if (decidingProbe != null) {
+            validationLog("Decided by " + decidingProbe.mEndpoint + ", cancelled " + cancelled +
+                    " of " + endpoints.size() + " endpoints");
+            return decidingProbe.getResult();
+        }
+        validationLog("No endpoint decided: " + endpoints);
+        return fallback;
+    }
+
+    /**
+     * Probes one configured endpoint and maps its response as described in
+     * {@link ProbeEndpoint#interpret}. Without a proxy, resolves the endpoint with mDnsCache and
+     * races connections to it with mProbeConnector.
+     */
+    private CaptivePortalProbeResult sendEndpointProbe(ProbeEndpoint endpoint, boolean useProxy,
+            ProbeExecutor.Probe<?> probe) {
+        final URL url = endpoint.url;
+        final int probeType = endpoint.isHttps()
+                ? ValidationProbeEvent.PROBE_HTTPS : ValidationProbeEvent.PROBE_HTTP;
+        HttpURLConnection urlConnection = null;
+        ProbeConnection probeConnection = null;
+        boolean addressesCached = false;
+        int httpResponseCode = 599;
+        // Whether the probe got the answer of a network with working Internet access.
+        boolean validated = false;
+        String redirectUrl = null;
+        String retryAfter = null;
+        final Stopwatch probeTimer = new Stopwatch().start();
+        final long requestTimestamp = SystemClock.elapsedRealtime();
+        final int timeoutMs = mTimeoutEstimator.getTimeoutMs();
+        try {
+            final long contentLength;
+            byte[] body = null;
+            if (!useProxy) {
+                InetAddress[] addresses = mDnsCache.getCached(url.getHost());
+                addressesCached = (addresses != null);
+                if (!addressesCached) addresses = mDnsCache.resolve(url.getHost());
+                probeConnection = sendProbeRequest(url, addresses, timeoutMs, probe,
+                        false /* newConnection */);
+                final ProbeConnection.Response response = probeConnection.getResponse();
+                httpResponseCode = response.code;
+                redirectUrl = response.location;
+                retryAfter = response.retryAfter;
+                contentLength = response.contentLength;
+                if (endpoint.bodyHash != null && httpResponseCode == 200) {
+                    body = probeConnection.readBody(MAX_ENDPOINT_BODY_BYTES);
+                }
+            } else {
+                urlConnection = (HttpURLConnection) mNetworkAgentInfo.network.openConnection(url);
+                if (probe != null) probe.attach(urlConnection);
+                urlConnection.setInstanceFollowRedirects(false);
+                urlConnection.setConnectTimeout(timeoutMs);
+                urlConnection.setReadTimeout(timeoutMs);
+                urlConnection.setUseCaches(false);
+                httpResponseCode = urlConnection.getResponseCode();
+                redirectUrl = urlConnection.getHeaderField("location");
+                retryAfter = urlConnection.getHeaderField("Retry-After");
+                contentLength = urlConnection.getContentLength();
+                if (endpoint.bodyHash != null && httpResponseCode == 200) {
+                    body = readBody(urlConnection.getInputStream(), MAX_ENDPOINT_BODY_BYTES);
+                }
+            }
+
+            final String connectedTo = (probeConnection != null)
+                    ? " via " + probeConnection.getSocket().getInetAddress().getHostAddress() +
+                            (probeConnection.isReused() ? " (reused)" : "")
+                    : "";
+            validationLog(ValidationProbeEvent.getProbeName(probeType) + " " + url +
+                    connectedTo +
+                    " time=" + (SystemClock.elapsedRealtime() - requestTimestamp) + "ms" +
+                    " ret=" + httpResponseCode +
+                    " timeout=" + timeoutMs + "ms");
+            // As in sendHttpProbe(), nobody can sign in to an empty page.
+            if (endpoint.bodyHash == null
+                    && ProbeConnection.isEmptyOk(httpResponseCode, contentLength)) {
+                validationLog("Empty 200 response interpreted as 204 response.");
+                httpResponseCode = 204;
+            }
+            httpResponseCode = endpoint.interpret(httpResponseCode, body);
+            validated = (httpResponseCode == 204);
+        } catch (IOException e) {
+            closeQuietly(probeConnection);
+            if (probe != null && probe.isCancelled()) {
+                // Another endpoint already decided the outcome.
+                return CaptivePortalProbeResult.FAILED;
+            }
+            if (e instanceof SocketTimeoutException) {
+                mTimeoutEstimator.onTimeout();
+            }
+            validationLog("Endpoint " + url + " failed: " + e + ", " + mTimeoutEstimator);
+            httpResponseCode = 599;
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+            if (probeConnection != null) {
+                // Keep the connection for the next probe if it reached the probe server, and the
+                // exchange completed.
+                mProbeConnector.recycle(probeConnection, validated);
+            }
+        }
+        final long probeDurationMs = probeTimer.stop();
+        if (httpResponseCode != 599) {
+            mTimeoutEstimator.addSample(probeDurationMs);
+        } else if (addressesCached) {
+            // The cached addresses may be stale. Resolve again next time.
+            mDnsCache.invalidate(url.getHost());
+        }
+        ValidationProbeEvent.logEvent(mNetId, probeDurationMs, probeType, httpResponseCode);
+        return new CaptivePortalProbeResult(httpResponseCode, redirectUrl, retryAfter);
+    }
+
+    private static byte[] readBody(InputStream in, int maxBytes) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        while (body.size() < maxBytes) {
+            final int read = in.read(buffer, 0, Math.min(buffer.length, maxBytes - body.size()));
+            if (read == -1) break;
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
     /**
      * @param responseReceived - whether or not we received a valid HTTP response to our request.
      *                         If false, isCaptivePortal and responseTimestampMs are ignored
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * The cookies sent and set while a login is replayed, starting with those the captive portal
+ * app has stored from earlier visits. See {@link StoredPortalCookies}.
+ *
+ * Just enough of RFC 6265 for portal logins: cookies are matched to hosts by their Domain
+ * attribute, or by the exact host that set them. A Secure cookie is only sent over HTTPS, and
+ * only accepted from a response that came over HTTPS, so that a network in the middle never
+ * sees or plants one. Path is ignored, since portals set their cookies for the whole host. A
+ * cookie set again with the same name and domain replaces the old one. Cookies without an expiry
+ * are kept for {@link #SESSION_COOKIE_LIFETIME_MS}, as the app keeps them.
+ *
+ * Cookies are never kept for or sent to the connectivity check host, see {@link #ignoreHost}.
+ *
+ * {@hide}
+ */
+public class PortalCookieJar {
+    // Must match the captive portal app's PortalCookieStore.
+    static final long SESSION_COOKIE_LIFETIME_MS = 24 * 60 * 60 * 1000L;
+    private static final String[] EXPIRES_FORMATS = {
+            "EEE, dd MMM yyyy HH:mm:ss zzz", "EEE, dd-MMM-yyyy HH:mm:ss zzz",
+            "EEE, dd-MMM-yy HH:mm:ss zzz" };
+    // First labels that, under a country code, are registries rather than sites, e.g. co.uk.
+    private static final Set<String> COUNTRY_SECOND_LEVEL_DOMAINS = new HashSet<>(Arrays.asList(
+            "ac", "co", "com", "edu", "gov", "go", "mil", "ne", "net", "or", "org"));
+
+    /** One cookie. */
+    public static final class Cookie {
+        public final String name;
+        public final String value;
+        // Lower-case host or domain the cookie is sent to.
+        public final String domain;
+        // Whether the cookie is also sent to subdomains of domain.
+        public final boolean includeSubdomains;
+        // Whether the cookie is only sent over HTTPS.
+        public final boolean secure;
+        // Wall clock time after which the cookie is no longer sent.
+        public final long expiresAtMs;
+
+        public Cookie(String name, String value, String domain, boolean includeSubdomains,
+                boolean secure, long expiresAtMs) {
+            this.name = name;
+            this.value = value;
+            this.domain = domain;
+            this.includeSubdomains = includeSubdomains;
+            this.secure = secure;
+            this.expiresAtMs = expiresAtMs;
+        }
+
+        /** Whether the cookie is sent with a request to {@code url}. */
+        boolean matches(URL url) {
+            final String host = url.getHost().toLowerCase(Locale.US);
+            return expiresAtMs > System.currentTimeMillis() && (!secure || isHttps(url))
+                    && (host.equals(domain) || (includeSubdomains && host.endsWith("." + domain)));
+        }
+    }
+
+    // Includes expired cookies, which are not sent but are kept so that saving the jar removes
+    // them from the store.
+    private final List<Cookie> mCookies = new ArrayList<>();
+    // Cookies added since the jar was created or last marked saved.
+    private final List<Cookie> mUnsaved = new ArrayList<>();
+    // Lower-case connectivity check hosts.
+    private final Set<String> mIgnoredHosts = new HashSet<>();
+
+    /**
+     * Stops keeping cookies set by {@code host}, or sending any to it. For the connectivity
+     * check host: every portal answers it, and the jar is saved for every network, so a cookie
+     * one portal set there would be sent to the next network's portal.
+     */
+    public void ignoreHost(String host) {
+        mIgnoredHosts.add(host.toLowerCase(Locale.US));
+    }
+
+    /** Stores the cookies in the Set-Cookie values of a response from {@code url}. */
+    public void addAll(URL url, List<String> setCookies) {
+        final String host = url.getHost().toLowerCase(Locale.US);
+        if (mIgnoredHosts.contains(host)) return;
+        for (String setCookie : setCookies) {
+            final Cookie cookie = parse(host, isHttps(url), setCookie);
+            if (cookie != null) add(cookie);
+        }
+    }
+
+    public void add(Cookie cookie) {
+        replace(mUnsaved, cookie);
+        replace(mCookies, cookie);
+    }
+
+    private static void replace(List<Cookie> cookies, Cookie cookie) {
+        for (int i = 0; i < cookies.size(); i++) {
+            final Cookie c = cookies.get(i);
+            if (c.name.equals(cookie.name) && c.domain.equals(cookie.domain)) {
+                cookies.set(i, cookie);
+                return;
+            }
+        }
+        cookies.add(cookie);
+    }
+
+    /** Whether a cookie named {@code name} would be sent to {@code url}. */
+    public boolean has(URL url, String name) {
+        for (Cookie c : mCookies) {
+            if (c.name.equals(name) && c.matches(url)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether a cookie named {@code name} that would be sent to {@code url} was added since the
+     * jar was loaded, as opposed to one stored on an earlier visit, which may have gone stale.
+     */
+    public boolean hasNew(URL url, String name) {
+        for (Cookie c : mUnsaved) {
+            if (c.name.equals(name) && c.matches(url)) return true;
+        }
+        return false;
+    }
+
+    /** Returns the Cookie header value for a request to {@code url}, or null if none. */
+    public String getHeader(URL url) {
+        if (mIgnoredHosts.contains(url.getHost().toLowerCase(Locale.US))) return null;
+        StringBuilder header = null;
+        for (Cookie c : mCookies) {
+            if (!c.matches(url)) continue;
+            if (header == null) {
+                header = new StringBuilder();
+            } else {
+                header.append("; ");
+            }
+            header.append(c.name).append('=').append(c.value);
+        }
+        return (header != null) ? header.toString() : null;
+    }
+
+    public List<Cookie> getAll() {
+        return new ArrayList<>(mCookies);
+    }
+
+    public boolean isEmpty() {
+        return mCookies.isEmpty();
+    }
+
+    /** Returns the cookies added since the jar was created or last marked saved. */
+    public List<Cookie> getUnsaved() {
+        return new ArrayList<>(mUnsaved);
+    }
+
+    void markSaved() {
+        mUnsaved.clear();
+    }
+
+    private static boolean isHttps(URL url) {
+        return "https".equals(url.getProtocol());
+    }
+
+    /**
+     * Parses a Set-Cookie value, or returns null if it is malformed, for another domain, or
+     * Secure but set over plain HTTP.
+     *
+     * @param https whether the response came over HTTPS.
+     */
+    static Cookie parse(String host, boolean https, String setCookie) {
+        final String[] parts = setCookie.split(";");
+        final int eq = parts[0].indexOf('=');
+        if (eq <= 0) return null;
+        final String name = parts[0].substring(0, eq).trim();
+        final String value = parts[0].substring(eq + 1).trim();
+        if (name.isEmpty()) return null;
+        final long now = System.currentTimeMillis();
+        String domain = host;
+        boolean includeSubdomains = false;
+        boolean secure = false;
+        long expiresAtMs = now + SESSION_COOKIE_LIFETIME_MS;
+        boolean hasMaxAge = false;
+        for (int i = 1; i < parts.length; i++) {
+            final String attr = parts[i].trim();
+            if (attr.regionMatches(true, 0, "domain=", 0, 7)) {
+                String d = attr.substring(7).trim().toLowerCase(Locale.US);
+                if (d.startsWith(".")) d = d.substring(1);
+                // A portal may only set cookies for itself or a domain it belongs to.
+                if (d.isEmpty() || !(host.equals(d) || host.endsWith("." + d))) return null;
+                // Cookies are kept across networks. One for a whole public suffix would be sent
+                // to every portal under it, so like browsers keep it for this host only.
+                if (isPublicSuffix(d)) continue;
+                domain = d;
+                includeSubdomains = true;
+            } else if (attr.regionMatches(true, 0, "max-age=", 0, 8)) {
+                // Max-Age takes precedence over Expires.
+                try {
+                    expiresAtMs = now + Long.parseLong(attr.substring(8).trim()) * 1000;
+                    hasMaxAge = true;
+                } catch (NumberFormatException e) {
+                }
+            } else if (attr.regionMatches(true, 0, "expires=", 0, 8) && !hasMaxAge) {
+                final long expires = parseExpires(attr.substring(8).trim());
+                if (expires != -1) expiresAtMs = expires;
+            } else if (attr.equalsIgnoreCase("secure")) {
+                // Only a response the network cannot have tampered with may set one.
+                if (!https) return null;
+                secure = true;
+            }
+        }
+        return new Cookie(name, value, domain, includeSubdomains, secure, expiresAtMs);
+    }
+
+    /**
+     * Whether cookies must not be set for all of {@code domain}: a top-level domain, or a
+     * country's second-level domain such as co.uk. This errs on the side of host-only cookies
+     * rather than carrying the full public suffix list.
+     */
+    static boolean isPublicSuffix(String domain) {
+        final int dot = domain.indexOf('.');
+        if (dot == -1) return true;
+        if (domain.indexOf('.', dot + 1) != -1) return false;
+        // Two labels. Under a country code, a generic first label is a registry's.
+        return domain.length() - dot - 1 == 2
+                && COUNTRY_SECOND_LEVEL_DOMAINS.contains(domain.substring(0, dot));
+    }
+
+    private static long parseExpires(String date) {
+        for (String format : EXPIRES_FORMATS) {
+            final SimpleDateFormat parser = new SimpleDateFormat(format, Locale.US);
+            parser.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return parser.parse(date).getTime();
+            } catch (ParseException e) {
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the hidden inputs of a form in a captive portal's page as the page is read, so that a
+ * replayed login can send the nonces and session tokens the portal hands out this time.
+ *
+ * This is a tokenizer, not a parser: it only recognizes tags, attributes, comments and the raw
+ * text of script and style elements, and builds no tree. It stops reading as soon as the form
+ * being looked for closes, so the rest of the page is never downloaded.
+ *
+ * {@hide}
+ */
+public class PortalFormScanner {
+    // Longest attribute value kept. Longer ones are truncated.
+    private static final int MAX_VALUE_LENGTH = 4096;
+
+    private final Reader mIn;
+    private final URL mPageUrl;
+    private final URL mTarget;
+    private final int mMaxChars;
+    private int mRead;
+    // A character read ahead, or -1.
+    private int mPushback = -1;
+
+    private PortalFormScanner(InputStream in, URL pageUrl, URL target, int maxBytes) {
+        // Tag and attribute names are ASCII, and portals serve their values as UTF-8.
+        mIn = new InputStreamReader(in, StandardCharsets.UTF_8);
+        mPageUrl = pageUrl;
+        mTarget = target;
+        mMaxChars = maxBytes;
+    }
+
+    /**
+     * Returns the names and values of the hidden inputs of the form in {@code page} that submits
+     * to {@code target}. Reads at most about {@code maxBytes}. If no such form is found, returns
+     * the hidden inputs of the whole page that was read.
+     *
+     * @param pageUrl the URL of the page, against which form actions are resolved.
+     */
+    public static Map<String, String> scan(InputStream page, URL pageUrl, URL target,
+            int maxBytes) throws IOException {
+        return new PortalFormScanner(page, pageUrl, target, maxBytes).scan();
+    }
+
+    /**
+     * Replaces the values in the form-encoded {@code params} with those of the same name in
+     * {@code fields}. Parameters that are not in {@code fields} are kept, and fields that are
+     * not in {@code params} are not added, since the stored form decides what is sent.
+     */
+    public static String merge(String params, Map<String, String> fields) {
+        if (fields.isEmpty()) return params;
+        final StringBuilder merged = new StringBuilder();
+        for (String param : params.split("&")) {
+            if (merged.length() > 0) merged.append('&');
+            final int eq = param.indexOf('=');
+            final String value = (eq > 0) ? fields.get(urlDecode(param.substring(0, eq))) : null;
+            if (value == null) {
+                merged.append(param);
+            } else {
+                merged.append(param, 0, eq + 1).append(urlEncode(value));
+            }
+        }
+        return merged.toString();
+    }
+
+    private Map<String, String> scan() throws IOException {
+        final Map<String, String> pageFields = new HashMap<>();
+        Map<String, String> formFields = null;
+        boolean inTarget = false;
+        int c;
+        while ((c = read()) != -1) {
+            if (c != '<') continue;
+            c = read();
+            if (c == '!') {
+                skipComment();
+                continue;
+            }
+            final boolean closing = (c == '/');
+            if (closing) c = read();
+            if (!isLetter(c)) {
+                // A '<' in text.
+                unread(c);
+                continue;
+            }
+            final String name = readName(c);
+            if (closing) {
+                skipPast('>');
+                if (inTarget && name.equals("form")) return formFields;
+                continue;
+            }
+            final boolean wanted = name.equals("form") || name.equals("input");
+            final Map<String, String> attrs = readAttributes(wanted);
+            if (name.equals("form")) {
+                // Forms do not nest. Browsers ignore a form tag inside a form, and so do we.
+                if (formFields == null && isTarget(attrs.get("action"))) {
+                    formFields = new HashMap<>();
+                    inTarget = true;
+                }
+            } else if (name.equals("input")) {
+                final String type = attrs.get("type");
+                final String inputName = attrs.get("name");
+                if (type != null && type.equalsIgnoreCase("hidden") && inputName != null) {
+                    final String value = attrs.containsKey("value") ? attrs.get("value") : "";
+                    pageFields.put(inputName, value);
+                    if (inTarget) formFields.put(inputName, value);
+                }
+            } else if (name.equals("script") || name.equals("style")) {
+                // Their text may contain anything that looks like tags.
+                skipRawText(name);
+            }
+        }
+        // The target form was not found, or the page was cut short.
+        return inTarget ? formFields : pageFields;
+    }
+
+    /** Whether a form with this action submits to the target URL. */
+    private boolean isTarget(String action) {
+        final URL url;
+        try {
+            url = (action == null || action.isEmpty()) ? mPageUrl : new URL(mPageUrl, action);
+        } catch (MalformedURLException e) {
+            return false;
+        }
+        // Query strings tend to carry the per-session tokens that are being refreshed, and the
+        // same form may be served over HTTP and HTTPS, so compare only host and path.
+        return url.getHost().equalsIgnoreCase(mTarget.getHost())
+                && pathOf(url).equals(pathOf(mTarget));
+    }
+
+    private static String pathOf(URL url) {
+        return url.getPath().isEmpty() ? "/" : url.getPath();
+    }
+
+    /** Reads a tag or attribute name starting with {@code first}, in lower case. */
+    private String readName(int first) throws IOException {
+        final StringBuilder name = new StringBuilder();
+        int c = first;
+        while (c != -1 && !isSpace(c) && c != '>' && c != '/' && c != '=') {
+            if (name.length() < MAX_VALUE_LENGTH) name.append((char) c);
+            c = read();
+        }
+        unread(c);
+        return name.toString().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Reads the attributes of a start tag up to and including its '>'.
+     *
+     * @param keep whether to return them. If false, they are skipped and an empty map returned.
+     */
+    private Map<String, String> readAttributes(boolean keep) throws IOException {
+        final Map<String, String> attrs = new HashMap<>();
+        while (true) {
+            int c = skipSpace();
+            if (c == -1 || c == '>') return attrs;
+            if (c == '/' || c == '=') continue;
+            final String name = readName(c);
+            c = skipSpace();
+            if (c != '=') {
+                unread(c);
+                if (keep) attrs.put(name, "");
+                continue;
+            }
+            final String value = readValue(skipSpace());
+            if (keep && !attrs.containsKey(name)) attrs.put(name, unescape(value));
+        }
+    }
+
+    /** Reads an attribute value starting with {@code first}, quoted or not. */
+    private String readValue(int first) throws IOException {
+        final StringBuilder value = new StringBuilder();
+        if (first == '"' || first == '\'') {
+            for (int c = read(); c != -1 && c != first; c = read()) {
+                if (value.length() < MAX_VALUE_LENGTH) value.append((char) c);
+            }
+            return value.toString();
+        }
+        int c = first;
+        while (c != -1 && !isSpace(c) && c != '>') {
+            if (value.length() < MAX_VALUE_LENGTH) value.append((char) c);
+            c = read();
+        }
+        unread(c);
+        return value.toString();
+    }
+
+    /** Skips what follows "<!": a comment, or a declaration such as a doctype. */
+    private void skipComment() throws IOException {
+        int c = read();
+        if (c != '-' || (c = read()) != '-') {
+            unread(c);
+            skipPast('>');
+            return;
+        }
+        // Look for "-->".
+        int dashes = 0;
+        while ((c = read()) != -1) {
+            if (c == '>' && dashes >= 2) return;
+            dashes = (c == '-') ? dashes + 1 : 0;
+        }
+    }
+
+    /** Skips the text of a script or style element, up to and including its end tag. */
+    private void skipRawText(String name) throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c != '<') continue;
+            if ((c = read()) != '/') {
+                unread(c);
+                continue;
+            }
+            int matched = 0;
+            while (matched < name.length()
+                    && Character.toLowerCase(c = read()) == name.charAt(matched)) {
+                matched++;
+            }
+            if (matched == name.length()) {
+                skipPast('>');
+                return;
+            }
+            unread(c);
+        }
+    }
+
+    private void skipPast(int end) throws IOException {
+        int c;
+        while ((c = read()) != -1 && c != end) {
+        }
+    }
+
+    private int skipSpace() throws IOException {
+        int c;
+        while (isSpace(c = read())) {
+        }
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (mPushback != -1) {
+            final int c = mPushback;
+            mPushback = -1;
+            return c;
+        }
+        if (mRead >= mMaxChars) return -1;
+        mRead++;
+        return mIn.read();
+    }
+
+    private void unread(int c) {
+        mPushback = c;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /** Decodes the character references that show up in attribute values. */
+    private static String unescape(String s) {
+        if (s.indexOf('&') < 0) return s;
+        final StringBuilder out = new StringBuilder(s.length());
+        int i = 0;
+        while (i < s.length()) {
+            final char c = s.charAt(i);
+            final int semicolon = s.indexOf(';', i);
+            if (c != '&' || semicolon < 0 || semicolon - i > 10) {
+                out.append(c);
+                i++;
+                continue;
+            }
+            final String entity = s.substring(i + 1, semicolon);
+            final int decoded = decodeEntity(entity);
+            if (decoded < 0) {
+                out.append(c);
+                i++;
+                continue;
+            }
+            out.appendCodePoint(decoded);
+            i = semicolon + 1;
+        }
+        return out.toString();
+    }
+
+    private static int decodeEntity(String entity) {
+        switch (entity) {
+            case "amp": return '&';
+            case "quot": return '"';
+            case "apos": return '\'';
+            case "lt": return '<';
+            case "gt": return '>';
+        }
+        if (entity.length() < 2 || entity.charAt(0) != '#') return -1;
+        try {
+            final int codePoint = (entity.charAt(1) == 'x' || entity.charAt(1) == 'X')
+                    ? Integer.parseInt(entity.substring(2), 16)
+                    : Integer.parseInt(entity.substring(1));
+            return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String urlEncode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String urlDecode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return s;
+        }
+    }
+}
@@ -0,0 +1,704 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Replays the login form that the captive portal app stored for a Wi-Fi network, on a thread of
+ * its own so that a portal that never answers cannot hold up NetworkMonitor.
+ *
+ * Each replay is bounded twice: the connection has connect and read timeouts, and the whole
+ * replay, including reading the stored form, is abandoned after {@link #REPLAY_DEADLINE_MS}.
+ * The result of every replay, including abandoned ones, is reported exactly once to the
+ * {@link Callback}, on the replay thread.
+ *
+ * While a network is being probed, {@link #prewarm} can read the stored form and connect to its
+ * action host ahead of time, so that if the probe finds a portal the replay only has to send
+ * the form.
+ *
+ * Stored forms tend to carry per-session hidden fields such as nonces and redirect tokens, which
+ * a portal rejects once they are stale. So before sending a stored form, the replay fetches the
+ * portal's current login page and sends the form with that page's hidden fields instead.
+ *
+ * {@hide}
+ */
+public class PortalLoginReplayer {
+    private static final String TAG = PortalLoginReplayer.class.getSimpleName();
+
+    // Connect and read timeout of each replayed request.
+    private static final int REPLAY_SOCKET_TIMEOUT_MS = 10 * 1000;
+    // Longest a replay may take from start to finish.
+    private static final long REPLAY_DEADLINE_MS = 20 * 1000;
+    // Portals tend to drop idle connections quickly. Older pre-warmed connections are not used.
+    private static final long WARM_CONNECTION_MAX_IDLE_MS = 30 * 1000;
+    // Most of a portal page that is searched for hidden fields.
+    private static final int MAX_PAGE_BYTES = 256 * 1024;
+    // Redirects followed from the captive portal URL to the portal's landing page.
+    private static final int MAX_LANDING_REDIRECTS = 3;
+
+    /** Receives the result of a replay. */
+    public interface Callback {
+        void onReplayComplete(Result result);
+    }
+
+    /** Outcome of one replay attempt. */
+    public static final class Result {
+        public static final int STATUS_NO_PROFILE = 0;
+        public static final int STATUS_RESPONSE = 1;
+        public static final int STATUS_ERROR = 2;
+        public static final int STATUS_TIMEOUT = 3;
+        public static final int STATUS_CANCELLED = 4;
+        // The stored login has failed too often lately. See ReplayStats.
+        public static final int STATUS_SKIPPED = 5;
+
+        public final int status;
+        // HTTP status of the portal's response, or -1 if there was none.
+        public final int httpCode;
+        public final long latencyMs;
+        // Description of what went wrong, or null.
+        public final String error;
+        // Whether a pre-warmed connection was used.
+        public final boolean warm;
+        // Number of requests sent.
+        public final int requests;
+        // Whether cookies stored from an earlier visit signed in, so that no form was sent.
+        public final boolean cookiesOnly;
+        // The name of the stored login that was found for the replay, or null if none was.
+        // See LoginProfileCache.Profile#name.
+        public final String login;
+        // SystemClock.elapsedRealtime() when the replay finished.
+        public final long completedAtMs = SystemClock.elapsedRealtime();
+
+        Result(int status, int httpCode, long latencyMs, String error) {
+            this(status, httpCode, latencyMs, error, false, 0);
+        }
+
+        Result(int status, int httpCode, long latencyMs, String error, boolean warm,
+                int requests) {
+            this(status, httpCode, latencyMs, error, warm, requests, false);
+        }
+
+        Result(int status, int httpCode, long latencyMs, String error, boolean warm,
+                int requests, boolean cookiesOnly) {
+            this(status, httpCode, latencyMs, error, warm, requests, cookiesOnly, null);
+        }
+
+        private Result(int status, int httpCode, long latencyMs, String error, boolean warm,
+                int requests, boolean cookiesOnly, String login) {
+            this.status = status;
+            this.httpCode = httpCode;
+            this.latencyMs = latencyMs;
+            this.error = error;
+            this.warm = warm;
+            this.requests = requests;
+            this.cookiesOnly = cookiesOnly;
+            this.login = login;
+        }
+
+        /** Returns a copy of this result for the stored login of {@code ssid}. */
+        Result withLogin(String ssid) {
+            return new Result(status, httpCode, latencyMs, error, warm, requests, cookiesOnly,
+                    ssid);
+        }
+
+        /** Whether a stored login was sent and the portal accepted the request. */
+        public boolean isSuccessful() {
+            return status == STATUS_RESPONSE && httpCode >= 200 && httpCode < 400;
+        }
+
+        /** Whether anything was sent to the portal. */
+        public boolean wasAttempted() {
+            return status != STATUS_NO_PROFILE && status != STATUS_CANCELLED
+                    && status != STATUS_SKIPPED;
+        }
+
+        @Override
+        public String toString() {
+            final String[] names =
+                    { "NO_PROFILE", "RESPONSE", "ERROR", "TIMEOUT", "CANCELLED", "SKIPPED" };
+            return names[status] + (httpCode != -1 ? " " + httpCode : "") + " in " + latencyMs +
+                    "ms" + (requests > 1 ? ", " + requests + " requests" : "") +
+                    (warm ? " warm" : "") + (cookiesOnly ? " cookies only" : "") +
+                    (error != null ? " (" + error + ")" : "");
+        }
+    }
+
+    /** A stored form read ahead of a replay, and a connection to its action host if any. */
+    private static final class Warm {
+        final String ssid;
+        // Null if no login is stored for ssid.
+        final LoginProfileCache.Profile profile;
+        final ProbeConnection connection;
+        final long sinceMs = SystemClock.elapsedRealtime();
+
+        Warm(String ssid, LoginProfileCache.Profile profile, ProbeConnection connection) {
+            this.ssid = ssid;
+            this.profile = profile;
+            this.connection = connection;
+        }
+    }
+
+    /** One replay in flight. */
+    private final class Replay implements Runnable {
+        private final LoginProfileCache.Query mQuery;
+        // Requested first to find the portal's landing page, or null not to.
+        private final URL mPortalUrl;
+        private final Callback mCallback;
+        private final long mStartMs = SystemClock.elapsedRealtime();
+        private final AtomicBoolean mReported = new AtomicBoolean();
+        private volatile Closeable mConnection;
+        private volatile Future<?> mFuture;
+        private volatile Future<?> mWatchdog;
+        // The name of the stored login found for the replay, once it has been looked up.
+        private volatile String mLogin;
+        // The stored cookies, plus those the portal sets during the replay.
+        private PortalCookieJar mJar;
+        // Whether stored or new cookies were sent while fetching the portal's page.
+        private boolean mSentCookies;
+        // Whether anything that may sign in has gone out: cookies, the form or a script step.
+        private volatile boolean mSubmitted;
+
+        Replay(LoginProfileCache.Query query, URL portalUrl, Callback callback) {
+            mQuery = query;
+            mPortalUrl = portalUrl;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            Result result;
+            try {
+                result = replay();
+            } catch (IOException | RuntimeException e) {
+                result = new Result(Result.STATUS_ERROR, -1, elapsedMs(), e.toString());
+            }
+            report(result);
+            // Whatever the outcome, keep the cookies the portal set for next time.
+            if (mJar != null) mCookieStore.save(mJar);
+        }
+
+        private Result replay() throws IOException {
+            final Warm warm = takeWarm(mQuery.ssid);
+            // Looked up again, since the probe may have found the portal's redirect host after
+            // the pre-warm, and that can pick a different login.
+            final LoginProfileCache.Profile profile = mProfiles.lookup(mQuery);
+            ProbeConnection connection = (warm != null) ? warm.connection : null;
+            if (profile == null) {
+                if (connection != null) closeQuietly(connection);
+                return new Result(Result.STATUS_NO_PROFILE, -1, elapsedMs(), null);
+            }
+            mLogin = profile.name;
+            if (mStats.shouldSkip(profile.name)) {
+                if (connection != null) closeQuietly(connection);
+                return new Result(Result.STATUS_SKIPPED, -1, elapsedMs(), null);
+            }
+            if (!profile.ssid.equals(mQuery.ssid)) {
+                Log.d(TAG, "Replaying the login of " + profile.ssid + " for " + mQuery);
+            }
+            mJar = mCookieStore.load();
+            // Only cookies set after the portal's redirect are kept, and sent.
+            if (mPortalUrl != null) mJar.ignoreHost(mPortalUrl.getHost());
+            // A POST is not safe to retry, so only send it on a warm connection that is known
+            // to still be open.
+            if (connection != null && (!isSameLogin(warm.profile, profile) || !isUsable(warm))) {
+                closeQuietly(connection);
+                connection = null;
+            }
+            if (profile.script != null) return runScript(profile.script, connection);
+
+            final URL url;
+            try {
+                url = new URL(profile.actionUrl);
+            } catch (MalformedURLException e) {
+                if (connection != null) closeQuietly(connection);
+                return new Result(Result.STATUS_ERROR, -1, elapsedMs(), "bad form URL");
+            }
+            final PortalCookieJar jar = mJar;
+            final Exchange exchange = new Exchange(connection);
+            try {
+                String params = profile.params;
+                if (mPortalUrl != null) {
+                    try {
+                        final Map<String, String> fields = fetchLandingFields(exchange, jar, url);
+                        if (mSentCookies && isSignedIn(exchange)) {
+                            return new Result(Result.STATUS_RESPONSE, 204, elapsedMs(), null,
+                                    exchange.wasWarm(), exchange.sent(), true);
+                        }
+                        params = PortalFormScanner.merge(params, fields);
+                    } catch (IOException e) {
+                        // Send the stored form as it is. Do not send it on a connection that
+                        // may be broken.
+                        Log.d(TAG, "Could not fetch portal page: " + e);
+                        exchange.drop();
+                    }
+                }
+                final Map<String, String> headers = new HashMap<>();
+                headers.put("Content-Type", "application/x-www-form-urlencoded");
+                headers.put("charset", "utf-8");
+                final String cookies = jar.getHeader(url);
+                if (cookies != null) headers.put("Cookie", cookies);
+                mSubmitted = true;
+                final ProbeConnection.Response response = exchange.send(url, "POST", headers,
+                        params.getBytes(StandardCharsets.UTF_8));
+                return new Result(Result.STATUS_RESPONSE, response.code, elapsedMs(), null,
+                        exchange.wasWarm(), exchange.sent());
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * Fetches the portal's landing page by requesting the captive portal URL, which the
+         * portal intercepts, following its redirects. Returns the current hidden fields of the
+         * form that submits to {@code action}. Cookies the portal sets once it has redirected
+         * away from the captive portal URL go into {@code jar}.
+         */
+        private Map<String, String> fetchLandingFields(Exchange exchange, PortalCookieJar jar,
+                URL action) throws IOException {
+            URL page = mPortalUrl;
+            for (int i = 0; i <= MAX_LANDING_REDIRECTS; i++) {
+                final Map<String, String> headers = new HashMap<>();
+                final String cookies = jar.getHeader(page);
+                if (cookies != null) {
+                    headers.put("Cookie", cookies);
+                    mSentCookies = true;
+                    mSubmitted = true;
+                }
+                final ProbeConnection.Response response =
+                        exchange.send(page, "GET", headers, null);
+                jar.addAll(page, response.setCookies);
+                if (response.code >= 300 && response.code < 400 && response.location != null) {
+                    final URL next = new URL(page, response.location);
+                    if (!next.getProtocol().equals("http")
+                            && !next.getProtocol().equals("https")) {
+                        break;
+                    }
+                    exchange.finish();
+                    page = next;
+                    continue;
+                }
+                if (response.code != 200) break;
+                final Map<String, String> fields = PortalFormScanner.scan(
+                        exchange.connection().openBody(), page, action, MAX_PAGE_BYTES);
+                exchange.finish();
+                return fields;
+            }
+            exchange.finish();
+            return Collections.emptyMap();
+        }
+
+        /**
+         * Whether the device is signed in, as a GET of the portal URL answering 204 shows. Used
+         * after fetching the portal's page with cookies from an earlier visit, which many portals
+         * accept in place of a login.
+         */
+        private boolean isSignedIn(Exchange exchange) throws IOException {
+            final ProbeConnection.Response response = exchange.send(mPortalUrl, "GET", null, null);
+            exchange.finish();
+            return response.code == 204;
+        }
+
+        /**
+         * Sends the steps of {@code script} that are still needed, in order, carrying cookies
+         * from one step to the next and filling in hidden fields. Steps share a connection
+         * while they are on the same route. Stops at the first step the portal rejects.
+         *
+         * @param connection a warm connection to use for the first step sent, or null.
+         */
+        private Result runScript(LoginScript script, ProbeConnection connection)
+                throws IOException {
+            final PortalCookieJar jar = mJar;
+            final Exchange exchange = new Exchange(connection);
+            Map<String, String> hiddenFields = Collections.emptyMap();
+            int code = -1;
+            int sentBefore = 0;
+            try {
+                if (mPortalUrl != null && !jar.isEmpty()) {
+                    // See whether cookies from an earlier visit still sign in.
+                    try {
+                        fetchLandingFields(exchange, jar, script.getFirstStepToSend().url);
+                        if (mSentCookies && isSignedIn(exchange)) {
+                            return new Result(Result.STATUS_RESPONSE, 204, elapsedMs(), null,
+                                    exchange.wasWarm(), exchange.sent(), true);
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, "Could not fetch portal page: " + e);
+                        exchange.drop();
+                    }
+                }
+                sentBefore = exchange.sent();
+                for (int i = 0; i < script.steps.size(); i++) {
+                    if (!script.isNeeded(i, jar)) continue;
+                    final LoginScript.Step step = script.steps.get(i);
+                    final Map<String, String> headers = new HashMap<>();
+                    final String cookies = jar.getHeader(step.url);
+                    if (cookies != null) headers.put("Cookie", cookies);
+                    byte[] body = null;
+                    if (step.bodyTemplate != null) {
+                        headers.put("Content-Type", "application/x-www-form-urlencoded");
+                        body = LoginScript.fillTemplate(step.bodyTemplate, hiddenFields)
+                                .getBytes(StandardCharsets.UTF_8);
+                    }
+                    mSubmitted = true;
+                    final ProbeConnection.Response response =
+                            exchange.send(step.url, step.method, headers, body);
+                    code = response.code;
+                    jar.addAll(step.url, response.setCookies);
+                    if (code >= 400) {
+                        return new Result(Result.STATUS_RESPONSE, code, elapsedMs(),
+                                "step " + (i + 1) + " of " + script.steps.size() + " rejected",
+                                exchange.wasWarm(), exchange.sent());
+                    }
+                    final LoginScript.Step next =
+                            (i + 1 < script.steps.size()) ? script.steps.get(i + 1) : null;
+                    if (next != null && next.needsHiddenFields()) {
+                        hiddenFields = PortalFormScanner.scan(exchange.connection().openBody(),
+                                step.url, next.url, MAX_PAGE_BYTES);
+                    }
+                    exchange.finish();
+                }
+            } finally {
+                exchange.close();
+            }
+            if (exchange.sent() == sentBefore) {
+                return new Result(Result.STATUS_ERROR, -1, elapsedMs(), "nothing to send");
+            }
+            return new Result(Result.STATUS_RESPONSE, code, elapsedMs(), null,
+                    exchange.wasWarm(), exchange.sent());
+        }
+
+        /**
+         * The connection a replay's requests go over. Requests share it while they are on the
+         * same route, and a new one is opened when the route changes or the server closes it.
+         * A pre-warmed connection is held back until a request goes to its route.
+         */
+        private final class Exchange {
+            private ProbeConnection mOpen;
+            private ProbeConnection mWarmConnection;
+            private boolean mWarm;
+            private int mSent;
+
+            /** @param warm a pre-warmed connection, or null. */
+            Exchange(ProbeConnection warm) {
+                mWarmConnection = warm;
+            }
+
+            ProbeConnection.Response send(URL url, String method, Map<String, String> headers,
+                    byte[] body) throws IOException {
+                if (mOpen != null && !isOnRoute(mOpen, url)) drop();
+                // Check the warm connection again, since earlier requests may have taken a while.
+                if (mOpen == null && mWarmConnection != null && isOnRoute(mWarmConnection, url)
+                        && mWarmConnection.isHealthy()) {
+                    mOpen = mWarmConnection;
+                    mWarmConnection = null;
+                    mWarm = true;
+                }
+                if (mOpen == null) {
+                    // Connect over this network, reusing any addresses already resolved. Not a
+                    // request to retry on a stale pooled connection, so always connect afresh.
+                    mOpen = mConnector.openNew(url, mDnsCache.lookup(url.getHost()),
+                            REPLAY_SOCKET_TIMEOUT_MS);
+                } else {
+                    mOpen.reuseFor(url, REPLAY_SOCKET_TIMEOUT_MS);
+                }
+                mConnection = mOpen;
+                mSent++;
+                return mOpen.request(method, headers, body);
+            }
+
+            ProbeConnection connection() {
+                return mOpen;
+            }
+
+            /** Ends the last exchange, closing the connection if it cannot carry another. */
+            void finish() {
+                if (mOpen != null && !mOpen.finishExchange()) drop();
+            }
+
+            /** Closes the connection in use, e.g. because it may be broken. */
+            void drop() {
+                if (mOpen != null) closeQuietly(mOpen);
+                mOpen = null;
+            }
+
+            void close() {
+                drop();
+                if (mWarmConnection != null) closeQuietly(mWarmConnection);
+                mWarmConnection = null;
+            }
+
+            /** Whether a request went over the pre-warmed connection. */
+            boolean wasWarm() {
+                return mWarm;
+            }
+
+            int sent() {
+                return mSent;
+            }
+        }
+
+        /** Reports {@code result} unless a result has already been reported. */
+        void report(Result result) {
+            if (!mReported.compareAndSet(false, true)) return;
+            final Future<?> watchdog = mWatchdog;
+            if (watchdog != null) watchdog.cancel(false);
+            final String login = mLogin;
+            if (login != null) result = result.withLogin(login);
+            recordMetrics(result);
+            mCallback.onReplayComplete(result);
+        }
+
+        /** Abandons the replay, reporting {@code status} if it has not finished yet. */
+        void abandon(int status) {
+            if (mReported.get()) return;
+            final Closeable connection = mConnection;
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                }
+            }
+            final Future<?> future = mFuture;
+            if (future != null) future.cancel(true /* mayInterruptIfRunning */);
+            report(new Result(status, -1, elapsedMs(), null));
+        }
+
+        private long elapsedMs() {
+            return SystemClock.elapsedRealtime() - mStartMs;
+        }
+    }
+
+    private final LoginProfileCache mProfiles;
+    private final StoredPortalCookies mCookieStore;
+    private final ReplayStats mStats;
+    private final ProbeConnector mConnector;
+    private final ProbeDnsCache mDnsCache;
+    // Runs replays one at a time.
+    private final ExecutorService mExecutor;
+    // Enforces replay deadlines. Separate, so that a stuck replay cannot delay its own deadline.
+    private final ScheduledExecutorService mWatchdogExecutor;
+
+    private Replay mCurrent;
+    // Read ahead by prewarm() for the next replay. Guarded by this.
+    private Warm mWarm;
+    // Incremented whenever pre-warming starts or is discarded, so that a pre-warm that finishes
+    // after being discarded does not leave its connection behind.
+    private int mWarmGeneration;
+
+    // Metrics, for dumps.
+    private int mAttempts;
+    private int mSuccesses;
+    private int mTimeouts;
+    private int mLastHttpCode = -1;
+    private int mWarmReplays;
+    private int mCookieLogins;
+    private long mTotalLatencyMs;
+
+    public PortalLoginReplayer(LoginProfileCache profiles, StoredPortalCookies cookieStore,
+            ReplayStats stats, ProbeConnector connector, ProbeDnsCache dnsCache,
+            final String threadName) {
+        mProfiles = profiles;
+        mCookieStore = cookieStore;
+        mStats = stats;
+        mConnector = connector;
+        mDnsCache = dnsCache;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, threadName);
+            }
+        });
+        mWatchdogExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, threadName + "/watchdog");
+            }
+        });
+    }
+
+    /**
+     * Replays the stored login that best matches {@code query}, cancelling any replay still in
+     * flight. The result goes to {@code callback}.
+     *
+     * @param portalUrl a URL the portal intercepts, e.g. the captive portal probe URL. If not
+     *         null, a stored form is sent with the hidden fields of the portal's current login
+     *         page rather than the stale ones it was stored with.
+     */
+    public synchronized void replay(LoginProfileCache.Query query, URL portalUrl,
+            Callback callback) {
+        abandonCurrent();
+        final Replay replay = new Replay(query, portalUrl, callback);
+        mCurrent = replay;
+        replay.mWatchdog = mWatchdogExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "Replay for " + replay.mQuery + " abandoned after " +
+                        REPLAY_DEADLINE_MS + "ms");
+                replay.abandon(Result.STATUS_TIMEOUT);
+            }
+        }, REPLAY_DEADLINE_MS, TimeUnit.MILLISECONDS);
+        replay.mFuture = mExecutor.submit(replay);
+    }
+
+    /**
+     * Looks up the login stored for {@code query} and connects to its action host, in the
+     * background, so that a replay started soon after can skip both. Does nothing further if no
+     * login is stored. Replaces anything pre-warmed before.
+     */
+    public synchronized void prewarm(final LoginProfileCache.Query query) {
+        discardWarm();
+        final int generation = mWarmGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                warmUp(query, generation);
+            }
+        });
+    }
+
+    /**
+     * Abandons the replay in flight, if any, and drops anything pre-warmed. The replay's callback
+     * gets a cancelled result.
+     *
+     * @return whether the abandoned replay had already sent the portal the login, or cookies
+     *         that may sign in. If so, the portal may have let the device through because of it.
+     */
+    public synchronized boolean cancel() {
+        final boolean submitted = (mCurrent != null) && mCurrent.mSubmitted;
+        abandonCurrent();
+        discardWarm();
+        return submitted;
+    }
+
+    private synchronized void abandonCurrent() {
+        if (mCurrent != null) {
+            mCurrent.abandon(Result.STATUS_CANCELLED);
+            mCurrent = null;
+        }
+    }
+
+    /** Runs on the replay thread, ahead of any replay started after the pre-warm. */
+    private void warmUp(LoginProfileCache.Query query, int generation) {
+        synchronized (this) {
+            if (generation != mWarmGeneration) return;
+        }
+        final LoginProfileCache.Profile profile = mProfiles.lookup(query);
+        ProbeConnection connection = null;
+        if (profile != null) {
+            try {
+                // Connect for the first request the replay will send.
+                final URL url = (profile.script != null)
+                        ? profile.script.getFirstStepToSend().url : new URL(profile.actionUrl);
+                final InetAddress[] addresses = mDnsCache.lookup(url.getHost());
+                connection = mConnector.openNew(url, addresses, REPLAY_SOCKET_TIMEOUT_MS);
+            } catch (IOException | RuntimeException e) {
+                // The replay will try again.
+                Log.d(TAG, "Could not pre-warm login connection for " + query + ": " + e);
+            }
+        }
+        synchronized (this) {
+            if (generation == mWarmGeneration) {
+                mWarm = new Warm(query.ssid, profile, connection);
+                return;
+            }
+        }
+        if (connection != null) closeQuietly(connection);
+    }
+
+    /** Returns what was pre-warmed for {@code ssid}, if anything, handing it to the caller. */
+    private synchronized Warm takeWarm(String ssid) {
+        final Warm warm = mWarm;
+        mWarm = null;
+        if (warm != null && !warm.ssid.equals(ssid)) {
+            if (warm.connection != null) closeQuietly(warm.connection);
+            return null;
+        }
+        return warm;
+    }
+
+    private synchronized void discardWarm() {
+        mWarmGeneration++;
+        if (mWarm != null && mWarm.connection != null) closeQuietly(mWarm.connection);
+        mWarm = null;
+    }
+
+    private static boolean isOnRoute(ProbeConnection connection, URL url) {
+        return connection.getRoute().equals(ProbeConnection.routeOf(url));
+    }
+
+    /** Whether two lookups found the same stored login. */
+    private static boolean isSameLogin(LoginProfileCache.Profile a, LoginProfileCache.Profile b) {
+        return a != null && a.name.equals(b.name) && a.actionUrl.equals(b.actionUrl);
+    }
+
+    private static boolean isUsable(Warm warm) {
+        return SystemClock.elapsedRealtime() - warm.sinceMs <= WARM_CONNECTION_MAX_IDLE_MS
+                && warm.connection.isHealthy();
+    }
+
+    private static void closeQuietly(ProbeConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Abandons any replay in flight and stops the replay threads. */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdownNow();
+        mWatchdogExecutor.shutdownNow();
+    }
+
+    private synchronized void recordMetrics(Result result) {
+        if (!result.wasAttempted()) return;
+        mAttempts++;
+        if (result.isSuccessful()) mSuccesses++;
+        if (result.status == Result.STATUS_TIMEOUT) mTimeouts++;
+        if (result.warm) mWarmReplays++;
+        if (result.cookiesOnly) mCookieLogins++;
+        mLastHttpCode = result.httpCode;
+        mTotalLatencyMs += result.latencyMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "replays=" + mAttempts + " ok=" + mSuccesses + " timeouts=" + mTimeouts +
+                " warm=" + mWarmReplays + " cookies=" + mCookieLogins + " last=" +
+                mLastHttpCode + " avg=" +
+                (mAttempts > 0 ? mTotalLatencyMs / mAttempts : 0) + "ms";
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.os.Environment;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers, across reboots, which Wi-Fi networks turned out to be captive portals and whether
+ * replaying the stored login got them online. NetworkMonitor uses this to replay the login as
+ * soon as a known portal is re-joined, instead of waiting for a full probe cycle first.
+ *
+ * Entries are keyed by SSID and BSSID. A lookup that does not match the BSSID falls back to the
+ * most recent entry for the same SSID, since a venue usually has many access points behind one
+ * portal. Such a verdict is only a hint, since an unrelated network may share the SSID: callers
+ * check the verdict's BSSID before acting on it without probing. Entries expire after
+ * {@link #MAX_AGE_MS}.
+ *
+ * {@hide}
+ */
+public class PortalVerdictCache {
+    private static final String TAG = PortalVerdictCache.class.getSimpleName();
+
+    private static final String FILE_NAME = "netmon_portal_verdicts";
+    private static final int VERSION = 2;
+    // Redirect URLs written with writeUTF, which cannot write ones over 64KB.
+    private static final int VERSION_MODIFIED_UTF8 = 1;
+    // Anything longer in the file is corruption. Far longer than any real redirect URL.
+    private static final int MAX_REDIRECT_URL_BYTES = 1024 * 1024;
+    private static final int MAX_ENTRIES = 256;
+    private static final long MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static PortalVerdictCache sInstance;
+
+    /** What was last seen on one network. */
+    public static final class Verdict {
+        public final String ssid;
+        public final String bssid;
+        public final boolean isPortal;
+        // Where the portal redirected the probe, or null.
+        public final String redirectUrl;
+        public final boolean replaySucceeded;
+        // Wall clock time, since entries survive reboots.
+        public final long timestampMs;
+
+        public Verdict(String ssid, String bssid, boolean isPortal, String redirectUrl,
+                boolean replaySucceeded, long timestampMs) {
+            this.ssid = ssid;
+            this.bssid = bssid;
+            this.isPortal = isPortal;
+            this.redirectUrl = redirectUrl;
+            this.replaySucceeded = replaySucceeded;
+            this.timestampMs = timestampMs;
+        }
+
+        @Override
+        public String toString() {
+            return ssid + "/" + bssid + " portal=" + isPortal + " replay=" +
+                    (replaySucceeded ? "ok" : "failed") + " redirect=" + redirectUrl;
+        }
+    }
+
+    private final AtomicFile mFile;
+    // Least recently recorded first.
+    private final LinkedHashMap<String, Verdict> mVerdicts = new LinkedHashMap<>();
+    private boolean mLoaded;
+
+    public static synchronized PortalVerdictCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PortalVerdictCache(
+                    new File(Environment.getDataSystemDirectory(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    public PortalVerdictCache(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /** Returns the verdict for this network, or null if there is none or it has expired. */
+    public synchronized Verdict lookup(String ssid, String bssid) {
+        loadIfNeeded();
+        Verdict verdict = mVerdicts.get(key(ssid, bssid));
+        if (verdict == null) {
+            for (Verdict v : mVerdicts.values()) {
+                if (v.ssid.equals(ssid)) verdict = v;
+            }
+        }
+        if (verdict != null && isExpired(verdict, System.currentTimeMillis())) return null;
+        return verdict;
+    }
+
+    /** Records a verdict for this network and writes the cache to disk. */
+    public synchronized void record(Verdict verdict) {
+        loadIfNeeded();
+        final String key = key(verdict.ssid, verdict.bssid);
+        // Re-insert so that the map stays ordered by recording time.
+        mVerdicts.remove(key);
+        mVerdicts.put(key, verdict);
+        trim();
+        write();
+    }
+
+    /** Forgets everything recorded for this SSID, on any BSSID. */
+    public synchronized void invalidate(String ssid) {
+        loadIfNeeded();
+        boolean changed = false;
+        for (Iterator<Verdict> it = mVerdicts.values().iterator(); it.hasNext(); ) {
+            if (it.next().ssid.equals(ssid)) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) write();
+    }
+
+    private static String key(String ssid, String bssid) {
+        return ssid + "/" + bssid;
+    }
+
+    private static boolean isExpired(Verdict verdict, long now) {
+        return now - verdict.timestampMs > MAX_AGE_MS || verdict.timestampMs > now;
+    }
+
+    private void trim() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<Verdict> it = mVerdicts.values().iterator(); it.hasNext(); ) {
+            if (isExpired(it.next(), now)) it.remove();
+        }
+        for (Iterator<String> it = mVerdicts.keySet().iterator();
+                it.hasNext() && mVerdicts.size() > MAX_ENTRIES; ) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void loadIfNeeded() {
+        if (mLoaded) return;
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            final int version = in.readInt();
+            if (version != VERSION && version != VERSION_MODIFIED_UTF8) return;
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String ssid = in.readUTF();
+                final String bssid = in.readUTF();
+                final boolean isPortal = in.readBoolean();
+                String redirectUrl = null;
+                if (in.readBoolean()) {
+                    redirectUrl = (version == VERSION_MODIFIED_UTF8)
+                            ? in.readUTF() : readRedirectUrl(in);
+                }
+                final boolean replaySucceeded = in.readBoolean();
+                final long timestampMs = in.readLong();
+                mVerdicts.put(key(ssid, bssid), new Verdict(ssid, bssid, isPortal, redirectUrl,
+                        replaySucceeded, timestampMs));
+            }
+            trim();
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet.
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading portal verdicts, discarding them", e);
+            mVerdicts.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static String readRedirectUrl(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_REDIRECT_URL_BYTES) {
+            throw new IOException("Bad redirect URL length " + length);
+        }
+        final byte[] url = new byte[length];
+        in.readFully(url);
+        return new String(url, StandardCharsets.UTF_8);
+    }
+
+    private void write() {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeInt(mVerdicts.size());
+            for (Verdict v : mVerdicts.values()) {
+                out.writeUTF(v.ssid);
+                out.writeUTF(v.bssid);
+                out.writeBoolean(v.isPortal);
+                out.writeBoolean(v.redirectUrl != null);
+                if (v.redirectUrl != null) {
+                    // Length-prefixed, since signed redirect URLs can exceed writeUTF's 64KB.
+                    final byte[] url = v.redirectUrl.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(url.length);
+                    out.write(url);
+                }
+                out.writeBoolean(v.replaySucceeded);
+                out.writeLong(v.timestampMs);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing portal verdicts", e);
+            if (fos != null) mFile.failWrite(fos);
+        }
+    }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An HTTP/1.1 connection over a socket opened by {@link ProbeConnector}.
+ *
+ * This is just enough HTTP for validation probes and the stored login replay: it sends a request
+ * without following redirects and reads the response status line. Of the response headers, only
+ * the few that probes and connection reuse need are parsed, straight from the bytes read, and the
+ * rest are skipped without being turned into strings. The response body is
+ * only read if asked for with {@link #readBody(int)} or {@link #openBody()}, or by
+ * {@link #finishExchange()} when the connection is about to go back to the connector's pool for
+ * another request.
+ *
+ * {@hide}
+ */
+public class ProbeConnection implements Closeable {
+    // Longest status or header line we are prepared to read.
+    private static final int MAX_LINE_LENGTH = 8192;
+    // Longest unread body we will skip to keep a connection alive. Probe responses are tiny.
+    private static final int MAX_DISCARD_BYTES = 16 * 1024;
+    // Response headers we parse. Matched case-insensitively at the start of a header line.
+    private static final String CONTENT_LENGTH = "Content-Length:";
+    private static final String LOCATION = "Location:";
+    private static final String RETRY_AFTER = "Retry-After:";
+    private static final String CONNECTION = "Connection:";
+    private static final String TRANSFER_ENCODING = "Transfer-Encoding:";
+    private static final String SET_COOKIE = "Set-Cookie:";
+
+    private final Socket mSocket;
+    private final String mRoute;
+    private URL mUrl;
+    private InputStream mIn;
+    // Reused for every status and header line.
+    private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+    // The GET request for mUrl. Probes send the same request every time, so it is built once.
+    private byte[] mGetRequest;
+    private Response mResponse;
+    // Whether the body of mResponse has been read to the end.
+    private boolean mBodyConsumed;
+    // The body of mResponse, once a caller has started reading it.
+    private BodyInputStream mBody;
+    // Number of requests sent, and when the connection last went idle.
+    private int mRequestCount;
+    private long mIdleSinceMs;
+    // See ProbeConnectionPool#put.
+    private int mPoolGeneration;
+
+    /** Status and the headers we use of an HTTP response. */
+    public static final class Response {
+        public final int code;
+        public final String location;
+        // -1 if the response had no Content-Length.
+        public final long contentLength;
+        // Raw Retry-After value, or null.
+        public final String retryAfter;
+        public final boolean chunked;
+        // Whether the server will keep the connection open after this response.
+        public final boolean keepAlive;
+        // Raw Set-Cookie values, in order. Empty for most probe responses.
+        public final List<String> setCookies;
+
+        Response(int code, String location, long contentLength, String retryAfter,
+                boolean chunked, boolean keepAlive, List<String> setCookies) {
+            this.code = code;
+            this.location = location;
+            this.contentLength = contentLength;
+            this.retryAfter = retryAfter;
+            this.chunked = chunked;
+            this.keepAlive = keepAlive;
+            this.setCookies = setCookies;
+        }
+
+        boolean hasBody() {
+            return code >= 200 && code != 204 && code != 304 && contentLength != 0;
+        }
+    }
+
+    /** The body of a response, read straight off the socket with any chunking removed. */
+    private final class BodyInputStream extends InputStream {
+        private final Response mFor;
+        // Bytes left in the current chunk, or in the whole body if it is not chunked. -1 if the
+        // body runs until the server closes the connection.
+        private long mRemaining;
+        private boolean mEof;
+
+        BodyInputStream(Response response) {
+            mFor = response;
+            mRemaining = response.chunked ? 0 : response.contentLength;
+            mEof = mBodyConsumed;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mEof) return -1;
+            if (len == 0) return 0;
+            if (mRemaining == 0 && (!mFor.chunked || !startChunk())) {
+                finish();
+                return -1;
+            }
+            final int read = mIn.read(b, off, (mRemaining < 0)
+                    ? len : (int) Math.min(len, mRemaining));
+            if (read == -1) {
+                if (mRemaining >= 0) throw new EOFException("Connection closed mid-body");
+                // The server closed the connection, so it cannot be reused anyway.
+                mEof = true;
+                return -1;
+            }
+            if (mRemaining > 0) {
+                mRemaining -= read;
+                // Each chunk's data is followed by a CRLF.
+                if (mRemaining == 0 && mFor.chunked) readLine();
+            }
+            return read;
+        }
+
+        /**
+         * Reads the next chunk's size line. Each chunk is a hex size line, the data and a CRLF.
+         * A zero size, followed by optional trailers and an empty line, ends the body.
+         *
+         * @return false at the end of the body.
+         */
+        private boolean startChunk() throws IOException {
+            final String sizeLine = readLine();
+            final int semicolon = sizeLine.indexOf(';');
+            final long size;
+            try {
+                size = Long.parseLong((semicolon >= 0
+                        ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Bad chunk size: " + sizeLine);
+            }
+            if (size < 0) throw new ProtocolException("Bad chunk size: " + sizeLine);
+            if (size == 0) {
+                for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+                    // Trailers are not used.
+                }
+                return false;
+            }
+            mRemaining = size;
+            return true;
+        }
+
+        private void finish() {
+            mEof = true;
+            if (mResponse == mFor) mBodyConsumed = true;
+        }
+
+        @Override
+        public void close() {
+            // The connection outlives the body.
+        }
+    }
+
+    /**
+     * Whether a response is a 200 with an empty body, which probes count as a 204. Nobody can
+     * sign in to an empty page, so it is not a captive portal: probably a broken transparent
+     * proxy. See http://b/9972012.
+     *
+     * @param contentLength -1 if the response had no Content-Length.
+     */
+    public static boolean isEmptyOk(int code, long contentLength) {
+        return code == 200 && contentLength == 0;
+    }
+
+    ProbeConnection(Socket socket, URL url) {
+        mSocket = socket;
+        mUrl = url;
+        mRoute = routeOf(url);
+    }
+
+    /** Identifies the connections that can serve {@code url}: same scheme, host and port. */
+    static String routeOf(URL url) {
+        final int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    String getRoute() {
+        return mRoute;
+    }
+
+    /** Points a pooled connection at {@code url}, which must be on the same route. */
+    void reuseFor(URL url, int timeoutMs) throws IOException {
+        if (!url.equals(mUrl)) mGetRequest = null;
+        mUrl = url;
+        mSocket.setSoTimeout(timeoutMs);
+    }
+
+    /** Whether this connection carried an earlier request, e.g. because it came from a pool. */
+    public boolean isReused() {
+        return mRequestCount > 1;
+    }
+
+    long getIdleSinceMs() {
+        return mIdleSinceMs;
+    }
+
+    int getPoolGeneration() {
+        return mPoolGeneration;
+    }
+
+    void setPoolGeneration(int generation) {
+        mPoolGeneration = generation;
+    }
+
+    public Socket getSocket() {
+        return mSocket;
+    }
+
+    /** Sends a GET for the URL this connection was opened for and reads the response headers. */
+    public Response get() throws IOException {
+        if (mGetRequest == null) mGetRequest = buildRequest("GET", null, null);
+        return send(mGetRequest, null);
+    }
+
+    /** Returns the response to the last request, or null if there is none yet. */
+    public Response getResponse() {
+        return mResponse;
+    }
+
+    /**
+     * Sends a request for the URL this connection was opened for and reads the response headers.
+     *
+     * @param headers extra request headers, or null.
+     * @param body request body, or null. Content-Length is added if non-null.
+     */
+    public Response request(String method, Map<String, String> headers, byte[] body)
+            throws IOException {
+        return send(buildRequest(method, headers, body), body);
+    }
+
+    private byte[] buildRequest(String method, Map<String, String> headers, byte[] body) {
+        final String target = mUrl.getFile().isEmpty() ? "/" : mUrl.getFile();
+        final StringBuilder request = new StringBuilder()
+                .append(method).append(' ').append(target).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(hostHeader(mUrl)).append("\r\n");
+        final String userAgent = System.getProperty("http.agent");
+        if (userAgent != null) {
+            request.append("User-Agent: ").append(userAgent).append("\r\n");
+        }
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                request.append(header.getKey()).append(": ").append(header.getValue())
+                        .append("\r\n");
+            }
+        }
+        if (body != null) {
+            request.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        // HTTP/1.1 connections stay open unless either side says otherwise.
+        request.append("\r\n");
+        return request.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private Response send(byte[] request, byte[] body) throws IOException {
+        if (mResponse != null) throw new IllegalStateException("Previous exchange not finished");
+        mRequestCount++;
+        final OutputStream out = mSocket.getOutputStream();
+        out.write(request);
+        if (body != null) out.write(body);
+        out.flush();
+        if (mIn == null) mIn = new BufferedInputStream(mSocket.getInputStream());
+        mResponse = readResponse();
+        mBodyConsumed = !mResponse.hasBody();
+        return mResponse;
+    }
+
+    /**
+     * Reads the body of the response to the last request, up to {@code maxBytes}. Longer bodies
+     * are truncated, and the connection can then not be reused.
+     */
+    public byte[] readBody(int maxBytes) throws IOException {
+        final InputStream in = openBody();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        while (body.size() < maxBytes) {
+            final int read = in.read(buffer, 0, Math.min(buffer.length, maxBytes - body.size()));
+            if (read == -1) break;
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Returns the body of the response to the last request as a stream, for callers that can
+     * stop reading part way. Closing the stream does not close the connection. If the body is
+     * not read to the end, {@link #finishExchange()} skips the rest if it is short and otherwise
+     * reports that the connection cannot be reused.
+     */
+    public InputStream openBody() {
+        if (mResponse == null) throw new IllegalStateException("No response to read");
+        if (mBody == null) mBody = new BodyInputStream(mResponse);
+        return mBody;
+    }
+
+    /**
+     * Ends the current exchange so that the connection can carry another request, skipping any
+     * unread body.
+     *
+     * @return false if the connection cannot be reused and should be closed.
+     */
+    public boolean finishExchange() {
+        final Response response = mResponse;
+        if (response == null || mSocket.isClosed() || !response.keepAlive) return false;
+        if (!mBodyConsumed) {
+            if (!response.chunked && response.contentLength < 0) return false;
+            if (response.contentLength > MAX_DISCARD_BYTES) return false;
+            try {
+                readBody(MAX_DISCARD_BYTES);
+            } catch (IOException e) {
+                return false;
+            }
+            if (!mBodyConsumed) return false;
+        }
+        mResponse = null;
+        mBody = null;
+        mIdleSinceMs = SystemClock.elapsedRealtime();
+        return true;
+    }
+
+    /**
+     * Checks that an idle connection has not been closed by the server, without blocking for
+     * more than a millisecond.
+     */
+    boolean isHealthy() {
+        if (mSocket.isClosed() || mSocket.isInputShutdown() || mSocket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            final int timeoutMs = mSocket.getSoTimeout();
+            try {
+                mSocket.setSoTimeout(1);
+                // An idle server sends nothing. EOF means it closed the connection, and anything
+                // else is a protocol error.
+                mIn.read();
+                return false;
+            } finally {
+                mSocket.setSoTimeout(timeoutMs);
+            }
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    private static String hostHeader(URL url) {
+        if (url.getPort() == -1 || url.getPort() == url.getDefaultPort()) return url.getHost();
+        return url.getHost() + ":" + url.getPort();
+    }
+
+    private Response readResponse() throws IOException {
+        // Status line, e.g. "HTTP/1.1 204 No Content". Only the version and code are used.
+        int length = readLineBytes();
+        if (length < 12 || !startsWithIgnoreCase(length, "HTTP/1.") || mLine[8] != ' ') {
+            throw new ProtocolException("Unexpected status line: " + lineString(0, length));
+        }
+        int code = 0;
+        for (int i = 9; i < 12; i++) {
+            if (mLine[i] < '0' || mLine[i] > '9') {
+                throw new ProtocolException("Unexpected status line: " + lineString(0, length));
+            }
+            code = code * 10 + (mLine[i] - '0');
+        }
+        // HTTP/1.0 closes by default, HTTP/1.1 keeps the connection open.
+        boolean keepAlive = (mLine[7] != '0');
+
+        String location = null;
+        String retryAfter = null;
+        boolean chunked = false;
+        long contentLength = -1;
+        List<String> setCookies = Collections.emptyList();
+        for (length = readLineBytes(); length > 0; length = readLineBytes()) {
+            if (startsWithIgnoreCase(length, CONTENT_LENGTH)) {
+                contentLength = parseContentLength(CONTENT_LENGTH.length(), length);
+            } else if (startsWithIgnoreCase(length, LOCATION)) {
+                location = lineString(LOCATION.length(), length);
+            } else if (startsWithIgnoreCase(length, RETRY_AFTER)) {
+                retryAfter = lineString(RETRY_AFTER.length(), length);
+            } else if (startsWithIgnoreCase(length, CONNECTION)) {
+                final String connection =
+                        lineString(CONNECTION.length(), length).toLowerCase(Locale.US);
+                if (connection.contains("close")) {
+                    keepAlive = false;
+                } else if (connection.contains("keep-alive")) {
+                    keepAlive = true;
+                }
+            } else if (startsWithIgnoreCase(length, TRANSFER_ENCODING)) {
+                chunked = lineString(TRANSFER_ENCODING.length(), length)
+                        .toLowerCase(Locale.US).contains("chunked");
+            } else if (startsWithIgnoreCase(length, SET_COOKIE)) {
+                // Only the stored login replay has a use for cookies.
+                if (setCookies.isEmpty()) setCookies = new ArrayList<>();
+                setCookies.add(lineString(SET_COOKIE.length(), length));
+            }
+        }
+        return new Response(code, location, contentLength, retryAfter, chunked, keepAlive,
+                setCookies);
+    }
+
+    /** Reads a line into mLine, without its line terminator, and returns its length. */
+    private int readLineBytes() throws IOException {
+        int length = 0;
+        int c;
+        while ((c = mIn.read()) != '\n') {
+            if (c == -1) throw new EOFException("Connection closed mid-response");
+            if (c == '\r') continue;
+            if (length == mLine.length) throw new ProtocolException("Line too long");
+            mLine[length++] = (byte) c;
+        }
+        return length;
+    }
+
+    private String readLine() throws IOException {
+        return lineString(0, readLineBytes());
+    }
+
+    private boolean startsWithIgnoreCase(int length, String prefix) {
+        if (length < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            final char c = (char) (mLine[i] & 0xff);
+            if (Character.toLowerCase(c) != Character.toLowerCase(prefix.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /** Returns mLine[start, end) with surrounding whitespace removed. */
+    private String lineString(int start, int end) {
+        while (start < end && isWhitespace(mLine[start])) start++;
+        while (end > start && isWhitespace(mLine[end - 1])) end--;
+        return new String(mLine, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /** Parses a Content-Length value in mLine[start, end), or returns -1 if it is invalid. */
+    private long parseContentLength(int start, int end) {
+        while (start < end && isWhitespace(mLine[start])) start++;
+        while (end > start && isWhitespace(mLine[end - 1])) end--;
+        if (start == end || end - start > 18) return -1;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (mLine[i] < '0' || mLine[i] > '9') return -1;
+            value = value * 10 + (mLine[i] - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Idle keep-alive connections to probe servers on one Network, so that repeated probes and
+ * portal rechecks skip the TCP and TLS handshakes.
+ *
+ * Connections are reused most recently idle first, and are dropped once they have been idle for
+ * {@link #KEEP_ALIVE_MS}, or if the server has closed them in the meantime.
+ *
+ * {@hide}
+ */
+public class ProbeConnectionPool {
+    // Most servers drop idle connections within a few minutes anyway.
+    private static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+    // The HTTP and HTTPS probes, or a handful of endpoints, each need one connection per route.
+    private static final int MAX_IDLE_PER_ROUTE = 2;
+
+    private final HashMap<String, ArrayDeque<ProbeConnection>> mIdle = new HashMap<>();
+    private boolean mClosed;
+    private int mReuseCount;
+    // Bumped by evictAll(), so that connections handed out before it are not taken back.
+    private int mGeneration;
+
+    /**
+     * Returns a healthy idle connection that can serve {@code url}, or null if there is none.
+     * The caller owns the returned connection.
+     */
+    public ProbeConnection take(URL url) {
+        final String route = ProbeConnection.routeOf(url);
+        while (true) {
+            final ProbeConnection connection;
+            synchronized (this) {
+                final ArrayDeque<ProbeConnection> idle = mIdle.get(route);
+                if (idle == null || idle.isEmpty()) return null;
+                connection = idle.pollFirst();
+            }
+            // Check outside the lock, since this reads from the socket.
+            if (!isExpired(connection, SystemClock.elapsedRealtime())
+                    && connection.isHealthy()) {
+                synchronized (this) {
+                    mReuseCount++;
+                    connection.setPoolGeneration(mGeneration);
+                }
+                return connection;
+            }
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Adds a connection whose exchange has finished. Closes it if the pool has no room, or if it
+     * was opened or taken before the last {@link #evictAll}.
+     */
+    public void put(ProbeConnection connection) {
+        final List<ProbeConnection> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (mClosed || connection.getPoolGeneration() != mGeneration) {
+                evicted.add(connection);
+            } else {
+                ArrayDeque<ProbeConnection> idle = mIdle.get(connection.getRoute());
+                if (idle == null) {
+                    idle = new ArrayDeque<>();
+                    mIdle.put(connection.getRoute(), idle);
+                }
+                idle.addFirst(connection);
+                while (idle.size() > MAX_IDLE_PER_ROUTE) evicted.add(idle.pollLast());
+            }
+        }
+        for (ProbeConnection c : evicted) closeQuietly(c);
+    }
+
+    /**
+     * Closes all idle connections, and any connection in use now when it is put back. Later
+     * connections are pooled as usual.
+     */
+    public void evictAll() {
+        evict(false /* closing */);
+    }
+
+    /** Closes all idle connections, and any connection put back from now on. */
+    public void close() {
+        evict(true /* closing */);
+    }
+
+    /** The generation to record on a connection opened now, for {@link #put}. */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    private void evict(boolean closing) {
+        final List<ProbeConnection> idle = new ArrayList<>();
+        synchronized (this) {
+            if (closing) mClosed = true;
+            mGeneration++;
+            for (ArrayDeque<ProbeConnection> connections : mIdle.values()) {
+                idle.addAll(connections);
+            }
+            mIdle.clear();
+        }
+        for (ProbeConnection c : idle) closeQuietly(c);
+    }
+
+    /** Number of connections handed out for reuse so far. */
+    public synchronized int getReuseCount() {
+        return mReuseCount;
+    }
+
+    private static boolean isExpired(ProbeConnection connection, long now) {
+        return now - connection.getIdleSinceMs() > KEEP_ALIVE_MS;
+    }
+
+    private static void closeQuietly(ProbeConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.net.Network;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.net.TrafficStats;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens probe connections on a specific Network, racing the server's addresses against each
+ * other in the style of RFC 6555 ("Happy Eyeballs").
+ *
+ * Addresses are tried alternately by family, starting with the family DNS returned first. A new
+ * attempt starts every {@link #CONNECTION_ATTEMPT_DELAY_MS}, or as soon as a pending attempt
+ * fails, without waiting for earlier attempts to time out. The first connection to complete is
+ * used and the others are closed. On a network with a broken IPv6 path this finds the IPv4
+ * address a quarter of a second in, instead of after a full socket timeout.
+ *
+ * Connections handed back with {@link #recycle} are kept alive in a {@link ProbeConnectionPool}
+ * and reused by later probes on the same network, but only if they got the answer of a network
+ * with working Internet access: a connection that a portal intercepted would keep reaching the
+ * portal even once it lets traffic through. Callers flush the pool with {@link #evictAll}
+ * whenever the network may have started or stopped intercepting traffic.
+ *
+ * TLS sessions are cached across networks and reboots, so that a new HTTPS connection to a known
+ * server can resume its session.
+ *
+ * {@hide}
+ */
+public class ProbeConnector {
+    private static final String TAG = ProbeConnector.class.getSimpleName();
+
+    // Delay between starting connection attempts, as recommended by RFC 8305.
+    private static final int CONNECTION_ATTEMPT_DELAY_MS = 250;
+    private static final String SSL_SESSION_CACHE_DIR = "netmon_ssl_sessions";
+
+    private static SSLSocketFactory sSslSocketFactory;
+
+    private final Network mNetwork;
+    private final ProbeConnectionPool mPool = new ProbeConnectionPool();
+
+    public ProbeConnector(Network network) {
+        mNetwork = network;
+    }
+
+    /**
+     * Returns an idle connection to {@code url}'s host, or connects to it using the
+     * already-resolved {@code addresses} and performs the TLS handshake if {@code url} is HTTPS.
+     * Callers should hand the connection back with {@link #recycle} once done with it.
+     *
+     * @param timeoutMs connect timeout for the whole race, and read timeout for the connection.
+     */
+    public ProbeConnection open(URL url, InetAddress[] addresses, int timeoutMs)
+            throws IOException {
+        final ProbeConnection pooled = mPool.take(url);
+        if (pooled != null) {
+            try {
+                pooled.reuseFor(url, timeoutMs);
+                return pooled;
+            } catch (IOException e) {
+                pooled.close();
+            }
+        }
+        return openNew(url, addresses, timeoutMs);
+    }
+
+    /** As {@link #open}, but never reuses an idle connection. */
+    public ProbeConnection openNew(URL url, InetAddress[] addresses, int timeoutMs)
+            throws IOException {
+        final int generation = mPool.getGeneration();
+        final int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+        Socket socket = connect(addresses, port, timeoutMs);
+        try {
+            socket.setSoTimeout(timeoutMs);
+            if ("https".equals(url.getProtocol())) {
+                socket = startTls(socket, url.getHost(), port);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        final ProbeConnection connection = new ProbeConnection(socket, url);
+        connection.setPoolGeneration(generation);
+        return connection;
+    }
+
+    /**
+     * Keeps {@code connection} alive for reuse if it validated the network, its exchange finished
+     * cleanly and the server allows it, and closes it otherwise.
+     *
+     * @param validated whether the response was the one expected of a network with working
+     *         Internet access. Any other answer may have come from a portal.
+     */
+    public void recycle(ProbeConnection connection, boolean validated) {
+        if (validated && connection.finishExchange()) {
+            mPool.put(connection);
+            return;
+        }
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Number of probes that reused an idle connection. */
+    public int getReuseCount() {
+        return mPool.getReuseCount();
+    }
+
+    /**
+     * Closes all idle connections, and keeps none of those in use now. Called when a portal may
+     * have appeared or let the device through.
+     */
+    public void evictAll() {
+        mPool.evictAll();
+    }
+
+    /** Closes all idle connections. Called when the network disconnects. */
+    public void close() {
+        mPool.close();
+    }
+
+    /**
+     * Races TCP connections to {@code port} on {@code addresses}.
+     *
+     * @return the first socket to connect, in blocking mode.
+     * @throws SocketTimeoutException if no connection completed within {@code timeoutMs}.
+     * @throws InterruptedIOException if the calling thread was interrupted.
+     */
+    public Socket connect(InetAddress[] addresses, int port, int timeoutMs) throws IOException {
+        final List<InetAddress> order = interleave(addresses);
+        final List<SocketChannel> pending = new ArrayList<>();
+        final long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        long nextAttemptTime = 0;
+        int next = 0;
+        IOException lastError = null;
+        SocketChannel winner = null;
+
+        final Selector selector = Selector.open();
+        try {
+            while (winner == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Connection race interrupted");
+                }
+                final long now = SystemClock.elapsedRealtime();
+                if (next < order.size() && (now >= nextAttemptTime || pending.isEmpty())) {
+                    final SocketChannel channel = SocketChannel.open();
+                    try {
+                        mNetwork.bindSocket(channel.socket());
+                        TrafficStats.tagSocket(channel.socket());
+                        channel.configureBlocking(false);
+                        if (channel.connect(new InetSocketAddress(order.get(next), port))) {
+                            winner = channel;
+                        } else {
+                            channel.register(selector, SelectionKey.OP_CONNECT);
+                            pending.add(channel);
+                        }
+                        nextAttemptTime = now + CONNECTION_ATTEMPT_DELAY_MS;
+                    } catch (IOException e) {
+                        // Failed immediately, e.g. no route. Try the next address right away.
+                        lastError = e;
+                        channel.close();
+                    }
+                    next++;
+                    continue;
+                }
+                if (pending.isEmpty()) {
+                    throw (lastError != null) ? lastError
+                            : new ConnectException("No addresses to connect to");
+                }
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Connect timed out after " + timeoutMs + "ms");
+                }
+                long waitMs = deadline - now;
+                if (next < order.size()) waitMs = Math.min(waitMs, nextAttemptTime - now);
+                selector.select(Math.max(1, waitMs));
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    final SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            winner = channel;
+                            break;
+                        }
+                    } catch (IOException e) {
+                        lastError = e;
+                        key.cancel();
+                        pending.remove(channel);
+                        channel.close();
+                        nextAttemptTime = 0;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            // Closing the selector deregisters the winner so it can go back to blocking mode.
+            selector.close();
+            for (SocketChannel channel : pending) {
+                if (channel != winner) channel.close();
+            }
+        }
+        winner.configureBlocking(true);
+        return winner.socket();
+    }
+
+    private static synchronized SSLSocketFactory getSslSocketFactory() {
+        if (sSslSocketFactory == null) {
+            SSLSessionCache sessionCache = null;
+            try {
+                sessionCache = new SSLSessionCache(
+                        new File(Environment.getDataSystemDirectory(), SSL_SESSION_CACHE_DIR));
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot create TLS session cache, sessions will not persist", e);
+            }
+            // The handshake is bounded by the socket read timeout set in open().
+            sSslSocketFactory = SSLCertificateSocketFactory.getDefault(
+                    0 /* handshakeTimeoutMillis */, sessionCache);
+        }
+        return sSslSocketFactory;
+    }
+
+    private static Socket startTls(Socket socket, String host, int port) throws IOException {
+        // Creating the socket with the host and port lets the factory resume a cached session.
+        final SSLSocket sslSocket = (SSLSocket) getSslSocketFactory()
+                .createSocket(socket, host, port, true /* autoClose */);
+        sslSocket.startHandshake();
+        if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host,
+                sslSocket.getSession())) {
+            sslSocket.close();
+            throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+        }
+        return sslSocket;
+    }
+
+    /**
+     * Orders addresses so that families alternate, starting with the family of the first address.
+     */
+    private static List<InetAddress> interleave(InetAddress[] addresses) {
+        final List<InetAddress> first = new ArrayList<>();
+        final List<InetAddress> second = new ArrayList<>();
+        final boolean firstIsV6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        final List<InetAddress> order = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) order.add(first.get(i));
+            if (i < second.size()) order.add(second.get(i));
+        }
+        return order;
+    }
+}
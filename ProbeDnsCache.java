@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.net.Network;
+import android.os.SystemClock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+
+/**
+ * Caches the results of DNS lookups made on one Network by NetworkMonitor, so that the
+ * validation probes, portal rechecks and the stored login replay share a single resolution.
+ *
+ * The platform resolver does not expose record TTLs, so entries live for a fixed time that is
+ * no longer than the TTLs probe servers typically use. Failed lookups are not cached.
+ *
+ * A portal may answer with its own address until the device signs in, so NetworkMonitor clears
+ * the cache whenever it finds a portal, and whenever the network may have let the device through.
+ *
+ * {@hide}
+ */
+public class ProbeDnsCache {
+    // connectivitycheck.gstatic.com is served with a 5 minute TTL.
+    private static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+
+    private static final class Entry {
+        final InetAddress[] addresses;
+        final long expiry;
+
+        Entry(InetAddress[] addresses, long expiry) {
+            this.addresses = addresses;
+            this.expiry = expiry;
+        }
+    }
+
+    private final Network mNetwork;
+    private final long mTtlMs;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private int mHits;
+    private int mMisses;
+
+    public ProbeDnsCache(Network network) {
+        this(network, DEFAULT_TTL_MS);
+    }
+
+    public ProbeDnsCache(Network network, long ttlMs) {
+        mNetwork = network;
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Returns the cached addresses for {@code host}, or null if there are none or they have
+     * expired. Counts a hit or a miss.
+     */
+    public synchronized InetAddress[] getCached(String host) {
+        final Entry entry = mEntries.get(host);
+        if (entry != null && entry.expiry > SystemClock.elapsedRealtime()) {
+            mHits++;
+            return entry.addresses;
+        }
+        mEntries.remove(host);
+        mMisses++;
+        return null;
+    }
+
+    /** Resolves {@code host} on the network, bypassing and then refreshing the cache. */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        final InetAddress[] addresses = mNetwork.getAllByName(host);
+        synchronized (this) {
+            mEntries.put(host, new Entry(addresses, SystemClock.elapsedRealtime() + mTtlMs));
+        }
+        return addresses;
+    }
+
+    /** Returns the cached addresses for {@code host}, resolving it if necessary. */
+    public InetAddress[] lookup(String host) throws UnknownHostException {
+        final InetAddress[] addresses = getCached(host);
+        return (addresses != null) ? addresses : resolve(host);
+    }
+
+    public synchronized void invalidate(String host) {
+        mEntries.remove(host);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A server that NetworkMonitor can probe to validate a network, along with the response it is
+ * expected to give and statistics on how it has performed on this network.
+ *
+ * An endpoint expects either an HTTP 204, or a 200 whose body has a known SHA-256 hash. Any other
+ * 2xx or 3xx response means something between us and the server, typically a captive portal,
+ * answered instead.
+ *
+ * Endpoints are configured as a comma-separated list, in order of preference. Each entry is a
+ * URL, optionally followed by "|" and the hex SHA-256 of the expected body:
+ *
+ *   http://a.example/generate_204,http://b.example/ok.txt|9f86d081884c7d65...
+ *
+ * {@hide}
+ */
+public class ProbeEndpoint {
+    private static final String TAG = ProbeEndpoint.class.getSimpleName();
+
+    // Weight of each new sample in the smoothed latency.
+    private static final double LATENCY_GAIN = 1.0 / 4;
+
+    public final URL url;
+    // Lower-case hex SHA-256 of the expected body, or null to expect a 204.
+    public final String bodyHash;
+    // Position in the configured list. Breaks ties when ranking.
+    private final int mIndex;
+
+    private long mSmoothedLatencyMs = -1;
+    private int mConsecutiveLosses;
+
+    public ProbeEndpoint(URL url, String bodyHash, int index) {
+        this.url = url;
+        this.bodyHash = (bodyHash != null) ? bodyHash.toLowerCase(Locale.US) : null;
+        mIndex = index;
+    }
+
+    /** Parses a configured endpoint list, skipping malformed entries. */
+    public static List<ProbeEndpoint> parseList(String spec) {
+        final List<ProbeEndpoint> endpoints = new ArrayList<>();
+        if (TextUtils.isEmpty(spec)) return endpoints;
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            final int bar = entry.indexOf('|');
+            final String url = (bar >= 0) ? entry.substring(0, bar).trim() : entry;
+            final String hash = (bar >= 0) ? entry.substring(bar + 1).trim() : null;
+            if (hash != null && !hash.matches("[0-9a-fA-F]{64}")) {
+                Log.w(TAG, "Ignoring endpoint with bad body hash: " + entry);
+                continue;
+            }
+            try {
+                endpoints.add(new ProbeEndpoint(new URL(url), hash, endpoints.size()));
+            } catch (MalformedURLException e) {
+                Log.w(TAG, "Ignoring malformed endpoint: " + entry);
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * Returns a copy of {@code endpoints} with the best performers first: endpoints that have
+     * kept losing go last, and the rest are ordered by smoothed latency, then configured order.
+     */
+    public static List<ProbeEndpoint> rank(List<ProbeEndpoint> endpoints) {
+        final List<ProbeEndpoint> ranked = new ArrayList<>(endpoints);
+        Collections.sort(ranked, new Comparator<ProbeEndpoint>() {
+            @Override
+            public int compare(ProbeEndpoint a, ProbeEndpoint b) {
+                final int lossesA = a.getConsecutiveLosses();
+                final int lossesB = b.getConsecutiveLosses();
+                if (lossesA != lossesB) return Integer.compare(lossesA, lossesB);
+                // Endpoints without samples yet get a chance ahead of ones known to be slow.
+                final long latencyA = Math.max(0, a.getSmoothedLatencyMs());
+                final long latencyB = Math.max(0, b.getSmoothedLatencyMs());
+                if (latencyA != latencyB) return Long.compare(latencyA, latencyB);
+                return Integer.compare(a.mIndex, b.mIndex);
+            }
+        });
+        return ranked;
+    }
+
+    public boolean isHttps() {
+        return "https".equals(url.getProtocol());
+    }
+
+    /**
+     * Maps a response from this endpoint onto the codes NetworkMonitor understands: 204 if it is
+     * the expected response, the response code otherwise.
+     *
+     * @param body the response body, if it was read. Only needed when expecting a body hash.
+     */
+    public int interpret(int responseCode, byte[] body) {
+        if (bodyHash == null) return responseCode;
+        if (responseCode == 200 && body != null && bodyHash.equals(sha256(body))) return 204;
+        // Anything else, including a 204, is not what this server serves.
+        return (responseCode == 204) ? 200 : responseCode;
+    }
+
+    /** Records a probe that got the expected response in {@code latencyMs}. */
+    public synchronized void onWin(long latencyMs) {
+        mConsecutiveLosses = 0;
+        addLatency(latencyMs);
+    }
+
+    /**
+     * Records a probe that failed, or that was still running after {@code elapsedMs} when
+     * another endpoint decided the evaluation.
+     */
+    public synchronized void onLoss(long elapsedMs) {
+        mConsecutiveLosses++;
+        // The real latency is at least this long.
+        addLatency(elapsedMs);
+    }
+
+    public synchronized long getSmoothedLatencyMs() {
+        return mSmoothedLatencyMs;
+    }
+
+    public synchronized int getConsecutiveLosses() {
+        return mConsecutiveLosses;
+    }
+
+    private void addLatency(long latencyMs) {
+        if (mSmoothedLatencyMs < 0) {
+            mSmoothedLatencyMs = latencyMs;
+        } else {
+            mSmoothedLatencyMs += Math.round((latencyMs - mSmoothedLatencyMs) * LATENCY_GAIN);
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return url + ((bodyHash != null) ? "|sha256" : "") + " latency=" + mSmoothedLatencyMs +
+                "ms losses=" + mConsecutiveLosses;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool shared by the validation probes of all NetworkMonitors.
+ *
+ * Probes are submitted as {@link Probe}s, which can be cancelled while they are connecting or
+ * waiting for a response. Cancelling a probe disconnects its HttpURLConnection or closes its
+ * connection, which makes any blocked read fail immediately, and interrupts the thread running it.
+ *
+ * {@hide}
+ */
+public class ProbeExecutor {
+    private static final String TAG = ProbeExecutor.class.getSimpleName();
+
+    // Enough for the HTTP and HTTPS probes of a handful of networks evaluating at once. Further
+    // probes queue until a thread frees up.
+    private static final int MAX_PROBE_THREADS = 8;
+    // Idle probe threads exit after this long.
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    private static ProbeExecutor sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    /**
+     * A probe that can be cancelled while it runs. Subclasses implement {@link #runProbe()} and
+     * register the connection they open with one of the attach() methods.
+     */
+    public abstract static class Probe<T> implements Callable<T> {
+        private volatile HttpURLConnection mConnection;
+        private volatile Closeable mCloseable;
+        private volatile boolean mCancelled;
+        private volatile Future<T> mFuture;
+        private ProbeExecutor mExecutor;
+
+        protected abstract T runProbe();
+
+        @Override
+        public final T call() {
+            mExecutor.mInFlight.incrementAndGet();
+            try {
+                return runProbe();
+            } finally {
+                mConnection = null;
+                mCloseable = null;
+                mExecutor.mInFlight.decrementAndGet();
+            }
+        }
+
+        /**
+         * Registers the connection this probe is using. If the probe has already been
+         * cancelled, the connection is disconnected straight away.
+         */
+        public void attach(HttpURLConnection connection) {
+            mConnection = connection;
+            if (mCancelled) connection.disconnect();
+        }
+
+        /**
+         * Registers a connection opened without HttpURLConnection. If the probe has already been
+         * cancelled, the connection is closed straight away.
+         */
+        public void attach(Closeable closeable) {
+            mCloseable = closeable;
+            if (mCancelled) closeQuietly(closeable);
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public boolean isDone() {
+            final Future<T> future = mFuture;
+            return future != null && future.isDone();
+        }
+
+        /**
+         * Waits for the probe to finish.
+         *
+         * @return the probe's result, or null if it was cancelled or threw.
+         */
+        public T await() throws InterruptedException {
+            try {
+                return mFuture.get();
+            } catch (CancellationException | ExecutionException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Stops the probe. Does nothing if the probe has already completed.
+         *
+         * @return true if the probe was still queued or running.
+         */
+        public boolean cancel() {
+            final Future<T> future = mFuture;
+            if (future == null || future.isDone()) return false;
+            mCancelled = true;
+            final HttpURLConnection connection = mConnection;
+            if (connection != null) connection.disconnect();
+            final Closeable closeable = mCloseable;
+            if (closeable != null) closeQuietly(closeable);
+            return future.cancel(true /* mayInterruptIfRunning */);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static synchronized ProbeExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new ProbeExecutor();
+        }
+        return sInstance;
+    }
+
+    private ProbeExecutor() {
+        mExecutor = new ThreadPoolExecutor(MAX_PROBE_THREADS, MAX_PROBE_THREADS,
+                KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, TAG + "-" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public <T> Probe<T> submit(Probe<T> probe) {
+        probe.mExecutor = this;
+        probe.mFuture = mExecutor.submit(probe);
+        return probe;
+    }
+
+    /** Number of probes currently running. */
+    public int getInFlightCount() {
+        return mInFlight.get();
+    }
+
+    /** Number of probes waiting for a thread. */
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+}
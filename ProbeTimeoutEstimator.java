@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+/**
+ * Derives validation probe timeouts on one network from how long earlier probes took, the way
+ * TCP derives its retransmission timeout (RFC 6298).
+ *
+ * The estimator keeps a smoothed probe time and its mean deviation. The timeout is the smoothed
+ * time plus four deviations, clamped to [floor, ceiling]. Each probe that times out doubles the
+ * timeout, up to the ceiling, until a probe completes again. Timed-out probes are not used as
+ * samples, since their real duration is unknown. Until the first sample arrives the initial
+ * timeout is used.
+ *
+ * {@hide}
+ */
+public class ProbeTimeoutEstimator {
+    // Gains for the smoothed time and its deviation, from RFC 6298.
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+    // Cap on timeout doublings; the ceiling applies long before this.
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    private final int mInitialMs;
+    private final int mFloorMs;
+    private final int mCeilingMs;
+
+    private boolean mHasSample;
+    private double mSmoothedMs;
+    private double mDeviationMs;
+    private int mBackoffShift;
+
+    public ProbeTimeoutEstimator(int initialMs, int floorMs, int ceilingMs) {
+        if (floorMs <= 0 || ceilingMs < floorMs) {
+            throw new IllegalArgumentException(
+                    "Bad timeout bounds: floor=" + floorMs + " ceiling=" + ceilingMs);
+        }
+        mInitialMs = initialMs;
+        mFloorMs = floorMs;
+        mCeilingMs = ceilingMs;
+    }
+
+    /** Adds the duration of a probe that got a response. */
+    public synchronized void addSample(long durationMs) {
+        if (!mHasSample) {
+            mSmoothedMs = durationMs;
+            mDeviationMs = durationMs / 2.0;
+            mHasSample = true;
+        } else {
+            mDeviationMs = (1 - BETA) * mDeviationMs + BETA * Math.abs(mSmoothedMs - durationMs);
+            mSmoothedMs = (1 - ALPHA) * mSmoothedMs + ALPHA * durationMs;
+        }
+        mBackoffShift = 0;
+    }
+
+    /** Notes that a probe timed out. */
+    public synchronized void onTimeout() {
+        if (mBackoffShift < MAX_BACKOFF_SHIFT) mBackoffShift++;
+    }
+
+    public synchronized int getTimeoutMs() {
+        final long base = mHasSample
+                ? (long) Math.ceil(mSmoothedMs + K * mDeviationMs)
+                : mInitialMs;
+        return (int) Math.max(mFloorMs, Math.min(mCeilingMs, base << mBackoffShift));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "srtt=" + Math.round(mSmoothedMs) + "ms rttvar=" + Math.round(mDeviationMs) +
+                "ms timeout=" + getTimeoutMs() + "ms";
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Decides how long NetworkMonitor waits before probing a network again after a failed
+ * evaluation, or before rechecking a captive portal.
+ *
+ * Two strategies are available. {@link CappedExponential} doubles the delay on every attempt,
+ * which is what NetworkMonitor has always done. {@link DecorrelatedJitter} picks each delay at
+ * random between the base delay and three times the previous one, so that devices which lost
+ * connectivity at the same moment, e.g. when a venue's access point reboots, do not all probe
+ * again at the same moment. Either way, a Retry-After header on the last probe response is
+ * honored as a lower bound, and no delay exceeds the cap.
+ *
+ * {@hide}
+ */
+public abstract class ReevaluationBackoff {
+    public static final String STRATEGY_EXPONENTIAL = "exponential";
+    public static final String STRATEGY_DECORRELATED_JITTER = "decorrelated_jitter";
+
+    /** Source of wall clock time, used to interpret Retry-After dates. */
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    protected final int mBaseMs;
+    protected final int mCapMs;
+    private final Clock mClock;
+
+    /**
+     * Returns a policy using the strategy named {@code strategy}, one of the STRATEGY_*
+     * constants. Unknown names get decorrelated jitter.
+     */
+    public static ReevaluationBackoff create(String strategy, int baseMs, int capMs) {
+        if (STRATEGY_EXPONENTIAL.equals(strategy)) {
+            return new CappedExponential(baseMs, capMs, SYSTEM_CLOCK);
+        }
+        return new DecorrelatedJitter(baseMs, capMs, SYSTEM_CLOCK, new Random());
+    }
+
+    protected ReevaluationBackoff(int baseMs, int capMs, Clock clock) {
+        if (baseMs <= 0 || capMs < baseMs) {
+            throw new IllegalArgumentException(
+                    "Bad backoff bounds: base=" + baseMs + " cap=" + capMs);
+        }
+        mBaseMs = baseMs;
+        mCapMs = capMs;
+        mClock = clock;
+    }
+
+    /** Returns the strategy's next delay and advances it. Never more than the cap. */
+    protected abstract int nextStrategyDelayMs();
+
+    /** Starts over from the base delay. */
+    public abstract void reset();
+
+    /**
+     * Returns how long to wait before the next attempt, and advances the strategy.
+     *
+     * @param retryAfter the Retry-After header of the last probe response, or null.
+     */
+    public int nextDelayMs(String retryAfter) {
+        final int delayMs = nextStrategyDelayMs();
+        final long retryAfterMs = parseRetryAfterMs(retryAfter);
+        if (retryAfterMs <= delayMs) return delayMs;
+        return (int) Math.min(mCapMs, retryAfterMs);
+    }
+
+    /**
+     * Converts a Retry-After value, either a number of seconds or an HTTP date, to a delay from
+     * now. Returns -1 if there is no usable value.
+     */
+    long parseRetryAfterMs(String retryAfter) {
+        if (retryAfter == null) return -1;
+        final String value = retryAfter.trim();
+        if (value.isEmpty()) return -1;
+        if (Character.isDigit(value.charAt(0))) {
+            try {
+                return Math.min(Long.parseLong(value), Integer.MAX_VALUE / 1000) * 1000;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        final SimpleDateFormat format =
+                new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            final Date date = format.parse(value);
+            return Math.max(0, date.getTime() - mClock.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /** Doubles the delay on every attempt, from the base delay up to the cap. */
+    public static class CappedExponential extends ReevaluationBackoff {
+        private int mNextMs;
+
+        public CappedExponential(int baseMs, int capMs, Clock clock) {
+            super(baseMs, capMs, clock);
+            mNextMs = baseMs;
+        }
+
+        @Override
+        protected int nextStrategyDelayMs() {
+            final int delayMs = mNextMs;
+            mNextMs = (int) Math.min(mCapMs, 2L * mNextMs);
+            return delayMs;
+        }
+
+        @Override
+        public void reset() {
+            mNextMs = mBaseMs;
+        }
+
+        @Override
+        public String toString() {
+            return STRATEGY_EXPONENTIAL;
+        }
+    }
+
+    /**
+     * Waits about the base delay first, give or take FIRST_DELAY_JITTER, then picks each delay
+     * uniformly between the base delay and three times the previous delay, capped. Delays grow
+     * about as fast as with exponential backoff, but devices that start backing off together,
+     * e.g. because the same access point went away, never all retry at the same moment.
+     */
+    public static class DecorrelatedJitter extends ReevaluationBackoff {
+        // The first delay is drawn within this fraction either side of the base delay, so that
+        // it still averages the base delay callers have always had.
+        static final double FIRST_DELAY_JITTER = 0.2;
+
+        private final Random mRandom;
+        // 0 until the first delay has been handed out.
+        private int mLastMs;
+
+        public DecorrelatedJitter(int baseMs, int capMs, Clock clock, Random random) {
+            super(baseMs, capMs, clock);
+            mRandom = random;
+        }
+
+        @Override
+        protected int nextStrategyDelayMs() {
+            if (mLastMs == 0) {
+                final double factor = 1 + FIRST_DELAY_JITTER * (2 * mRandom.nextDouble() - 1);
+                mLastMs = (int) Math.max(1, Math.min(mCapMs, Math.round(mBaseMs * factor)));
+                return mLastMs;
+            }
+            final long upperMs = Math.min(mCapMs, 3L * mLastMs);
+            final long spanMs = upperMs - mBaseMs;
+            final long jitterMs = (spanMs > 0) ? (long) (mRandom.nextDouble() * spanMs) : 0;
+            mLastMs = (int) (mBaseMs + jitterMs);
+            return mLastMs;
+        }
+
+        @Override
+        public void reset() {
+            mLastMs = 0;
+        }
+
+        @Override
+        public String toString() {
+            return STRATEGY_DECORRELATED_JITTER;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * How replaying each stored login has gone, shared by every NetworkMonitor, and a circuit
+ * breaker over it.
+ *
+ * A stored login that has gone stale costs every reevaluation a replay and a second probe before
+ * the user is asked to sign in anyway. After {@link #FAILURE_THRESHOLD} replays in a row that
+ * did not get the network validated, the login is not replayed for a cooling-off period, which
+ * starts at {@link #BASE_COOL_OFF_MS} and doubles with each further failure up to
+ * {@link #MAX_COOL_OFF_MS}. Once it is over, one replay is let through, and a success closes the
+ * breaker again.
+ *
+ * Kept in memory only: a reboot gives every login another chance.
+ *
+ * {@hide}
+ */
+public class ReplayStats {
+    private static final int MAX_ENTRIES = 64;
+    // Latencies kept per login for percentiles.
+    private static final int LATENCY_SAMPLES = 32;
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_COOL_OFF_MS = 10 * 60 * 1000L;
+    static final long MAX_COOL_OFF_MS = 4 * 60 * 60 * 1000L;
+
+    private static ReplayStats sInstance;
+
+    /** The record of one stored login. */
+    private static final class Entry {
+        int attempts;
+        int successes;
+        int failures;
+        int consecutiveFailures;
+        int skipped;
+        String lastError;
+        long lastFailureMs;
+        // Most recent latencies, used as a ring.
+        final long[] latenciesMs = new long[LATENCY_SAMPLES];
+        int latencyCount;
+
+        long coolOffMs() {
+            final int doublings = Math.min(consecutiveFailures - FAILURE_THRESHOLD, 10);
+            return Math.min(BASE_COOL_OFF_MS << Math.max(doublings, 0), MAX_COOL_OFF_MS);
+        }
+
+        boolean isOpen(long now) {
+            return consecutiveFailures >= FAILURE_THRESHOLD && now - lastFailureMs < coolOffMs();
+        }
+
+        static long percentile(long[] sorted, int p) {
+            return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder s = new StringBuilder();
+            s.append("attempts=").append(attempts).append(" ok=").append(successes)
+                    .append(" failed=").append(failures).append(" in a row=")
+                    .append(consecutiveFailures).append(" skipped=").append(skipped);
+            final int n = Math.min(latencyCount, LATENCY_SAMPLES);
+            if (n > 0) {
+                final long[] sorted = Arrays.copyOf(latenciesMs, n);
+                Arrays.sort(sorted);
+                s.append(" p50=").append(percentile(sorted, 50)).append("ms p90=")
+                        .append(percentile(sorted, 90)).append("ms");
+            }
+            if (isOpen(SystemClock.elapsedRealtime())) {
+                s.append(" open for ").append(
+                        (lastFailureMs + coolOffMs() - SystemClock.elapsedRealtime()) / 1000)
+                        .append("s");
+            }
+            if (lastError != null) s.append(" last error: ").append(lastError);
+            return s.toString();
+        }
+    }
+
+    // Keyed by the name of the login, least recently updated first.
+    // See LoginProfileCache.Profile#name.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+
+    public static synchronized ReplayStats getInstance() {
+        if (sInstance == null) sInstance = new ReplayStats();
+        return sInstance;
+    }
+
+    /**
+     * Whether the login stored for {@code login} should not be replayed now, because its breaker
+     * is open. Counts the skip if so.
+     */
+    public synchronized boolean shouldSkip(String login) {
+        final Entry entry = mEntries.get(login);
+        if (entry == null || !entry.isOpen(SystemClock.elapsedRealtime())) return false;
+        entry.skipped++;
+        return true;
+    }
+
+    /**
+     * Records how a replay went.
+     *
+     * @param validated whether the network validated after the replay, which is what counts:
+     *         a portal may accept a stale login and still keep the device out.
+     */
+    public synchronized void record(String login, PortalLoginReplayer.Result result,
+            boolean validated) {
+        Entry entry = mEntries.remove(login);
+        if (entry == null) entry = new Entry();
+        // Re-inserted so that the map stays ordered by update time.
+        mEntries.put(login, entry);
+        trim();
+        entry.attempts++;
+        entry.latenciesMs[entry.latencyCount++ % LATENCY_SAMPLES] = result.latencyMs;
+        if (validated) {
+            entry.successes++;
+            entry.consecutiveFailures = 0;
+            return;
+        }
+        entry.failures++;
+        entry.consecutiveFailures++;
+        entry.lastFailureMs = SystemClock.elapsedRealtime();
+        entry.lastError = (result.error != null) ? result.error : result.toString();
+    }
+
+    /** Returns a one-line summary for {@code login}, for validation logs. */
+    public synchronized String describe(String login) {
+        final Entry entry = mEntries.get(login);
+        return login + ": " + ((entry != null) ? entry.toString() : "no replays");
+    }
+
+    private void trim() {
+        for (Iterator<String> it = mEntries.keySet().iterator();
+                it.hasNext() && mEntries.size() > MAX_ENTRIES; ) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder s = new StringBuilder();
+        for (String login : mEntries.keySet()) {
+            if (s.length() > 0) s.append("; ");
+            s.append(describe(login));
+        }
+        return s.toString();
+    }
+}
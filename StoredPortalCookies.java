@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * The cookies captive portals have set, as stored by the captive portal app. The app sends them
+ * with the pages it loads, and the login replay loads them into its {@link PortalCookieJar} and
+ * saves what the portal set back, so that a session cookie from either one lets the device
+ * through next time.
+ *
+ * The app bounds the store's size and drops expired cookies. Nothing is cached here: the store
+ * is read once per replay.
+ *
+ * {@hide}
+ */
+public class StoredPortalCookies {
+    private static final String TAG = StoredPortalCookies.class.getSimpleName();
+
+    // Must match the captive portal app's provider.
+    private static final Uri COOKIES_URI =
+            Uri.parse("content://com.android.captiveportallogin/cookies");
+    private static final String COLUMN_DOMAIN = "domain";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_VALUE = "value";
+    private static final String COLUMN_INCLUDE_SUBDOMAINS = "include_subdomains";
+    private static final String COLUMN_SECURE = "secure";
+    private static final String COLUMN_EXPIRES = "expires";
+    private static final String[] PROJECTION = { COLUMN_DOMAIN, COLUMN_NAME, COLUMN_VALUE,
+            COLUMN_INCLUDE_SUBDOMAINS, COLUMN_SECURE, COLUMN_EXPIRES };
+
+    private final ContentResolver mResolver;
+
+    public StoredPortalCookies(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /** Returns a jar holding the stored cookies. Empty if the app's store is unavailable. */
+    public PortalCookieJar load() {
+        final PortalCookieJar jar = new PortalCookieJar();
+        final Cursor cursor;
+        try {
+            cursor = mResolver.query(COOKIES_URI, PROJECTION, null, null, null);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not query stored cookies: " + e);
+            return jar;
+        }
+        if (cursor == null) return jar;
+        try {
+            final int domainColumn = cursor.getColumnIndexOrThrow(COLUMN_DOMAIN);
+            final int nameColumn = cursor.getColumnIndexOrThrow(COLUMN_NAME);
+            final int valueColumn = cursor.getColumnIndexOrThrow(COLUMN_VALUE);
+            final int includeSubdomainsColumn =
+                    cursor.getColumnIndexOrThrow(COLUMN_INCLUDE_SUBDOMAINS);
+            final int expiresColumn = cursor.getColumnIndexOrThrow(COLUMN_EXPIRES);
+            // Older versions of the app do not record Secure.
+            final int secureColumn = cursor.getColumnIndex(COLUMN_SECURE);
+            while (cursor.moveToNext()) {
+                final String domain = cursor.getString(domainColumn);
+                final String name = cursor.getString(nameColumn);
+                final String value = cursor.getString(valueColumn);
+                if (domain == null || name == null || value == null) continue;
+                final boolean includeSubdomains = cursor.getInt(includeSubdomainsColumn) != 0;
+                // Older versions of the app store cookies for a whole public suffix.
+                if (includeSubdomains && PortalCookieJar.isPublicSuffix(domain)) continue;
+                jar.add(new PortalCookieJar.Cookie(name, value, domain, includeSubdomains,
+                        secureColumn >= 0 && cursor.getInt(secureColumn) != 0,
+                        cursor.getLong(expiresColumn)));
+            }
+        } catch (IllegalArgumentException e) {
+            // An older version of the app, which does not store cookies.
+            Log.w(TAG, "Unexpected stored cookie columns: " + e);
+        } finally {
+            cursor.close();
+        }
+        jar.markSaved();
+        return jar;
+    }
+
+    /** Stores the cookies set in {@code jar} since it was loaded, if any. */
+    public void save(PortalCookieJar jar) {
+        final List<PortalCookieJar.Cookie> cookies = jar.getUnsaved();
+        if (cookies.isEmpty()) return;
+        final ContentValues[] rows = new ContentValues[cookies.size()];
+        for (int i = 0; i < rows.length; i++) {
+            final PortalCookieJar.Cookie cookie = cookies.get(i);
+            rows[i] = new ContentValues();
+            rows[i].put(COLUMN_DOMAIN, cookie.domain);
+            rows[i].put(COLUMN_NAME, cookie.name);
+            rows[i].put(COLUMN_VALUE, cookie.value);
+            rows[i].put(COLUMN_INCLUDE_SUBDOMAINS, cookie.includeSubdomains ? 1 : 0);
+            rows[i].put(COLUMN_SECURE, cookie.secure ? 1 : 0);
+            rows[i].put(COLUMN_EXPIRES, cookie.expiresAtMs);
+        }
+        try {
+            mResolver.bulkInsert(COOKIES_URI, rows);
+            jar.markSaved();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not store cookies: " + e);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ScriptInjectingInputStreamTest {
+    private static final String SCRIPT = "<script>x</script>";
+
+    private static int find(String page, boolean complete) {
+        final byte[] b = page.getBytes(StandardCharsets.US_ASCII);
+        return ScriptInjectingInputStream.findInsertionPoint(b, b.length, complete);
+    }
+
+    /** Hands out at most one byte per read, as a slow network might. */
+    private static final class TrickleInputStream extends InputStream {
+        private final InputStream mIn;
+
+        TrickleInputStream(byte[] b) {
+            mIn = new ByteArrayInputStream(b);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return mIn.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static final class Result implements ScriptInjectingInputStream.Listener {
+        Map<String, String> hiddenFields;
+        String page;
+
+        @Override
+        public void onFinished(Map<String, String> fields) {
+            hiddenFields = fields;
+        }
+    }
+
+    private static Result inject(InputStream in) throws IOException {
+        final Result result = new Result();
+        final InputStream page = new ScriptInjectingInputStream(in,
+                SCRIPT.getBytes(StandardCharsets.US_ASCII), result);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[7];
+        int n;
+        while ((n = page.read(buffer, 0, buffer.length)) != -1) out.write(buffer, 0, n);
+        result.page = out.toString("UTF-8");
+        return result;
+    }
+
+    @Test
+    public void testAfterHead() {
+        final String page = "<html><head><title>t</title></head><body></body></html>";
+        assertEquals(page.indexOf("<title>"), find(page, true));
+    }
+
+    @Test
+    public void testHeadWithAttributes() {
+        final String page = "<HTML><HEAD lang=\"en\"><title>t</title>";
+        assertEquals(page.indexOf("<title>"), find(page, true));
+    }
+
+    @Test
+    public void testHeadInCommentIgnored() {
+        final String page = "<!-- <head> --><html><head><title>t</title>";
+        assertEquals(page.indexOf("<title>"), find(page, true));
+    }
+
+    @Test
+    public void testUnterminatedComment() {
+        assertEquals(-1, find("<html><!-- <head>", false));
+        assertEquals("<html>".length(), find("<html><!-- <head>", true));
+    }
+
+    @Test
+    public void testHeaderIsNotHead() {
+        final String page = "<html><body><header>h</header></body></html>";
+        // Before <body>, after <html>.
+        assertEquals("<html>".length(), find(page, true));
+        final String withHead = "<html><header>h</header><head><title>";
+        assertEquals(withHead.indexOf("<title>"), find(withHead, true));
+    }
+
+    @Test
+    public void testTagSplitAcrossReads() {
+        // Not enough to tell "<hea" from "<header>" yet.
+        assertEquals(-1, find("<html><hea", false));
+        assertEquals(-1, find("<html><head", false));
+        assertEquals(-1, find("<html><head lang=en", false));
+        assertEquals("<html><head>".length(), find("<html><head>", false));
+    }
+
+    @Test
+    public void testNoHead() {
+        assertEquals("<html>".length(), find("<html><body>b</body></html>", true));
+        assertEquals("<p>".length(), find("<p><body>b</body>", true));
+        assertEquals(0, find("just text", true));
+        assertEquals(0, find("", true));
+    }
+
+    @Test
+    public void testScanLimit() throws IOException {
+        final StringBuilder page = new StringBuilder("<html>");
+        while (page.length() < ScriptInjectingInputStream.MAX_SCAN_BYTES) page.append('x');
+        page.append("<head><title>t</title>");
+        // The <head> past the limit is not waited for. The script goes after <html>.
+        final Result result = inject(new TrickleInputStream(
+                page.toString().getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("<html>" + SCRIPT, result.page.substring(0, 6 + SCRIPT.length()));
+        assertEquals(page.length() + SCRIPT.length(), result.page.length());
+    }
+
+    @Test
+    public void testStreamSplicesScriptAfterHead() throws IOException {
+        final String page = "<!doctype html><html><head><title>t</title></head></html>";
+        final Result result = inject(new TrickleInputStream(
+                page.getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(page.replace("<head>", "<head>" + SCRIPT), result.page);
+    }
+
+    @Test
+    public void testHiddenFieldsPickedUpAsPageStreams() throws IOException {
+        final StringBuilder page = new StringBuilder(
+                "<html><head><script>var s = '<input type=hidden name=no value=1>';</script>"
+                + "</head><body><!-- <input type=hidden name=commented value=1> -->"
+                + "<form><input TYPE=\"hidden\" name=\"csrf\" value=\"a&amp;b\">"
+                + "<input type='hidden' name='empty'>"
+                + "<input type=text name=user value=u>");
+        // Past the part of the page that is held back to place the script.
+        while (page.length() < 2 * ScriptInjectingInputStream.MAX_SCAN_BYTES) page.append(' ');
+        page.append("<input type=hidden name=late value=\"é\"></form></body></html>");
+        final Result result = inject(new TrickleInputStream(
+                page.toString().getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, result.hiddenFields.size());
+        assertEquals("a&b", result.hiddenFields.get("csrf"));
+        assertEquals("", result.hiddenFields.get("empty"));
+        assertEquals("é", result.hiddenFields.get("late"));
+        assertNull(result.hiddenFields.get("user"));
+    }
+}
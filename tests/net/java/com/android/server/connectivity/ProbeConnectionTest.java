@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ProbeConnectionTest {
+    private static final int TIMEOUT_MS = 5000;
+
+    /**
+     * A loopback HTTP server that answers the requests on its first connection with canned
+     * responses, in order, then closes the connection.
+     */
+    private static final class StubServer implements Closeable {
+        private final ServerSocket mServerSocket;
+        private final Thread mThread;
+        private final List<String> mRequestLines = new ArrayList<>();
+        private int mConnections;
+
+        StubServer(final String... responses) throws IOException {
+            mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            mThread = new Thread(() -> serve(responses));
+            mThread.start();
+        }
+
+        private void serve(String[] responses) {
+            try {
+                while (true) {
+                    try (Socket socket = mServerSocket.accept()) {
+                        synchronized (this) {
+                            if (mConnections++ > 0) continue;
+                        }
+                        final InputStream in = socket.getInputStream();
+                        final OutputStream out = socket.getOutputStream();
+                        for (String response : responses) {
+                            if (!readRequest(in)) break;
+                            out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                            out.flush();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Closed by the test.
+            }
+        }
+
+        /** Reads one request, skipping its body. Returns false if the client hung up. */
+        private boolean readRequest(InputStream in) throws IOException {
+            String line = readLine(in);
+            if (line == null) return false;
+            synchronized (this) {
+                mRequestLines.add(line);
+            }
+            int contentLength = 0;
+            while (!(line = readLine(in)).isEmpty()) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            for (int i = 0; i < contentLength; i++) in.read();
+            return true;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) return null;
+                if (c != '\r') line.write(c);
+            }
+            return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+
+        URL url(String path) throws IOException {
+            return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+        }
+
+        ProbeConnection connect(String path) throws IOException {
+            final Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                    mServerSocket.getLocalPort());
+            socket.setSoTimeout(TIMEOUT_MS);
+            return new ProbeConnection(socket, url(path));
+        }
+
+        synchronized List<String> getRequestLines() {
+            return new ArrayList<>(mRequestLines);
+        }
+
+        synchronized int getConnections() {
+            return mConnections;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private static String readBody(ProbeConnection connection) throws IOException {
+        return new String(connection.readBody(1024), StandardCharsets.ISO_8859_1);
+    }
+
+    private static ProbeConnection.Response getOnly(String response) throws IOException {
+        try (StubServer server = new StubServer(response);
+                ProbeConnection connection = server.connect("/generate_204")) {
+            return connection.get();
+        }
+    }
+
+    private static void assertBadResponse(String response) throws IOException {
+        try {
+            getOnly(response);
+            fail("Accepted " + response);
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void testStatusLine() throws IOException {
+        ProbeConnection.Response response = getOnly("HTTP/1.1 204 No Content\r\n\r\n");
+        assertEquals(204, response.code);
+        assertTrue(response.keepAlive);
+        assertFalse(response.hasBody());
+
+        // Only the version and code matter.
+        assertEquals(302, getOnly("HTTP/1.1 302\r\nContent-Length: 0\r\n\r\n").code);
+        assertEquals(511, getOnly("HTTP/1.1 511 Network Authentication Required\r\n"
+                + "Content-Length: 0\r\n\r\n").code);
+    }
+
+    @Test
+    public void testHttp10KeepAlive() throws IOException {
+        assertFalse(getOnly("HTTP/1.0 204 No Content\r\n\r\n").keepAlive);
+        assertTrue(getOnly("HTTP/1.0 204 No Content\r\nConnection: Keep-Alive\r\n\r\n")
+                .keepAlive);
+        assertFalse(getOnly("HTTP/1.1 204 No Content\r\nconnection: close\r\n\r\n").keepAlive);
+    }
+
+    @Test
+    public void testBadStatusLine() throws IOException {
+        assertBadResponse("ICY 200 OK\r\n\r\n");
+        assertBadResponse("HTTP/2 200 OK\r\n\r\n");
+        assertBadResponse("HTTP/1.1 2x4 No Content\r\n\r\n");
+        assertBadResponse("HTTP/1.1  204 No Content\r\n\r\n");
+        assertBadResponse("HTTP/1.1 20\r\n\r\n");
+    }
+
+    @Test
+    public void testHeaders() throws IOException {
+        final ProbeConnection.Response response = getOnly("HTTP/1.1 302 Found\r\n"
+                + "location: http://portal.example.com/login\r\n"
+                + "Retry-After: 120\r\n"
+                + "Set-Cookie: a=1; Path=/\r\n"
+                + "X-Ignored: yes\r\n"
+                + "SET-COOKIE: b=2\r\n"
+                + "Content-Length: 0\r\n\r\n");
+        assertEquals(302, response.code);
+        assertEquals("http://portal.example.com/login", response.location);
+        assertEquals("120", response.retryAfter);
+        assertEquals(Arrays.asList("a=1; Path=/", "b=2"), response.setCookies);
+        assertEquals(0, response.contentLength);
+
+        final ProbeConnection.Response bare = getOnly("HTTP/1.1 204 No Content\r\n\r\n");
+        assertNull(bare.location);
+        assertNull(bare.retryAfter);
+        assertEquals(-1, bare.contentLength);
+        assertTrue(bare.setCookies.isEmpty());
+    }
+
+    @Test
+    public void testContentLengthBody() throws IOException {
+        try (StubServer server = new StubServer(
+                "HTTP/1.1 200 OK\r\nContent-Length: 11\r\n\r\nhello world",
+                "HTTP/1.1 200 OK\r\nContent-Length: 11\r\n\r\nhello world");
+                ProbeConnection connection = server.connect("/")) {
+            ProbeConnection.Response response = connection.get();
+            assertEquals(11, response.contentLength);
+            assertFalse(response.chunked);
+            assertEquals("hello world", readBody(connection));
+            assertTrue(connection.finishExchange());
+
+            // Reading stops at maxBytes. The rest is skipped before the next request.
+            connection.get();
+            assertEquals("hello", new String(connection.readBody(5),
+                    StandardCharsets.ISO_8859_1));
+            assertTrue(connection.finishExchange());
+        }
+    }
+
+    @Test
+    public void testBodyCutShort() throws IOException {
+        try (StubServer server = new StubServer(
+                "HTTP/1.1 200 OK\r\nContent-Length: 100\r\nConnection: close\r\n\r\nshort");
+                ProbeConnection connection = server.connect("/")) {
+            connection.get();
+            try {
+                readBody(connection);
+                fail("Body shorter than its Content-Length was accepted");
+            } catch (IOException expected) {
+            }
+            assertFalse(connection.finishExchange());
+        }
+    }
+
+    @Test
+    public void testChunkedBody() throws IOException {
+        try (StubServer server = new StubServer(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + "5;name=value\r\nhello\r\n"
+                        + "6\r\n world\r\n"
+                        + "0\r\nX-Trailer: ignored\r\n\r\n",
+                "HTTP/1.1 204 No Content\r\n\r\n");
+                ProbeConnection connection = server.connect("/")) {
+            final ProbeConnection.Response response = connection.get();
+            assertTrue(response.chunked);
+            assertEquals(-1, response.contentLength);
+            assertEquals("hello world", readBody(connection));
+            assertTrue(connection.finishExchange());
+
+            // The trailers were consumed, so the next response starts at its status line.
+            assertEquals(204, connection.get().code);
+        }
+    }
+
+    @Test
+    public void testBadChunkSize() throws IOException {
+        try (StubServer server = new StubServer(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\nhello\r\n0\r\n\r\n");
+                ProbeConnection connection = server.connect("/")) {
+            connection.get();
+            try {
+                readBody(connection);
+                fail("Bad chunk size was accepted");
+            } catch (ProtocolException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testKeepAliveReuse() throws IOException {
+        try (StubServer server = new StubServer(
+                "HTTP/1.1 204 No Content\r\n\r\n",
+                "HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\nunread",
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n");
+                ProbeConnection connection = server.connect("/generate_204")) {
+            assertEquals(204, connection.get().code);
+            assertFalse(connection.isReused());
+            assertTrue(connection.finishExchange());
+
+            // The unread body is skipped.
+            assertEquals(6, connection.get().contentLength);
+            assertTrue(connection.isReused());
+            assertTrue(connection.finishExchange());
+
+            // The chunked body is skipped too, leaving the connection reusable.
+            assertTrue(connection.get().chunked);
+            assertTrue(connection.finishExchange());
+
+            assertEquals(1, server.getConnections());
+            assertEquals(Arrays.asList("GET /generate_204 HTTP/1.1", "GET /generate_204 HTTP/1.1",
+                    "GET /generate_204 HTTP/1.1"), server.getRequestLines());
+        }
+    }
+
+    @Test
+    public void testFinishBeforeNextRequest() throws IOException {
+        try (StubServer server = new StubServer("HTTP/1.1 204 No Content\r\n\r\n");
+                ProbeConnection connection = server.connect("/")) {
+            connection.get();
+            try {
+                connection.get();
+                fail("Sent a request before the previous exchange finished");
+            } catch (IllegalStateException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testNotReusable() throws IOException {
+        try (StubServer server = new StubServer(
+                "HTTP/1.1 204 No Content\r\nConnection: close\r\n\r\n");
+                ProbeConnection connection = server.connect("/")) {
+            connection.get();
+            assertFalse(connection.finishExchange());
+        }
+
+        // A body that runs until the server closes the connection cannot be skipped...
+        try (StubServer server = new StubServer("HTTP/1.1 200 OK\r\n\r\nto the end");
+                ProbeConnection connection = server.connect("/")) {
+            connection.get();
+            assertFalse(connection.finishExchange());
+        }
+
+        // ...nor can it be reused after the body is read.
+        try (StubServer server = new StubServer("HTTP/1.1 200 OK\r\n\r\nto the end");
+                ProbeConnection connection = server.connect("/")) {
+            connection.get();
+            assertEquals("to the end", readBody(connection));
+            assertFalse(connection.finishExchange());
+        }
+    }
+
+    @Test
+    public void testEmptyOkCountsAs204() throws IOException {
+        final ProbeConnection.Response empty =
+                getOnly("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+        assertFalse(empty.hasBody());
+        assertTrue(ProbeConnection.isEmptyOk(empty.code, empty.contentLength));
+
+        final ProbeConnection.Response body =
+                getOnly("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nlogin");
+        assertFalse(ProbeConnection.isEmptyOk(body.code, body.contentLength));
+
+        // Without a Content-Length the body is not known to be empty.
+        final ProbeConnection.Response chunked = getOnly(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+        assertFalse(ProbeConnection.isEmptyOk(chunked.code, chunked.contentLength));
+
+        final ProbeConnection.Response redirect =
+                getOnly("HTTP/1.1 302 Found\r\nContent-Length: 0\r\n\r\n");
+        assertFalse(ProbeConnection.isEmptyOk(redirect.code, redirect.contentLength));
+    }
+}
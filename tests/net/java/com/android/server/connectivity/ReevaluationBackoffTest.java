@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReevaluationBackoffTest {
+    private static final int BASE_MS = 10 * 60 * 1000;
+    private static final int CAP_MS = 30 * 60 * 1000;
+    // Thu, 01 Jan 2015 00:00:00 GMT
+    private static final long NOW_MS = 1420070400000L;
+
+    private static final ReevaluationBackoff.Clock FAKE_CLOCK = new ReevaluationBackoff.Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return NOW_MS;
+        }
+    };
+
+    private static ReevaluationBackoff newJitter(long seed) {
+        return new ReevaluationBackoff.DecorrelatedJitter(BASE_MS, CAP_MS, FAKE_CLOCK,
+                new Random(seed));
+    }
+
+    private static void assertFirstDelayInRange(int delayMs) {
+        final double jitter = ReevaluationBackoff.DecorrelatedJitter.FIRST_DELAY_JITTER;
+        assertTrue("first delay " + delayMs, delayMs >= BASE_MS * (1 - jitter));
+        assertTrue("first delay " + delayMs, delayMs <= BASE_MS * (1 + jitter));
+    }
+
+    @Test
+    public void testFirstDelayIsJittered() {
+        final int first = newJitter(1).nextDelayMs(null);
+        final int second = newJitter(2).nextDelayMs(null);
+        assertFirstDelayInRange(first);
+        assertFirstDelayInRange(second);
+        assertNotEquals(first, second);
+    }
+
+    @Test
+    public void testResetJittersFirstDelayAgain() {
+        final ReevaluationBackoff backoff = newJitter(3);
+        final int first = backoff.nextDelayMs(null);
+        backoff.nextDelayMs(null);
+        backoff.reset();
+        final int afterReset = backoff.nextDelayMs(null);
+        assertFirstDelayInRange(afterReset);
+        assertNotEquals(first, afterReset);
+    }
+
+    @Test
+    public void testDelaysStayWithinBounds() {
+        final ReevaluationBackoff backoff = newJitter(4);
+        assertFirstDelayInRange(backoff.nextDelayMs(null));
+        for (int i = 0; i < 20; i++) {
+            final int delayMs = backoff.nextDelayMs(null);
+            assertTrue("delay " + delayMs, delayMs >= BASE_MS && delayMs <= CAP_MS);
+        }
+    }
+
+    @Test
+    public void testRetryAfterSecondsWins() {
+        final int retryAfterMs = 25 * 60 * 1000;
+        assertEquals(retryAfterMs,
+                newJitter(5).nextDelayMs(Integer.toString(retryAfterMs / 1000)));
+    }
+
+    @Test
+    public void testRetryAfterDateWins() {
+        // Twenty-five minutes after NOW_MS.
+        assertEquals(25 * 60 * 1000,
+                newJitter(6).nextDelayMs("Thu, 01 Jan 2015 00:25:00 GMT"));
+    }
+
+    @Test
+    public void testRetryAfterIsCapped() {
+        assertEquals(CAP_MS, newJitter(7).nextDelayMs("86400"));
+    }
+
+    @Test
+    public void testShortRetryAfterIsIgnored() {
+        final int delayMs = newJitter(8).nextDelayMs("1");
+        assertFirstDelayInRange(delayMs);
+    }
+}